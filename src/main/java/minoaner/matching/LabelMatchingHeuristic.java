@@ -15,8 +15,10 @@
  */
 package minoaner.matching;
 
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import java.util.Set;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdDictionary;
 import minoaner.utils.Utils;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
@@ -37,12 +39,37 @@ public class LabelMatchingHeuristic {
      * @param entityIds1
      * @param entityIds2
      * @param SEPARATOR
-     * @return 
+     * @return the cached and materialized matches
      */
     public JavaPairRDD<Integer,Integer> getMatchesFromLabels(JavaRDD<String> inputTriples1, JavaRDD<String> inputTriples2, JavaRDD<String> entityIds1, JavaRDD<String> entityIds2, String SEPARATOR, Set<String> labelAtts1, Set<String> labelAtts2) {                
-        JavaPairRDD<String,Integer> labelBlocks1 = getLabelBlocks(inputTriples1, labelAtts1, entityIds1, SEPARATOR, true);
-        JavaPairRDD<String,Integer> labelBlocks2 = getLabelBlocks(inputTriples2, labelAtts2, entityIds2, SEPARATOR, false);
+        EntityIdDictionary ids1 = EntityIdDictionary.load(entityIds1, true);
+        EncodedTriples triples1 = EncodedTriples.encode(inputTriples1, SEPARATOR, ids1);
+        ids1.unpersist(); //the triples have been materialized
+        EntityIdDictionary ids2 = EntityIdDictionary.load(entityIds2, false);
+        EncodedTriples triples2 = EncodedTriples.encode(inputTriples2, SEPARATOR, ids2);
+        ids2.unpersist();
+        
+        JavaPairRDD<Integer,Integer> matches = getMatchesFromLabels(triples1, triples2, labelAtts1, labelAtts2).cache();
+        System.out.println(matches.count()+" matches have been found from labels"); //action
+        triples1.unpersist();
+        triples2.unpersist();
+        return matches;
+    }
+    
+    /**
+     * The same as getMatchesFromLabels with the raw triples, but with triples that have been tokenized and encoded once (e.g., also used by RelationsRank).
+     * @param triples1 the encoded triples of the first collection
+     * @param triples2 the encoded triples of the second collection
+     * @return 
+     */
+    public JavaPairRDD<Integer,Integer> getMatchesFromLabels(EncodedTriples triples1, EncodedTriples triples2, Set<String> labelAtts1, Set<String> labelAtts2) {                
+        JavaPairRDD<String,Integer> labelBlocks1 = getLabelBlocks(triples1, labelAtts1);
+        JavaPairRDD<String,Integer> labelBlocks2 = getLabelBlocks(triples2, labelAtts2);
         
+        return getMatchesFromLabelBlocks(labelBlocks1, labelBlocks2);
+    }
+    
+    private JavaPairRDD<Integer,Integer> getMatchesFromLabelBlocks(JavaPairRDD<String,Integer> labelBlocks1, JavaPairRDD<String,Integer> labelBlocks2) {
         return labelBlocks2.join(labelBlocks1) //get blocks from labels existing in both collections (inner join) (first D2, to keep negative ids first)
                 .reduceByKey((x,y) -> x != null && x.equals(y) ? x : null) //if the block has more than two (one pair of) entities, skip this block
                 .filter(x-> x._2() != null)
@@ -55,33 +82,16 @@ public class LabelMatchingHeuristic {
     
     /**
      * Return an RDD with keys: label objects, and values: entity ids from a single collection, having this label
-     * @param inputTriples
+     * @param triples the encoded triples of the collection
      * @param labelAtts
-     * @param entityIds
-     * @param SEPARATOR
-     * @param positiveIds
      * @return 
      */
-    private JavaPairRDD<String,Integer> getLabelBlocks(JavaRDD<String> inputTriples, Set<String> labelAtts, JavaRDD<String> entityIds, String SEPARATOR, boolean positiveIds) {
-        Object2IntOpenHashMap<String> urls1 = Utils.readEntityIdsMapping(entityIds, positiveIds);
-        return inputTriples.mapToPair(line -> {
-        String[] spo = line.toLowerCase().replaceAll(" \\.$", "").split(SEPARATOR); //lose the ending " ." from valid .nt files
-          if (spo.length < 3) {
-              return null;
-          }          
-          if (labelAtts.contains(spo[1])) {
-            String labelValue = line.substring(line.indexOf(spo[1])+spo[1].length()+SEPARATOR.length())
-                    .toLowerCase().replaceAll("[^a-z0-9 ]", "").trim();
-            int subjectId = urls1.getInt(Utils.encodeURIinUTF8(spo[0])); //replace subject url with entity id
-            if (!positiveIds) {
-                subjectId = -subjectId;
-            }
-            return new Tuple2<String,Integer>(labelValue,subjectId);
-          } else {
-              return null;
-          }          
-        })
-        .filter(x-> x!= null)
+    private JavaPairRDD<String,Integer> getLabelBlocks(EncodedTriples triples, Set<String> labelAtts) {
+        final boolean positiveIds = triples.isPositive();
+        IntOpenHashSet labelPredicates = triples.getPredicateIds(labelAtts);
+        return triples.getTriples()
+        .filter(triple -> triple.getLiteral() != null && labelPredicates.contains(triple.getPredicateId())) //labels that are entities are skipped
+        .mapToPair(triple -> new Tuple2<String,Integer>(Utils.normalizeLabel(triple.getLiteral()), positiveIds ? triple.getSubjectId() : -triple.getSubjectId()))
         .distinct();
     }
     
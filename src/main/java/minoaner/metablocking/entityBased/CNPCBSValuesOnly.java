@@ -16,9 +16,8 @@
 
 package minoaner.metablocking.entityBased;
 
-import java.util.HashMap;
-import java.util.Map;
-import minoaner.utils.Utils;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import minoaner.utils.IntFloatTopK;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
 
@@ -32,33 +31,22 @@ public class CNPCBSValuesOnly {
         
         //map phase
         //resulting RDD is of the form <entityId, [candidateMatchIds]>
-        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutput(blocksFromEI);
+        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutput(blocksFromEI, CNPMapPhase.DEFAULT_MAX_BLOCK_COMPARISONS);
         
         //reduce phase
         //metaBlockingResults: key: an entityId, value: an array of topK candidate matches, in descending order of score (match likelihood)
         return mapOutput.groupByKey() //for each entity create an iterable of arrays of candidate matches (one array from each common block)
                 .mapValues(x -> {               
                     //find number of common blocks
-                    Map<Integer,Double> counters = new HashMap<>(); //number of common blocks with current entity per candidate match
+                    Int2FloatOpenHashMap counters = new Int2FloatOpenHashMap(); //number of common blocks with current entity per candidate match
                     for(IntArrayList block : x) {      //neighbors in the blocking graph           
                         for (int candidateMatch : block) {                                                         
-                            counters.put(candidateMatch, counters.getOrDefault(candidateMatch, 0.0)+1);
+                            counters.addTo(candidateMatch, 1);
                         }
                     }
                     
                     //keep the top-K weights
-                    counters = Utils.sortByValue(counters, true);                    
-                    IntArrayList candidateMatchesSorted = new IntArrayList();
-                    
-                    int i = 0;
-                    for (int candidateMatch : counters.keySet()) {
-                        if (i == counters.size() || i == K) {
-                            break;
-                        }
-                        candidateMatchesSorted.add(i++, candidateMatch);                        
-                    }
-                    
-                    return candidateMatchesSorted;
+                    return IntFloatTopK.select(counters, K).toIntArrayList();
                 });
                 
     }
@@ -18,6 +18,7 @@ package minoaner.metablocking.entityBased;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import scala.Tuple2;
 
@@ -27,6 +28,11 @@ import scala.Tuple2;
  */
 public class CNPMapPhase {
     
+    /**
+     * Blocks with more comparisons than this are split into sub-blocks by the skew-aware map phase.
+     */
+    public static final long DEFAULT_MAX_BLOCK_COMPARISONS = 10_000_000L;
+    
     /**
      * Get for each entity a block a tuple like eId, [entitiesFromTheOtherCollectionInThisBlock[
      * @param blocksFromEI the blocks after block filtering, in the form: blockId, [entityIds]
@@ -119,4 +125,111 @@ public class CNPMapPhase {
         })
         .filter(x-> x._2().size() > 1); 
     }
+    
+    
+    /**
+     * Skew-aware version of {@link #getMapOutput(JavaPairRDD)}, with exactly the same output records. 
+     * Blocks with more than maxBlockComparisons comparisons are split into sub-blocks, each one responsible for emitting 
+     * the records of a subset of the block's entities. The sub-blocks are spread over all partitions, so that the 
+     * |D1|*|D2| emitted ids of an oversized block are not produced by a single (straggler) task.
+     * @param blocksFromEI the blocks after block filtering, in the form: blockId, [entityIds]
+     * @param maxBlockComparisons the maximum number of comparisons of a block that is processed as a whole
+     * @return for each entity in a block a tuple like eId, [entitiesFromTheOtherCollectionInThisBlock[
+     */
+    public static JavaPairRDD<Integer,IntArrayList> getMapOutput(JavaPairRDD<Integer, IntArrayList> blocksFromEI, long maxBlockComparisons) {
+        return getMapOutputSkewAware(blocksFromEI, maxBlockComparisons, false);
+    }
+    
+    /**
+     * Skew-aware version of {@link #getMapOutputWJS(JavaPairRDD)}, with exactly the same output records. 
+     * Blocks with more than maxBlockComparisons comparisons are split into sub-blocks, each one responsible for emitting 
+     * the records of a subset of the block's entities. The first element of each emitted list is still the number of 
+     * entities from the same collection in the whole block, so that the reducers compute the same weights.
+     * @param blocksFromEI the blocks after block filtering, in the form: blockId, [entityIds]
+     * @param maxBlockComparisons the maximum number of comparisons of a block that is processed as a whole
+     * @return for each entity in a block a tuple like eId, [numEntitiesFromTheSameCollection,entitiesFromTheOtherCollectionInThisBlock[
+     */
+    public static JavaPairRDD<Integer,IntArrayList> getMapOutputWJS(JavaPairRDD<Integer, IntArrayList> blocksFromEI, long maxBlockComparisons) {
+        return getMapOutputSkewAware(blocksFromEI, maxBlockComparisons, true);
+    }
+    
+    private static JavaPairRDD<Integer,IntArrayList> getMapOutputSkewAware(JavaPairRDD<Integer, IntArrayList> blocksFromEI, long maxBlockComparisons, boolean WJS) {
+        JavaPairRDD<Integer, IntArrayList> regularBlocks = blocksFromEI.filter(block -> getBlockComparisons(block._2()) <= maxBlockComparisons);
+        JavaPairRDD<Integer, IntArrayList> oversizedBlocks = blocksFromEI.filter(block -> getBlockComparisons(block._2()) > maxBlockComparisons);
+        
+        JavaPairRDD<Integer, IntArrayList> regularOutput = WJS ? getMapOutputWJS(regularBlocks) : getMapOutput(regularBlocks);
+        
+        JavaPairRDD<Integer, IntArrayList> oversizedOutput = oversizedBlocks
+            .flatMapToPair(block -> { //key: a sub-block id, value: (entities that emit, list that they emit)
+                IntArrayList positives = new IntArrayList();
+                IntArrayList negatives = new IntArrayList();
+                for (int entityId : block._2()) {
+                    if (entityId < 0) {
+                        negatives.add(entityId);
+                    } else {
+                        positives.add(entityId);
+                    }
+                }
+                
+                IntArrayList negativesToEmit = negatives;
+                IntArrayList positivesToEmit = positives;
+                if (WJS) { //add as a first element the number of entities from the other collection (i.e., from the same collection as the emitting entities)
+                    negativesToEmit = new IntArrayList(negatives.size()+1);
+                    negativesToEmit.add(positives.size());
+                    negativesToEmit.addAll(negatives);
+                    positivesToEmit = new IntArrayList(positives.size()+1);
+                    positivesToEmit.add(negatives.size());
+                    positivesToEmit.addAll(positives);
+                }
+                
+                List<Tuple2<Integer, Tuple2<IntArrayList,IntArrayList>>> subBlocks = new ArrayList<>();
+                int subBlockId = 31 * block._1();
+                subBlockId = addSubBlocks(subBlocks, subBlockId, positives, negativesToEmit, maxBlockComparisons);
+                addSubBlocks(subBlocks, subBlockId, negatives, positivesToEmit, maxBlockComparisons);
+                return subBlocks.iterator();
+            })
+            .partitionBy(new HashPartitioner(blocksFromEI.getNumPartitions())) //consecutive sub-block ids go to different partitions
+            .flatMapToPair(subBlock -> {
+                List<Tuple2<Integer,IntArrayList>> mapResults = new ArrayList<>();
+                IntArrayList toEmit = subBlock._2()._2();
+                for (int entityId : subBlock._2()._1()) {
+                    mapResults.add(new Tuple2<>(entityId, toEmit));
+                }
+                return mapResults.iterator();
+            });
+        
+        return regularOutput.union(oversizedOutput);
+    }
+    
+    /**
+     * Splits the emitting entities into chunks, so that each chunk emits at most maxBlockComparisons ids in total.
+     * @return the next available sub-block id
+     */
+    private static int addSubBlocks(List<Tuple2<Integer, Tuple2<IntArrayList,IntArrayList>>> subBlocks, int subBlockId, IntArrayList emittingEntities, IntArrayList toEmit, long maxBlockComparisons) {
+        int chunkSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBlockComparisons / toEmit.size()));
+        int[] entities = emittingEntities.elements();
+        for (int from = 0; from < emittingEntities.size(); from += chunkSize) {
+            int to = Math.min(emittingEntities.size(), from + chunkSize);
+            IntArrayList chunk = new IntArrayList(to - from);
+            chunk.addElements(0, entities, from, to - from);
+            subBlocks.add(new Tuple2<>(subBlockId++, new Tuple2<>(chunk, toEmit)));
+        }
+        return subBlockId;
+    }
+    
+    /**
+     * Returns the number of comparisons in a block, i.e., |D1 entities| * |D2 entities|.
+     * @param entities the entity ids of a block
+     * @return the number of comparisons in this block
+     */
+    public static long getBlockComparisons(IntArrayList entities) {
+        long negatives = 0;
+        int[] entityIds = entities.elements();
+        for (int i = 0; i < entities.size(); ++i) {
+            if (entityIds[i] < 0) {
+                negatives++;
+            }
+        }
+        return negatives * (entities.size() - negatives);
+    }
 }
@@ -17,9 +17,7 @@
 package minoaner.metablocking.entityBased;
 
 import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
-import java.util.HashMap;
-import java.util.Map;
-import minoaner.utils.Utils;
+import minoaner.utils.IntFloatTopK;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.broadcast.Broadcast;
@@ -38,7 +36,7 @@ public class CNPValuesOnly implements Serializable {
         totalWeightsBV.unpersist();
         totalWeightsBV.destroy();
         
-        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutputWJS(blocksFromEI);
+        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutputWJS(blocksFromEI, CNPMapPhase.DEFAULT_MAX_BLOCK_COMPARISONS);
                
         //reduce phase
         //the following is cheap to compute (one shuffle needed), but can easily give OOM error
@@ -68,26 +66,15 @@ public class CNPValuesOnly implements Serializable {
                     }
                     
                     //calculate the weight of each edge in the blocking graph (i.e., for each candidate match)
-                    Map<Integer, Float> weights = new HashMap<>();
+                    //and keep the top-K weights
+                    IntFloatTopK weights = new IntFloatTopK(Math.min(K, counters.size()));
                     float entityWeight = totalWeights.get(entityId.intValue());
                     for (int neighborId : counters.keySet()) {
 			float currentWeight = counters.get(neighborId) / (Float.MIN_NORMAL + entityWeight + totalWeights.get(neighborId));
-			weights.put(neighborId, currentWeight);			
+			weights.offer(neighborId, currentWeight);
                     }
                     
-                    //keep the top-K weights
-                    weights = Utils.sortByValue(weights, true);                    
-                    int[] candidateMatchesSorted = new int[Math.min(weights.size(), K)];                    
-                    
-                    int i = 0;
-                    for (int neighbor : weights.keySet()) {
-                        if (i == weights.size() || i == K) {
-                            break;
-                        }
-                        candidateMatchesSorted[i++] = neighbor;                        
-                    }
-                    
-                    return new Tuple2<Integer,IntArrayList>(entityId, new IntArrayList(candidateMatchesSorted));
+                    return new Tuple2<Integer,IntArrayList>(entityId, weights.toIntArrayList());
                 });               
     }
 }
@@ -18,22 +18,25 @@ package minoaner.metablocking.entityBased.neighbors;
 
 import minoaner.metablocking.entityBased.CNPMapPhase;
 import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
 import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
-import java.util.ArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import minoaner.relationsWeighting.RelationsRank;
-import minoaner.utils.ComparableIntFloatPair;
-import minoaner.utils.Utils;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.InNeighborIndex;
+import minoaner.utils.IntFloatTopK;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.Dependency;
+import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
 import scala.Serializable;
-import scala.Tuple2;
 
 /**
  * Performs Meta-blocking on the values and on the neighbors. 
@@ -42,7 +45,6 @@ import scala.Tuple2;
  */
 public class CNPARCS implements Serializable {
     
-    
     /**
      * 
      * @param topKvalueCandidates the topK results per entity, acquired from value similarity
@@ -68,10 +70,7 @@ public class CNPARCS implements Serializable {
             int N, 
             JavaSparkContext jsc) {
         
-        Map<Integer,IntArrayList> inNeighbors = new HashMap<>(new RelationsRank().run(rawTriples1, SEPARATOR, entityIds1, MIN_SUPPORT_THRESHOLD, N, true, jsc));
-        inNeighbors.putAll(new RelationsRank().run(rawTriples2, SEPARATOR, entityIds2, MIN_SUPPORT_THRESHOLD, N, false, jsc));
-        
-        Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV = jsc.broadcast(inNeighbors);             
+        Broadcast<InNeighborIndex> inNeighbors_BV = getInNeighborIndex(rawTriples1, rawTriples2, SEPARATOR, entityIds1, entityIds2, MIN_SUPPORT_THRESHOLD, N, jsc);
         JavaPairRDD<Integer, IntArrayList> topKneighborCandidates =  getTopKNeighborSimsSUM(topKvalueCandidates, inNeighbors_BV, K);        
         return topKneighborCandidates;
     }
@@ -105,15 +104,134 @@ public class CNPARCS implements Serializable {
             int N, 
             JavaSparkContext jsc) {
         
-        Map<Integer,IntArrayList> inNeighbors = new HashMap<>(new RelationsRank().run(rawTriples1, SEPARATOR, entityIds1, MIN_SUPPORT_THRESHOLD, N, true, jsc));
-        inNeighbors.putAll(new RelationsRank().run(rawTriples2, SEPARATOR, entityIds2, MIN_SUPPORT_THRESHOLD, N, false, jsc));
-        
-        Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV = jsc.broadcast(inNeighbors);             
+        Broadcast<InNeighborIndex> inNeighbors_BV = getInNeighborIndex(rawTriples1, rawTriples2, SEPARATOR, entityIds1, entityIds2, MIN_SUPPORT_THRESHOLD, N, jsc);
         JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKneighborCandidates =  getTopKNeighborSimsSUMWithScores(topKvalueCandidates, inNeighbors_BV, K);        
         return topKneighborCandidates;
     }
     
     
+    /**
+     * The same as run2, but the in-neighbors of both collections are kept in an RDD, co-partitioned with topKvalueCandidates, 
+     * instead of being collected and broadcast by the driver (which limits the size of the in-neighbor index to the driver's memory).
+     * @param topKvalueCandidates the topK results per entity, acquired from value similarity
+     * @param rawTriples1 the rdf triples of the first entity collection
+     * @param rawTriples2 the rdf triples of the second entity collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in the rawTriples1 and rawTriples2 files
+     * @param entityIds1 the mapping of entity urls to entity ids, as it was used in blocking
+     * @param entityIds2
+     * @param MIN_SUPPORT_THRESHOLD the minimum support threshold, below which, relations are discarded from top relations
+     * @param K the K for topK candidate matches
+     * @param N the N for topN rdf relations (and neighbors)
+     * @param jsc the java spark context used to load files and broadcast variables
+     * @return topK neighbor candidates per entity, persisted and materialized (so that the in-neighbors could be unpersisted)
+     */
+    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> run2Distributed(JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> topKvalueCandidates, 
+            JavaRDD<String> rawTriples1, 
+            JavaRDD<String> rawTriples2,             
+            String SEPARATOR, 
+            JavaRDD<String> entityIds1, 
+            JavaRDD<String> entityIds2, 
+            float MIN_SUPPORT_THRESHOLD,
+            int K,
+            int N, 
+            JavaSparkContext jsc) {
+        
+        Partitioner partitioner = topKvalueCandidates.partitioner().isPresent() ? topKvalueCandidates.partitioner().get() : EntityIdPartitioner.forRDD(topKvalueCandidates);
+        JavaPairRDD<Integer,IntArrayList> inNeighbors = getInNeighbors(rawTriples1, rawTriples2, SEPARATOR, entityIds1, entityIds2, MIN_SUPPORT_THRESHOLD, N, partitioner, jsc);
+        
+        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKneighborCandidates =  getTopKNeighborSimsSUMWithScores(topKvalueCandidates, inNeighbors, K)
+                .persist(StorageLevel.MEMORY_AND_DISK_SER());
+        topKneighborCandidates.count(); //materialize them, before the in-neighbors are unpersisted
+        unpersistInNeighbors(inNeighbors);
+        return topKneighborCandidates;
+    }
+    
+    
+    
+    /**
+     * Ranks the relations of both collections and collects the in-neighbors of each entity (through its top-N relations) in the driver.
+     * @param rawTriples1 the rdf triples of the first entity collection
+     * @param rawTriples2 the rdf triples of the second entity collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in the rawTriples1 and rawTriples2 files
+     * @param entityIds1 the mapping of entity urls to entity ids, as it was used in blocking
+     * @param entityIds2
+     * @param MIN_SUPPORT_THRESHOLD the minimum support threshold, below which, relations are discarded from top relations
+     * @param N the N for topN rdf relations (and neighbors)
+     * @param jsc the java spark context used to load files and broadcast variables
+     * @return the broadcast in-neighbors of the entities of both collections
+     */
+    public Broadcast<InNeighborIndex> getInNeighborIndex(JavaRDD<String> rawTriples1, JavaRDD<String> rawTriples2, String SEPARATOR, 
+            JavaRDD<String> entityIds1, JavaRDD<String> entityIds2, float MIN_SUPPORT_THRESHOLD, int N, JavaSparkContext jsc) {
+        Map<Integer,IntArrayList> inNeighbors = new HashMap<>(new RelationsRank().run(rawTriples1, SEPARATOR, entityIds1, MIN_SUPPORT_THRESHOLD, N, true, jsc));
+        inNeighbors.putAll(new RelationsRank().run(rawTriples2, SEPARATOR, entityIds2, MIN_SUPPORT_THRESHOLD, N, false, jsc));
+        return jsc.broadcast(InNeighborIndex.fromMap(inNeighbors));
+    }
+    
+    /**
+     * The same as getInNeighborIndex, but the in-neighbors are kept in RDDs, instead of being collected in the driver.
+     * The in-neighbors of each collection are persisted and materialized by RelationsRank.getInNeighbors (see unpersistInNeighbors).
+     * @param partitioner the partitioner of the in-neighbors, e.g., the one of the value candidates
+     * @return the in-neighbors of the entities of both collections, partitioned by partitioner
+     */
+    public JavaPairRDD<Integer,IntArrayList> getInNeighbors(JavaRDD<String> rawTriples1, JavaRDD<String> rawTriples2, String SEPARATOR, 
+            JavaRDD<String> entityIds1, JavaRDD<String> entityIds2, float MIN_SUPPORT_THRESHOLD, int N, Partitioner partitioner, JavaSparkContext jsc) {
+        return new RelationsRank().getInNeighbors(rawTriples1, SEPARATOR, entityIds1, MIN_SUPPORT_THRESHOLD, N, true, 0, partitioner, jsc)
+                .union(new RelationsRank().getInNeighbors(rawTriples2, SEPARATOR, entityIds2, MIN_SUPPORT_THRESHOLD, N, false, 0, partitioner, jsc)); //keeps the partitioner (the ids of the two collections are disjoint)
+    }
+    
+    /**
+     * The same as getInNeighborIndex with the raw triples, but with triples that have been tokenized and encoded once per collection.
+     * @param triples1 the encoded triples of the first collection
+     * @param triples2 the encoded triples of the second collection
+     * @return the broadcast in-neighbors of the entities of both collections
+     */
+    public Broadcast<InNeighborIndex> getInNeighborIndex(EncodedTriples triples1, EncodedTriples triples2, float MIN_SUPPORT_THRESHOLD, int N, JavaSparkContext jsc) {
+        Map<Integer,IntArrayList> inNeighbors = new HashMap<>(new RelationsRank().run(triples1, MIN_SUPPORT_THRESHOLD, N, 0, jsc));
+        inNeighbors.putAll(new RelationsRank().run(triples2, MIN_SUPPORT_THRESHOLD, N, 0, jsc));
+        return jsc.broadcast(InNeighborIndex.fromMap(inNeighbors));
+    }
+    
+    /**
+     * The same as getInNeighbors with the raw triples, but with triples that have been tokenized and encoded once per collection.
+     * @param triples1 the encoded triples of the first collection
+     * @param triples2 the encoded triples of the second collection
+     * @param partitioner the partitioner of the in-neighbors, e.g., the one of the value candidates
+     * @return the in-neighbors of the entities of both collections, partitioned by partitioner
+     */
+    public JavaPairRDD<Integer,IntArrayList> getInNeighbors(EncodedTriples triples1, EncodedTriples triples2, float MIN_SUPPORT_THRESHOLD, int N, Partitioner partitioner, JavaSparkContext jsc) {
+        return new RelationsRank().getInNeighbors(triples1, MIN_SUPPORT_THRESHOLD, N, 0, partitioner, jsc)
+                .union(new RelationsRank().getInNeighbors(triples2, MIN_SUPPORT_THRESHOLD, N, 0, partitioner, jsc)); //keeps the partitioner (the ids of the two collections are disjoint)
+    }
+    
+    /**
+     * Unpersists the in-neighbors returned by getInNeighbors, i.e., the persisted in-neighbors of each collection, from which their union is computed.
+     * Call this after the results that read the in-neighbors have been materialized.
+     * @param inNeighbors the output of getInNeighbors
+     */
+    public static void unpersistInNeighbors(JavaPairRDD<Integer,IntArrayList> inNeighbors) {
+        scala.collection.Iterator<Dependency<?>> parents = inNeighbors.rdd().dependencies().iterator();
+        while (parents.hasNext()) {
+            parents.next().rdd().unpersist(false);
+        }
+    }
+    
+    /**
+     * Computes the top-K value candidates once and keeps them in storage, so that both the neighbor candidates (run2, run2Distributed) 
+     * and matching read them, instead of re-executing the value phase from blocksFromEI (which can be unpersisted when this returns). 
+     * With a serialized storage level (e.g., MEMORY_AND_DISK_SER), the candidates are stored with the Kryo serializer of Int2FloatLinkedOpenHashMap, 
+     * i.e., as varint ids and raw floats.
+     * @param blocksFromEI
+     * @param K
+     * @param storageLevel the storage level of the value candidates
+     * @return the persisted and materialized value candidates. key: an entityId, value: a list of pairs of candidate matches along with their value_sim with the key
+     */
+    public JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> getPersistedTopKValueSims(JavaPairRDD<Integer, IntArrayList> blocksFromEI, int K, StorageLevel storageLevel) {
+        JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> topKValueCandidates = getTopKValueSims(blocksFromEI, K)
+                .setName("topKValueCandidates")
+                .persist(storageLevel);
+        topKValueCandidates.count(); //materialize them, before their input is unpersisted
+        return topKValueCandidates;
+    }
     
     /**
      * 
@@ -124,354 +242,87 @@ public class CNPARCS implements Serializable {
     public JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> getTopKValueSims(JavaPairRDD<Integer, IntArrayList> blocksFromEI, int K) {                
     
         //key: an entityId, value: a list of candidate matches, with first number being the number of entities from the same collection in this block
-        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutputWJS(blocksFromEI);
+        JavaPairRDD<Integer, IntArrayList> mapOutput = CNPMapPhase.getMapOutputWJS(blocksFromEI, CNPMapPhase.DEFAULT_MAX_BLOCK_COMPARISONS);
                
         //reduce phase
         //metaBlockingResults: key: a negative entityId, value: a list of candidate matches (positive entity ids) along with their value_sim with the key
         return mapOutput
-                .groupByKey() //for each entity create an iterable of arrays of candidate matches (one array from each common block)                
-                .mapToPair(x -> {                    
-                    int entityId = x._1();
-                    
-                    //compute the weights
-                    Int2FloatLinkedOpenHashMap weights = new Int2FloatLinkedOpenHashMap(); //number of common blocks with current entity per candidate match
-                    for(IntArrayList candidates : x._2()) {        
-                        int numNegativeEntitiesInBlock = candidates.getInt(0); //the first element is the number of entities from the same collection
-                        int numPositiveEntitiesInBlock = candidates.size()-1; //all the other candidates are positive entity ids
-                        if (entityId >= 0) {
-                            numPositiveEntitiesInBlock = candidates.getInt(0);
-                            numNegativeEntitiesInBlock = candidates.size()-1;
+                .aggregateByKey( //sums the ARCS weights of each candidate match before the shuffle, instead of grouping all the candidate arrays of an entity
+                    new Int2FloatOpenHashMap(), 
+                    EntityIdPartitioner.forRDD(mapOutput), //so that the in-neighbors can be co-partitioned with the value candidates (see run2Distributed)
+                    (weights, candidates) -> {addARCSWeights(weights, candidates); return weights;}, 
+                    (weights1, weights2) -> {
+                        ObjectIterator<Int2FloatMap.Entry> it = weights2.int2FloatEntrySet().fastIterator();
+                        while (it.hasNext()) {
+                            Int2FloatMap.Entry candidate = it.next();
+                            weights1.addTo(candidate.getIntKey(), candidate.getFloatValue());
                         }
-                        candidates = new IntArrayList(candidates.subList(1, candidates.size()));
-                                                
-                        long blockComparisons = (long)numNegativeEntitiesInBlock*numPositiveEntitiesInBlock;
-                        if (blockComparisons > 0) {
-                            float weight = 1.0f/(float)(Math.log1p(blockComparisons)/Math.log(2)); //ARCS weight
-                            for (int candidateId : candidates) {
-                                weights.addTo(candidateId, weight);                    
-                            }
-                        } else {
-                            throw new RuntimeException("division by zero for entity "+entityId+": numNegativeEntitiesInBlock="+numNegativeEntitiesInBlock+", numPositiveEntitiesInBlock="+numPositiveEntitiesInBlock+", candidates = "+candidates);
-                        }
-                    }
-                    
-                    //keep the top-K weights
-                    weights = new Int2FloatLinkedOpenHashMap(Utils.sortByValue(weights, true));
-                    Int2FloatLinkedOpenHashMap weightsToEmit = new Int2FloatLinkedOpenHashMap();                                      
-                    int i = 0;                    
-                    for (Map.Entry<Integer, Float> neighbor : weights.entrySet()) {                        
-                        if (i == weights.size() || i == K) {
-                            break;
-                        }
-                        weightsToEmit.put(neighbor.getKey().intValue(), weights.get(neighbor.getKey().intValue()));
-                        i++;
-                    }                    
-                    return new Tuple2<>(entityId, weightsToEmit);
-                })
+                        return weights1;
+                    })
+                .mapValues(weights -> IntFloatTopK.select(weights, K).toInt2FloatLinkedOpenHashMap()) //keep the top-K weights
                 .filter(x-> !x._2().isEmpty());
     }    
     
-    
-    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsMAX (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV, int K) {
-        return valueSims.flatMapToPair(x->{
-            int eId = x._1();
-            IntArrayList eInNeighbors = inNeighbors_BV.value().get(eId);
-            
-            List<Tuple2<Integer,ComparableIntFloatPair>> partialNeighborSims = new ArrayList<>(); //key: entityId, value: (candidateId, valueSim(outNeighbor(eId),outNeighbor(cId)) )
-            if (eInNeighbors == null) {
-                return partialNeighborSims.iterator(); //empty
-            }
-            for (Map.Entry<Integer, Float> eIdValueCandidates : x._2().entrySet()) { //for each candidate match of eId from values
-                IntArrayList inNeighborsOfCandidate = inNeighbors_BV.value().get(eIdValueCandidates.getKey());
-                if (inNeighborsOfCandidate == null) {
-                    continue; //go to next candidate match. this one does not have in-neighbors
-                }
-                Float tmpNeighborSim = eIdValueCandidates.getValue();
-                for (Integer inNeighborOfCandidate : inNeighborsOfCandidate) { //for each in-neighbor of the candidate match of the current entity                    
-                    for (Integer eInNeighbor : eInNeighbors) {  //for each in-neighbor of the current entity
-                        partialNeighborSims.add(new Tuple2<>(eInNeighbor, new ComparableIntFloatPair(inNeighborOfCandidate, tmpNeighborSim)));
-                        partialNeighborSims.add(new Tuple2<>(inNeighborOfCandidate, new ComparableIntFloatPair(eInNeighbor, tmpNeighborSim)));                        
-                    }
-                }
-            }
-            
-            return partialNeighborSims.iterator();
-        })
-        //keep top-K candidates per (key) entity
-        .combineByKey(//should be faster than groupByKey (keeps local top-Ks before shuffling, like a combiner in MapReduce)
-            //createCombiner
-            x-> {
-                PriorityQueue<ComparableIntFloatPair> initial = new PriorityQueue<>();
-                initial.add(x);
-                return initial; 
-            }
-            //mergeValue
-            , (PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) -> {
-                pq.add(x); 
-                pq = removeSamePairWithLowerValue(pq, x);                
-                if (pq.size() > K) {
-                    pq.poll();
-                }
-                return pq;
-            }
-            //mergeCombiners
-            , (PriorityQueue<ComparableIntFloatPair> pq1, PriorityQueue<ComparableIntFloatPair> pq2) -> {
-                while (!pq2.isEmpty()) {
-                    ComparableIntFloatPair c = pq2.poll();
-                    pq1.add(c);
-                    pq1 = removeSamePairWithLowerValue(pq1, c);                    
-                    if (pq1.size() > K) {
-                        pq1.poll();
-                    }
-                }
-                return pq1;
-            }
-        )
-        .mapValues(x -> Utils.toIntArrayListReversed(x));
+    /**
+     * Adds the ARCS weight of a common block to each candidate match of this block.
+     * @param weights the ARCS weights accumulated so far for the candidate matches of an entity
+     * @param candidates the candidate matches from a common block, with first number being the number of entities from the same collection in this block
+     */
+    private static void addARCSWeights(Int2FloatOpenHashMap weights, IntArrayList candidates) {
+        int numEntitiesFromSameCollection = candidates.getInt(0);
+        int numCandidates = candidates.size()-1;
+        long blockComparisons = (long)numEntitiesFromSameCollection*numCandidates; //the same for positive and negative entity ids
+        if (blockComparisons <= 0) {
+            throw new RuntimeException("division by zero: numEntitiesFromSameCollection="+numEntitiesFromSameCollection+", candidates = "+candidates);
+        }
+        float weight = 1.0f/(float)(Math.log1p(blockComparisons)/Math.log(2)); //ARCS weight
+        int[] candidateIds = candidates.elements();
+        for (int i = 1; i <= numCandidates; ++i) {
+            weights.addTo(candidateIds[i], weight);
+        }
     }
     
     
-    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsMAXWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV, int K) {
-        return valueSims.flatMapToPair(x->{
-            int eId = x._1();
-            IntArrayList eInNeighbors = inNeighbors_BV.value().get(eId);
-            
-            List<Tuple2<Integer,ComparableIntFloatPair>> partialNeighborSims = new ArrayList<>(); //key: entityId, value: (candidateId, valueSim(outNeighbor(eId),outNeighbor(cId)) )
-            if (eInNeighbors == null) {
-                return partialNeighborSims.iterator(); //empty
-            }
-            for (Map.Entry<Integer, Float> eIdValueCandidates : x._2().entrySet()) { //for each candidate match of eId from values
-                IntArrayList inNeighborsOfCandidate = inNeighbors_BV.value().get(eIdValueCandidates.getKey());
-                if (inNeighborsOfCandidate == null) {
-                    continue; //go to next candidate match. this one does not have in-neighbors
-                }
-                Float tmpNeighborSim = eIdValueCandidates.getValue();
-                for (Integer inNeighborOfCandidate : inNeighborsOfCandidate) { //for each in-neighbor of the candidate match of the current entity                    
-                    for (Integer eInNeighbor : eInNeighbors) {  //for each in-neighbor of the current entity
-                        partialNeighborSims.add(new Tuple2<>(eInNeighbor, new ComparableIntFloatPair(inNeighborOfCandidate, tmpNeighborSim)));
-                        partialNeighborSims.add(new Tuple2<>(inNeighborOfCandidate, new ComparableIntFloatPair(eInNeighbor, tmpNeighborSim)));                        
-                    }
-                }
-            }
-            
-            return partialNeighborSims.iterator();
-        })
-        //keep top-K candidates per (key) entity
-        .combineByKey(//should be faster than groupByKey (keeps local top-Ks before shuffling, like a combiner in MapReduce)
-            //createCombiner
-            x-> {
-                PriorityQueue<ComparableIntFloatPair> initial = new PriorityQueue<>();
-                initial.add(x);
-                return initial; 
-            }
-            //mergeValue
-            , (PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) -> {
-                pq.add(x); 
-                pq = removeSamePairWithLowerValue(pq, x);                
-                if (pq.size() > K) {
-                    pq.poll();
-                }
-                return pq;
-            }
-            //mergeCombiners
-            , (PriorityQueue<ComparableIntFloatPair> pq1, PriorityQueue<ComparableIntFloatPair> pq2) -> {
-                while (!pq2.isEmpty()) {
-                    ComparableIntFloatPair c = pq2.poll();
-                    pq1.add(c);
-                    pq1 = removeSamePairWithLowerValue(pq1, c);                    
-                    if (pq1.size() > K) {
-                        pq1.poll();
-                    }
-                }
-                return pq1;
-            }
-        )
-        .mapValues(pq -> {      //keep the top-K candidates, based on their value            
-            Int2FloatLinkedOpenHashMap xUnsorted = new Int2FloatLinkedOpenHashMap();
-            while (!pq.isEmpty()) {
-                ComparableIntFloatPair cand = pq.poll();
-                xUnsorted.put(cand.getEntityId(), cand.getValue());
-            }
-            
-            Int2FloatLinkedOpenHashMap xSorted = new Int2FloatLinkedOpenHashMap(Utils.sortByValue(xUnsorted, true));
-            int i = Math.min(K, xSorted.size());   
-            Int2FloatLinkedOpenHashMap results = new Int2FloatLinkedOpenHashMap();
-            int j = 0;
-            for (Map.Entry<Integer, Float> candidate : xSorted.entrySet()) {
-                results.put(candidate.getKey().intValue(), candidate.getValue().floatValue());
-                j++;                
-                if (i == j) { //K elements (or all elements, if less than K) have been added
-                    break;
-                }
-            }
-            return results;
-        });
+    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsMAX (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV, int K) {
+        return TopKNeighborSims.toCandidates(new TopKNeighborSims(NeighborSimsCombiner.MAX, K).run(valueSims, inNeighbors_BV));
     }
     
-    
-    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsSUM (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV, int K) {
-        return valueSims.flatMapToPair(x->{
-            int eId = x._1();
-            IntArrayList eInNeighbors = inNeighbors_BV.value().get(eId);
-            
-            List<Tuple2<Integer,ComparableIntFloatPair>> partialNeighborSims = new ArrayList<>(); //key: entityId, value: (candidateId, valueSim(outNeighbor(eId),outNeighbor(cId)) )
-            if (eInNeighbors == null) {
-                return partialNeighborSims.iterator(); //empty
-            }
-            for (Map.Entry<Integer, Float> eIdValueCandidates : x._2().entrySet()) { //for each candidate match of eId from values
-                IntArrayList inNeighborsOfCandidate = inNeighbors_BV.value().get(eIdValueCandidates.getKey());
-                if (inNeighborsOfCandidate == null) {
-                    continue; //go to next candidate match. this one does not have in-neighbors
-                }
-                Float tmpNeighborSim = eIdValueCandidates.getValue();                
-                for (Integer inNeighborOfCandidate : inNeighborsOfCandidate) { //for each in-neighbor of the candidate match of the current entity                    
-                    for (Integer eInNeighbor : eInNeighbors) {  //for each in-neighbor of the current entity
-                        partialNeighborSims.add(new Tuple2<>(eInNeighbor, new ComparableIntFloatPair(inNeighborOfCandidate, tmpNeighborSim)));
-                        partialNeighborSims.add(new Tuple2<>(inNeighborOfCandidate, new ComparableIntFloatPair(eInNeighbor, tmpNeighborSim)));                        
-                    }
-                }
-            }
-            
-            return partialNeighborSims.iterator();
-        })
-        .combineByKey(
-            //createCombiner
-            x-> {
-                Int2FloatOpenHashMap initial = new Int2FloatOpenHashMap();
-                initial.put(x.getEntityId(), x.getValue());
-                return initial; 
-            }
-            //mergeValue
-            , (Int2FloatOpenHashMap existingSims, ComparableIntFloatPair x) -> {
-                existingSims.addTo(x.getEntityId(), x.getValue()); //sum the value sims of their out-neighbors                
-                return existingSims;
-            }
-            //mergeCombiners
-            , (Int2FloatOpenHashMap sims1, Int2FloatOpenHashMap sims2) -> {
-                for (Map.Entry<Integer, Float> x : sims2.entrySet()) {
-                    sims1.addTo(x.getKey(), x.getValue()); //sum the value sims of their out-neighbors                                    
-                }
-                return sims1;
-            }
-        )
-        .mapValues(x -> new Int2FloatLinkedOpenHashMap(Utils.sortByValue(x, true)))
-        .mapValues(x -> {      //keep the top-K candidates, based on their value
-            int i = Math.min(K, x.size());   
-            int[] candidates = new int[i]; 
-            int j = 0;
-            for (Map.Entry<Integer, Float> candidate : x.entrySet()) {
-                candidates[j++] = candidate.getKey();
-                if (i == j) { //K elements (or all elements, if less than K) have been added
-                    break;
-                }
-            }
-            return new IntArrayList(candidates);
-        });
+    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsMAX (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors, int K) {
+        return TopKNeighborSims.toCandidates(new TopKNeighborSims(NeighborSimsCombiner.MAX, K).run(valueSims, inNeighbors));
     }
     
     
+    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsMAXWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV, int K) {
+        return TopKNeighborSims.toCandidatesWithScores(new TopKNeighborSims(NeighborSimsCombiner.MAX, K).run(valueSims, inNeighbors_BV));
+    }
     
+    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsMAXWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors, int K) {
+        return TopKNeighborSims.toCandidatesWithScores(new TopKNeighborSims(NeighborSimsCombiner.MAX, K).run(valueSims, inNeighbors));
+    }
     
     
-    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsSUMWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV, int K) {
-        return valueSims.flatMapToPair(x->{
-            int eId = x._1();
-            IntArrayList eInNeighbors = inNeighbors_BV.value().get(eId);
-            
-            List<Tuple2<Integer,ComparableIntFloatPair>> partialNeighborSims = new ArrayList<>(); //key: entityId, value: (candidateId, valueSim(outNeighbor(eId),outNeighbor(cId)) )
-            if (eInNeighbors == null) {
-                return partialNeighborSims.iterator(); //empty
-            }
-            for (Map.Entry<Integer, Float> eIdValueCandidate : x._2().entrySet()) { //for each candidate match of eId from values
-                IntArrayList inNeighborsOfCandidate = inNeighbors_BV.value().get(eIdValueCandidate.getKey());
-                if (inNeighborsOfCandidate == null) {
-                    continue; //go to next candidate match. this one does not have in-neighbors
-                }
-                Float tmpNeighborSim = eIdValueCandidate.getValue();                
-                for (Integer inNeighborOfCandidate : inNeighborsOfCandidate) { //for each in-neighbor of the candidate match of the current entity                    
-                    for (Integer eInNeighbor : eInNeighbors) {  //for each in-neighbor of the current entity
-                        partialNeighborSims.add(new Tuple2<>(eInNeighbor, new ComparableIntFloatPair(inNeighborOfCandidate, tmpNeighborSim)));
-                        partialNeighborSims.add(new Tuple2<>(inNeighborOfCandidate, new ComparableIntFloatPair(eInNeighbor, tmpNeighborSim)));                        
-                    }
-                }
-            }
-            
-            return partialNeighborSims.iterator();
-        })
-        .combineByKey(
-            //createCombiner
-            x-> {
-                Int2FloatOpenHashMap initial = new Int2FloatOpenHashMap();
-                initial.put(x.getEntityId(), x.getValue());
-                return initial; 
-            }
-            //mergeValue
-            , (Int2FloatOpenHashMap existingSims, ComparableIntFloatPair x) -> {
-                existingSims.addTo(x.getEntityId(), x.getValue()); //sum the value sims of their out-neighbors                
-                return existingSims;
-            }
-            //mergeCombiners
-            , (Int2FloatOpenHashMap sims1, Int2FloatOpenHashMap sims2) -> {
-                for (Map.Entry<Integer, Float> x : sims2.entrySet()) {
-                    sims1.addTo(x.getKey(), x.getValue()); //sum the value sims of their out-neighbors                                    
-                }
-                return sims1;
-            }
-        )        
-        .mapValues(x -> {      //keep the top-K candidates, based on their value
-            Int2FloatLinkedOpenHashMap xSorted = new Int2FloatLinkedOpenHashMap(Utils.sortByValue(x, true));
-            int candidatesToKeep = Math.min(K, xSorted.size());   
-            Int2FloatLinkedOpenHashMap results = new Int2FloatLinkedOpenHashMap();
-            int candidatesKept = 0;
-            for (Map.Entry<Integer, Float> candidate : xSorted.entrySet()) {
-                results.put(candidate.getKey().intValue(), candidate.getValue().floatValue());
-                candidatesKept++;                
-                if (candidatesKept == candidatesToKeep) { //K elements (or all elements, if less than K) have been added
-                    break;
-                }
-            }
-            return results;
-        });
+    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsSUM (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV, int K) {
+        return TopKNeighborSims.toCandidates(new TopKNeighborSims(NeighborSimsCombiner.SUM, K).run(valueSims, inNeighbors_BV));
     }
     
+    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSimsSUM (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors, int K) {
+        return TopKNeighborSims.toCandidates(new TopKNeighborSims(NeighborSimsCombiner.SUM, K).run(valueSims, inNeighbors));
+    }
     
     
+    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsSUMWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV, int K) {
+        return TopKNeighborSims.toCandidatesWithScores(new TopKNeighborSims(NeighborSimsCombiner.SUM, K).run(valueSims, inNeighbors_BV));
+    }
     
-    
-
     /**
-     * At this point, pq contains x and maybe 1 more element y with the same key as x. If y exists, keep from those two the one with the better value. 
-     * If y does not exist, keep x. 
-     * @param pq
-     * @param x
-     * @return 
+     * The same as getTopKNeighborSimsSUMWithScores with a broadcast in-neighbor index, but with the in-neighbors in a (partitioned) RDD, so that nothing passes through the driver.
+     * @param valueSims the topK value candidates per entity
+     * @param inNeighbors the in-neighbors of each entity of both collections, ideally co-partitioned with valueSims
+     * @param K
+     * @return key: entityId, value: its top-K neighbor candidates, with their neighbor similarities
      */
-    private PriorityQueue<ComparableIntFloatPair> removeSamePairWithLowerValue(PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) {
-        int entityIdToAdd = x.getEntityId();
-        float newValue = x.getValue();
-        ComparableIntFloatPair elementToDelete = null;
-        boolean sameValueTwice = false;
-        for (ComparableIntFloatPair qElement : pq) { //traverses the queue in random order
-            if (qElement.getEntityId() == entityIdToAdd) {
-                if (qElement.getValue() < newValue) { //y is worse than x => delete y
-                    elementToDelete = qElement;
-                    break;
-                } else if (qElement.getValue() > newValue) { //y is better than x => delete x
-                    elementToDelete = x;
-                    break;
-                } else {  //qElement has the same value as x (or is x)
-                    if (!sameValueTwice) { //first time meeting this element (it can be x or a y with the same rank)
-                        sameValueTwice = true; 
-                    } else{               //second time meeting this element (x and y are equivalent => delete one of them)
-                        elementToDelete = x;
-                        break;
-                    }
-                }
-            }
-        }
-        if (elementToDelete != null) {
-            pq.remove(elementToDelete);
-        }
-        return pq;
-    }   
+    public JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> getTopKNeighborSimsSUMWithScores (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors, int K) {
+        return TopKNeighborSims.toCandidatesWithScores(new TopKNeighborSims(NeighborSimsCombiner.SUM, K).run(valueSims, inNeighbors));
+    }
+    
 }
@@ -27,6 +27,8 @@ import java.util.Map;
 import java.util.PriorityQueue;
 import minoaner.relationsWeighting.RelationsRank;
 import minoaner.utils.ComparableIntFloatPair;
+import minoaner.utils.InNeighborIndex;
+import minoaner.utils.IntFloatTopK;
 import minoaner.utils.Utils;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
@@ -71,7 +73,7 @@ public class CNPNeighbors implements Serializable {
         Map<Integer,IntArrayList> inNeighbors = new HashMap<>(new RelationsRank().run(rawTriples1, SEPARATOR, entityIds1, MIN_SUPPORT_THRESHOLD, N, true, jsc));
         inNeighbors.putAll(new RelationsRank().run(rawTriples2, SEPARATOR, entityIds2, MIN_SUPPORT_THRESHOLD, N, false, jsc));
         
-        Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV = jsc.broadcast(inNeighbors);
+        Broadcast<InNeighborIndex> inNeighbors_BV = jsc.broadcast(InNeighborIndex.fromMap(inNeighbors));
         
         //JavaPairRDD<Tuple2<Integer, Integer>, Float> neighborSims = getNeighborSims(topKvalueCandidates, inNeighbors_BV);        
         //JavaPairRDD<Integer, IntArrayList> topKneighborCandidates =  getTopKNeighborSimsOld(neighborSims, K);        
@@ -130,18 +132,7 @@ public class CNPNeighbors implements Serializable {
                     }
                     
                     //keep the top-K weights
-                    weights = new Int2FloatLinkedOpenHashMap(Utils.sortByValue(weights, true));
-                    Int2FloatLinkedOpenHashMap weightsToEmit = new Int2FloatLinkedOpenHashMap();                                      
-                    int i = 0;                    
-                    for (Map.Entry<Integer, Float> neighbor : weights.entrySet()) {                        
-                        if (i == weights.size() || i == K) {
-                            break;
-                        }
-                        weightsToEmit.put(neighbor.getKey().intValue(), weights.get(neighbor.getKey().intValue()));
-                        i++;
-                    }
-                    
-                    return new Tuple2<>(entityId, weightsToEmit);
+                    return new Tuple2<>(entityId, IntFloatTopK.select(weights, K).toInt2FloatLinkedOpenHashMap());
                 })
                 .filter(x-> !x._2().isEmpty());
     }    
@@ -231,97 +222,9 @@ public class CNPNeighbors implements Serializable {
     
     
     
-    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSims (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<Map<Integer,IntArrayList>> inNeighbors_BV, int K) {
-        return valueSims.flatMapToPair(x->{
-            int eId = x._1();
-            IntArrayList eInNeighbors = inNeighbors_BV.value().get(eId);
-            
-            List<Tuple2<Integer,ComparableIntFloatPair>> partialNeighborSims = new ArrayList<>(); //key: entityId, value: (candidateId, valueSim(outNeighbor(eId),outNeighbor(cId)) )
-            if (eInNeighbors == null) {
-                return partialNeighborSims.iterator(); //empty
-            }
-            for (Map.Entry<Integer, Float> eIdValueCandidates : x._2().entrySet()) { //for each candidate match of eId from values
-                IntArrayList inNeighborsOfCandidate = inNeighbors_BV.value().get(eIdValueCandidates.getKey());
-                if (inNeighborsOfCandidate == null) {
-                    continue; //go to next candidate match. this one does not have in-neighbors
-                }
-                Float tmpNeighborSim = eIdValueCandidates.getValue();
-                for (Integer inNeighborOfCandidate : inNeighborsOfCandidate) { //for each in-neighbor of the candidate match of the current entity                    
-                    for (Integer eInNeighbor : eInNeighbors) {  //for each in-neighbor of the current entity
-                        partialNeighborSims.add(new Tuple2<>(eInNeighbor, new ComparableIntFloatPair(inNeighborOfCandidate, tmpNeighborSim)));
-                        partialNeighborSims.add(new Tuple2<>(inNeighborOfCandidate, new ComparableIntFloatPair(eInNeighbor, tmpNeighborSim)));                        
-                    }
-                }
-            }
-            
-            return partialNeighborSims.iterator();
-        })
-        //keep top-K candidates per (key) entity
-        .combineByKey(//should be faster than groupByKey (keeps local top-Ks before shuffling, like a combiner in MapReduce)
-            //createCombiner
-            x-> {
-                PriorityQueue<ComparableIntFloatPair> initial = new PriorityQueue<>();
-                initial.add(x);
-                return initial; 
-            }
-            //mergeValue
-            , (PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) -> {
-                pq.add(x); 
-                pq = removeSamePairWithLowerValue(pq, x);                
-                if (pq.size() > K) {
-                    pq.poll();
-                }
-                return pq;
-            }
-            //mergeCombiners
-            , (PriorityQueue<ComparableIntFloatPair> pq1, PriorityQueue<ComparableIntFloatPair> pq2) -> {
-                while (!pq2.isEmpty()) {
-                    ComparableIntFloatPair c = pq2.poll();
-                    pq1.add(c);
-                    pq1 = removeSamePairWithLowerValue(pq1, c);                    
-                    if (pq1.size() > K) {
-                        pq1.poll();
-                    }
-                }
-                return pq1;
-            }
-        ).mapValues(pq -> Utils.toIntArrayListReversed(pq));
+    public JavaPairRDD<Integer, IntArrayList> getTopKNeighborSims (JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV, int K) {
+        return TopKNeighborSims.toCandidates(new TopKNeighborSims(NeighborSimsCombiner.MAX, K).run(valueSims, inNeighbors_BV));
     }
 
-    /**
-     * At this point, pq contains x and maybe 1 more element y with the same key as x. If y exists, keep from those two the one with the better value. 
-     * If y does not exist, keep x. 
-     * @param pq
-     * @param x
-     * @return 
-     */
-    private PriorityQueue<ComparableIntFloatPair> removeSamePairWithLowerValue(PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) {
-        int entityIdToAdd = x.getEntityId();
-        float newValue = x.getValue();
-        ComparableIntFloatPair elementToDelete = null;
-        boolean sameValueTwice = false;
-        for (ComparableIntFloatPair qElement : pq) { //traverses the queue in random order
-            if (qElement.getEntityId() == entityIdToAdd) {
-                if (qElement.getValue() < newValue) { //y is worse than x => delete y
-                    elementToDelete = qElement;
-                    break;
-                } else if (qElement.getValue() > newValue) { //y is better than x => delete x
-                    elementToDelete = x;
-                    break;
-                } else {  //qElement has the same value as x (or is x)
-                    if (!sameValueTwice) { //first time meeting this element (it can be x or a y with the same rank)
-                        sameValueTwice = true; 
-                    } else{               //second time meeting this element (x and y are equivalent => delete one of them)
-                        elementToDelete = x;
-                        break;
-                    }
-                }
-            }
-        }
-        if (elementToDelete != null) {
-            pq.remove(elementToDelete);
-        }
-        return pq;
-    }
   
 }
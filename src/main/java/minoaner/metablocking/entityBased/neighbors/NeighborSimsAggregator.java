@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.entityBased.neighbors;
+
+import it.unimi.dsi.fastutil.longs.Long2FloatMap;
+import it.unimi.dsi.fastutil.longs.Long2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import minoaner.utils.ComparableIntFloatPair;
+import scala.Tuple2;
+
+/**
+ * Lazily emits the partial neighbor similarities of a partition, pre-aggregated on the map side.
+ * The partial similarities of the input records are added to a primitive map, keyed by the packed (entityId, candidateId) pair,
+ * where the ones of the same pair are combined with a {@link NeighborSimsCombiner} (e.g., summed, or only the maximum one is kept).
+ * When the map reaches its capacity, its entries are emitted as (entityId, (candidateId, sim)) and the map is cleared,
+ * so at most one buffer of partial similarities is kept in memory per task, and each pair is emitted at most once per flush.
+ * Usage: valueSims.mapPartitionsToPair(it -&gt; new NeighborSimsAggregator&lt;&gt;(it, emitter, combiner, capacity))
+ * @author vefthym
+ * @param <T> the type of the input records
+ */
+public class NeighborSimsAggregator<T> implements Iterator<Tuple2<Integer, ComparableIntFloatPair>> {
+
+    /**
+     * Adds the partial neighbor similarities of an input record to an aggregator.
+     */
+    public interface Emitter<T> {
+        void emit(T record, NeighborSimsAggregator<T> aggregator);
+    }
+
+    private final Iterator<T> input;
+    private final Emitter<T> emitter;
+    private final NeighborSimsCombiner combiner;
+    private final int capacity;
+    private final Long2FloatOpenHashMap buffer; //key: the packed (entityId, candidateId) pair, value: their aggregated partial similarity
+    private ObjectIterator<Long2FloatMap.Entry> flushing; //not null, while the buffer is being emitted
+
+    /**
+     * @param input the records of a partition
+     * @param emitter adds the partial neighbor similarities of each input record
+     * @param combiner combines the partial similarities of the same pair
+     * @param capacity the number of pairs in the buffer, after which it is flushed
+     */
+    public NeighborSimsAggregator(Iterator<T> input, Emitter<T> emitter, NeighborSimsCombiner combiner, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the buffer should be positive, but it is "+capacity);
+        }
+        this.input = input;
+        this.emitter = emitter;
+        this.combiner = combiner;
+        this.capacity = capacity;
+        this.buffer = new Long2FloatOpenHashMap();
+        this.buffer.defaultReturnValue(combiner.identity());
+    }
+
+    /**
+     * Adds a partial neighbor similarity of candidateId to entityId.
+     * @param entityId
+     * @param candidateId
+     * @param sim
+     */
+    public void add(int entityId, int candidateId, float sim) {
+        long pair = pack(entityId, candidateId);
+        buffer.put(pair, combiner.combine(buffer.get(pair), sim));
+    }
+
+    /**
+     * Adds the partial neighbor similarities of an entity and a candidate match,
+     * given their in-neighbors eInNeighbors[eStart..eEnd) and cInNeighbors[cStart..cEnd):
+     * each in-neighbor of the entity (ein) and each in-neighbor of the candidate (cin) get (ein, (cin, sim)) and (cin, (ein, sim)),
+     * where sim is the contribution of valueSim, according to the combiner.
+     */
+    public void addAll(int[] eInNeighbors, int eStart, int eEnd, int[] cInNeighbors, int cStart, int cEnd, float valueSim) {
+        float sim = combiner.contribution(valueSim, eEnd - eStart, cEnd - cStart);
+        for (int c = cStart; c < cEnd; ++c) { //for each in-neighbor of the candidate match of the current entity
+            int inNeighborOfCandidate = cInNeighbors[c];
+            for (int e = eStart; e < eEnd; ++e) {  //for each in-neighbor of the current entity
+                int eInNeighbor = eInNeighbors[e];
+                add(eInNeighbor, inNeighborOfCandidate, sim);
+                add(inNeighborOfCandidate, eInNeighbor, sim);
+            }
+        }
+    }
+
+    static long pack(int entityId, int candidateId) {
+        return ((long) entityId << 32) | (candidateId & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (flushing != null) {
+            if (flushing.hasNext()) {
+                return true;
+            }
+            flushing = null;
+            buffer.clear(); //keeps the allocated table for the next batch
+        }
+        while (buffer.size() < capacity && input.hasNext()) {
+            emitter.emit(input.next(), this);
+        }
+        if (buffer.isEmpty()) {
+            return false;
+        }
+        flushing = buffer.long2FloatEntrySet().fastIterator();
+        return true;
+    }
+
+    @Override
+    public Tuple2<Integer, ComparableIntFloatPair> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Long2FloatMap.Entry pair = flushing.next();
+        long key = pair.getLongKey();
+        return new Tuple2<>((int) (key >> 32), new ComparableIntFloatPair((int) key, pair.getFloatValue()));
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.entityBased.neighbors;
+
+import java.io.Serializable;
+
+/**
+ * Defines how the neighbor similarity of two entities is computed from the value similarities of their pairs of out-neighbors:
+ * each pair of out-neighbors contributes a partial similarity, and the partial similarities of the same pair of entities are combined.
+ * Partial similarities are combined in any order (on the map side and in the shuffle), so combine should be associative and commutative.
+ * @author vefthym
+ */
+public interface NeighborSimsCombiner extends Serializable {
+
+    /**
+     * The neighbor similarity is the sum of the value similarities of the pairs of out-neighbors.
+     */
+    NeighborSimsCombiner SUM = new Sum();
+
+    /**
+     * The neighbor similarity is the maximum value similarity of a pair of out-neighbors.
+     */
+    NeighborSimsCombiner MAX = new Max();
+
+    /**
+     * The neighbor similarity is the sum of the value similarities of the pairs of out-neighbors,
+     * each divided by the number of pairs of entities it contributes to (i.e., the product of the numbers of in-neighbors of the out-neighbors),
+     * so that out-neighbors with many in-neighbors do not dominate the neighbor similarities.
+     */
+    NeighborSimsCombiner WEIGHTED_SUM = new WeightedSum();
+
+    /**
+     * @param valueSim the value similarity of a pair of out-neighbors
+     * @param eInNeighbors the number of in-neighbors of the first out-neighbor
+     * @param cInNeighbors the number of in-neighbors of the second out-neighbor
+     * @return the partial similarity that this pair of out-neighbors contributes to each pair of their in-neighbors
+     */
+    float contribution(float valueSim, int eInNeighbors, int cInNeighbors);
+
+    /**
+     * @return the neighbor similarity of two (partial) neighbor similarities of the same pair of entities
+     */
+    float combine(float sim1, float sim2);
+
+    /**
+     * @return the neutral element of combine
+     */
+    float identity();
+
+    /**
+     * @return true, if combine keeps the maximum, so that only the top-K candidates need to be kept while combining
+     */
+    boolean isMax();
+
+
+    static class Sum implements NeighborSimsCombiner {
+        @Override
+        public float contribution(float valueSim, int eInNeighbors, int cInNeighbors) {
+            return valueSim;
+        }
+
+        @Override
+        public float combine(float sim1, float sim2) {
+            return sim1 + sim2;
+        }
+
+        @Override
+        public float identity() {
+            return 0;
+        }
+
+        @Override
+        public boolean isMax() {
+            return false;
+        }
+
+        private Object readResolve() { //keep the constants singletons after deserialization
+            return SUM;
+        }
+    }
+
+    static class Max implements NeighborSimsCombiner {
+        @Override
+        public float contribution(float valueSim, int eInNeighbors, int cInNeighbors) {
+            return valueSim;
+        }
+
+        @Override
+        public float combine(float sim1, float sim2) {
+            return Math.max(sim1, sim2);
+        }
+
+        @Override
+        public float identity() {
+            return Float.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public boolean isMax() {
+            return true;
+        }
+
+        private Object readResolve() {
+            return MAX;
+        }
+    }
+
+    static class WeightedSum extends Sum {
+        @Override
+        public float contribution(float valueSim, int eInNeighbors, int cInNeighbors) {
+            return valueSim / ((float) eInNeighbors * cInNeighbors);
+        }
+
+        private Object readResolve() {
+            return WEIGHTED_SUM;
+        }
+    }
+
+}
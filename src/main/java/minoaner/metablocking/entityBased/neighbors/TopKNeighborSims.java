@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.entityBased.neighbors;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import minoaner.utils.ComparableIntFloatPair;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.InNeighborIndex;
+import minoaner.utils.IntFloatTopK;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.broadcast.Broadcast;
+import scala.Tuple2;
+
+/**
+ * Computes the top-K neighbor candidates of each entity from the top-K value candidates of its out-neighbors.
+ * For each entity e, each of its value candidates c, each in-neighbor of e (ein) and each in-neighbor of c (cin),
+ * (e,c) contributes a partial neighbor similarity to (ein,cin) and to (cin,ein).
+ * The partial similarities of each pair are combined with a {@link NeighborSimsCombiner} (e.g., sum or max),
+ * first on the map side (see {@link NeighborSimsAggregator}) and then per entity, where the top-K candidates are kept.
+ * This is the single implementation behind the getTopKNeighborSims methods of CNPARCS, CNPNeighbors and CNPNeighborsUnnormalized.
+ * Usage: new TopKNeighborSims(NeighborSimsCombiner.SUM, K).run(valueSims, inNeighbors_BV).mapValues(topK -&gt; topK.toIntArrayList())
+ * @author vefthym
+ */
+public class TopKNeighborSims implements Serializable {
+
+    /**
+     * The number of (entity, candidate) pairs that each task pre-aggregates in memory, before emitting their partial neighbor similarities to the shuffle.
+     */
+    static final int PRE_AGGREGATION_CAPACITY = 1 << 16;
+
+    private final NeighborSimsCombiner combiner;
+    private final int K;
+
+    /**
+     * @param combiner combines the partial neighbor similarities of the same pair of entities
+     * @param K the K for topK candidate matches
+     */
+    public TopKNeighborSims(NeighborSimsCombiner combiner, int K) {
+        this.combiner = combiner;
+        this.K = K;
+    }
+
+    /**
+     * @param valueSims the topK value candidates per entity
+     * @param inNeighbors_BV the in-neighbors of each entity of both collections, collected in the driver
+     * @return key: entityId, value: its top-K neighbor candidates, ranked in descending neighbor similarity
+     */
+    public JavaPairRDD<Integer, IntFloatTopK> run(JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV) {
+        return getTopK(getPartialNeighborSims(valueSims, inNeighbors_BV));
+    }
+
+    /**
+     * The same as run with a broadcast in-neighbor index, but with the in-neighbors in a (partitioned) RDD, so that nothing passes through the driver.
+     * @param valueSims the topK value candidates per entity
+     * @param inNeighbors the in-neighbors of each entity of both collections, ideally co-partitioned with valueSims
+     * @return key: entityId, value: its top-K neighbor candidates, ranked in descending neighbor similarity
+     */
+    public JavaPairRDD<Integer, IntFloatTopK> run(JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors) {
+        return getTopK(getPartialNeighborSims(valueSims, inNeighbors));
+    }
+
+    /**
+     * @param topK the output of run
+     * @return key: entityId, value: its top-K neighbor candidates, in descending neighbor similarity
+     */
+    public static JavaPairRDD<Integer, IntArrayList> toCandidates(JavaPairRDD<Integer, IntFloatTopK> topK) {
+        return topK.mapValues(x -> x.toIntArrayList());
+    }
+
+    /**
+     * @param topK the output of run
+     * @return key: entityId, value: its top-K neighbor candidates with their neighbor similarities, in descending neighbor similarity
+     */
+    public static JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> toCandidatesWithScores(JavaPairRDD<Integer, IntFloatTopK> topK) {
+        return topK.mapValues(x -> x.toInt2FloatLinkedOpenHashMap());
+    }
+
+    /**
+     * Emits the partial neighbor similarities, pre-aggregated per partition.
+     * @param valueSims the topK value candidates per entity
+     * @param inNeighbors_BV the in-neighbors of each entity of both collections, collected in the driver
+     * @return key: entityId, value: (candidateId, partial neighbor similarity)
+     */
+    JavaPairRDD<Integer, ComparableIntFloatPair> getPartialNeighborSims(JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, Broadcast<InNeighborIndex> inNeighbors_BV) {
+        NeighborSimsCombiner combiner = this.combiner; //do not serialize this with the closure
+        return valueSims.mapPartitionsToPair(partition -> {
+            InNeighborIndex inNeighbors = inNeighbors_BV.value();
+            int[] neighbors = inNeighbors.neighbors();
+            NeighborSimsAggregator.Emitter<Tuple2<Integer,Int2FloatLinkedOpenHashMap>> emitter = (x, aggregator) -> {
+                int eId = x._1();
+                int eStart = inNeighbors.start(eId), eEnd = inNeighbors.end(eId);
+                if (eStart == eEnd) {
+                    return; //no in-neighbors
+                }
+                ObjectIterator<Int2FloatMap.Entry> it = x._2().int2FloatEntrySet().fastIterator();
+                while (it.hasNext()) { //for each candidate match of eId from values
+                    Int2FloatMap.Entry eIdValueCandidate = it.next();
+                    int candidateId = eIdValueCandidate.getIntKey();
+                    int cStart = inNeighbors.start(candidateId), cEnd = inNeighbors.end(candidateId);
+                    if (cStart == cEnd) {
+                        continue; //go to next candidate match. this one does not have in-neighbors
+                    }
+                    aggregator.addAll(neighbors, eStart, eEnd, neighbors, cStart, cEnd, eIdValueCandidate.getFloatValue());
+                }
+            };
+            return new NeighborSimsAggregator<>(partition, emitter, combiner, PRE_AGGREGATION_CAPACITY);
+        });
+    }
+
+    /**
+     * The same as getPartialNeighborSims with a broadcast in-neighbor index, but with the in-neighbors in a (partitioned) RDD, so that they never pass through the driver.
+     * The in-neighbors of each entity are joined with its value candidates (without a shuffle, if they are co-partitioned),
+     * and then the in-neighbors of each candidate are joined with them (only the candidate side is shuffled).
+     * @param valueSims the topK value candidates per entity
+     * @param inNeighbors the in-neighbors of each entity of both collections, e.g., from RelationsRank.getInNeighbors
+     * @return key: entityId, value: (candidateId, partial neighbor similarity)
+     */
+    JavaPairRDD<Integer, ComparableIntFloatPair> getPartialNeighborSims(JavaPairRDD<Integer,Int2FloatLinkedOpenHashMap> valueSims, JavaPairRDD<Integer,IntArrayList> inNeighbors) {
+        NeighborSimsCombiner combiner = this.combiner;
+        Partitioner partitioner = inNeighbors.partitioner().isPresent() ? inNeighbors.partitioner().get() : EntityIdPartitioner.forRDD(valueSims);
+        return valueSims
+            .join(inNeighbors, partitioner) //entities without in-neighbors are dropped
+            .flatMapToPair(x -> {
+                IntArrayList eInNeighbors = x._2()._2();
+                List<Tuple2<Integer, Tuple2<Float, IntArrayList>>> candidates = new ArrayList<>(x._2()._1().size()); //key: candidateId, value: (valueSim, in-neighbors of eId)
+                ObjectIterator<Int2FloatMap.Entry> it = x._2()._1().int2FloatEntrySet().fastIterator();
+                while (it.hasNext()) {
+                    Int2FloatMap.Entry eIdValueCandidate = it.next();
+                    candidates.add(new Tuple2<>(eIdValueCandidate.getIntKey(), new Tuple2<>(eIdValueCandidate.getFloatValue(), eInNeighbors)));
+                }
+                return candidates.iterator();
+            })
+            .join(inNeighbors, partitioner) //candidates without in-neighbors are dropped
+            .mapPartitionsToPair(partition -> new NeighborSimsAggregator<Tuple2<Integer, Tuple2<Tuple2<Float, IntArrayList>, IntArrayList>>>(partition, (x, aggregator) -> {
+                IntArrayList eInNeighbors = x._2()._1()._2(), inNeighborsOfCandidate = x._2()._2();
+                aggregator.addAll(eInNeighbors.elements(), 0, eInNeighbors.size(), inNeighborsOfCandidate.elements(), 0, inNeighborsOfCandidate.size(), x._2()._1()._1());
+            }, combiner, PRE_AGGREGATION_CAPACITY));
+    }
+
+    /**
+     * Combines the partial neighbor similarities of each candidate and keeps the top-K candidates per entity.
+     * If the combiner keeps the maximum, only the top-K candidates are kept while combining (see IntFloatTopK.maxPerId),
+     * otherwise all the candidates of an entity are combined first.
+     * @param partialNeighborSims the output of getPartialNeighborSims
+     * @return key: entityId, value: its top-K candidates, ranked in descending neighbor similarity
+     */
+    JavaPairRDD<Integer, IntFloatTopK> getTopK(JavaPairRDD<Integer, ComparableIntFloatPair> partialNeighborSims) {
+        NeighborSimsCombiner combiner = this.combiner;
+        int K = this.K;
+        if (combiner.isMax()) {
+            return partialNeighborSims.combineByKey(//should be faster than groupByKey (keeps local top-Ks before shuffling, like a combiner in MapReduce)
+                //createCombiner
+                x-> {
+                    IntFloatTopK initial = IntFloatTopK.maxPerId(K);
+                    initial.offer(x.getEntityId(), x.getValue());
+                    return initial;
+                }
+                //mergeValue
+                , (IntFloatTopK topK, ComparableIntFloatPair x) -> {
+                    topK.offer(x.getEntityId(), x.getValue()); //keeps the max value per candidate
+                    return topK;
+                }
+                //mergeCombiners
+                , (IntFloatTopK topK1, IntFloatTopK topK2) -> topK1.addAll(topK2)
+            ).mapValues(topK -> topK.rank());
+        }
+        return partialNeighborSims.combineByKey(
+            //createCombiner
+            x-> {
+                Int2FloatOpenHashMap initial = new Int2FloatOpenHashMap();
+                initial.put(x.getEntityId(), x.getValue());
+                return initial;
+            }
+            //mergeValue
+            , (Int2FloatOpenHashMap existingSims, ComparableIntFloatPair x) -> {
+                combine(existingSims, x.getEntityId(), x.getValue(), combiner);
+                return existingSims;
+            }
+            //mergeCombiners
+            , (Int2FloatOpenHashMap sims1, Int2FloatOpenHashMap sims2) -> {
+                ObjectIterator<Int2FloatMap.Entry> it = sims2.int2FloatEntrySet().fastIterator();
+                while (it.hasNext()) {
+                    Int2FloatMap.Entry x = it.next();
+                    combine(sims1, x.getIntKey(), x.getFloatValue(), combiner);
+                }
+                return sims1;
+            }
+        ).mapValues(x -> IntFloatTopK.select(x, K)); //keep the top-K candidates, based on their value
+    }
+
+    private static void combine(Int2FloatOpenHashMap sims, int candidateId, float sim, NeighborSimsCombiner combiner) {
+        if (combiner instanceof NeighborSimsCombiner.Sum) { //also WEIGHTED_SUM
+            sims.addTo(candidateId, sim); //a single lookup. a new candidate starts from the default return value, i.e., 0, also after Kryo deserialization
+        } else {
+            sims.defaultReturnValue(combiner.identity()); //set again, since it is not kept by the Kryo serializer
+            sims.put(candidateId, combiner.combine(sims.get(candidateId), sim));
+        }
+    }
+
+}
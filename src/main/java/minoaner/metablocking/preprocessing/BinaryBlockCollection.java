@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.preprocessing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import minoaner.utils.Utils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import scala.Tuple2;
+
+/**
+ * A binary format for the blocking collection, to skip parsing the text format (blockId\tD1ids;D2ids) in every run.
+ * Blocks are stored in a SequenceFile of (blockId, block) records. Each block starts with a header of the number of D1 and D2 entities,
+ * followed by the sorted D1 ids and then the sorted absolute values of the (negative) D2 ids, each delta-encoded and packed as varints.
+ * The blocks are stored row-wise (one record per block, with its sizes in its own header), instead of a single header with the sizes of all the blocks
+ * followed by their id columns, since block filtering processes one whole block at a time, and independent records keep the file splittable
+ * by the standard SequenceFile input format, so that each task reads only its own split.
+ * Use {@link #main(java.lang.String[])} to convert a blocking collection from the text format.
+ * @author vefthym
+ */
+public class BinaryBlockCollection {
+
+    /**
+     * Writes the given blocks in the binary format.
+     * @param blocks key: blockId, value: entityIds (D1 ids are positive, D2 ids are negative)
+     * @param outputPath
+     */
+    public static void write(JavaPairRDD<Integer, IntArrayList> blocks, String outputPath) {
+        blocks.mapToPair(block -> new Tuple2<>(new IntWritable(block._1()), new BytesWritable(encode(block._2()))))
+              .saveAsHadoopFile(outputPath, IntWritable.class, BytesWritable.class, SequenceFileOutputFormat.class);
+    }
+
+    /**
+     * Reads blocks written by {@link #write(JavaPairRDD, String)}.
+     * @param jsc
+     * @param inputPath
+     * @return key: blockId, value: entityIds, i.e., the sorted D1 ids, followed by the D2 ids in descending order (-1, -2, ...)
+     */
+    public static JavaPairRDD<Integer, IntArrayList> read(JavaSparkContext jsc, String inputPath) {
+        return jsc.sequenceFile(inputPath, IntWritable.class, BytesWritable.class)
+                .mapToPair(block -> new Tuple2<>(block._1().get(), decode(block._2().getBytes(), block._2().getLength())));
+    }
+
+    /**
+     * Converts a blocking collection from the text format to the binary format.
+     * @param jsc
+     * @param textInputPath
+     * @param binaryOutputPath
+     */
+    public static void convert(JavaSparkContext jsc, String textInputPath, String binaryOutputPath) {
+        write(new BlockFilteringAdvanced().parseBlockCollection(jsc.textFile(textInputPath)), binaryOutputPath);
+    }
+
+    /**
+     * Checks if the given path holds a blocking collection in the binary format, by looking for the SequenceFile magic bytes in its first data file.
+     * @param inputPath a file or a directory
+     * @return true, if the blocking collection in inputPath is in the binary format
+     * @throws IOException
+     */
+    public static boolean isBinary(String inputPath) throws IOException {
+        Path path = new Path(inputPath);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        FileStatus[] files = fs.isDirectory(path) ? fs.listStatus(path) : new FileStatus[]{fs.getFileStatus(path)};
+        for (FileStatus file : files) {
+            String name = file.getPath().getName();
+            if (file.isDirectory() || name.startsWith("_") || name.startsWith(".") || file.getLen() < 3) {
+                continue; //skip _SUCCESS, checksums and empty files
+            }
+            byte[] magic = new byte[3];
+            try (InputStream in = fs.open(file.getPath())) {
+                if (in.read(magic) != magic.length) {
+                    return false;
+                }
+            }
+            return magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+        }
+        return false;
+    }
+
+    /**
+     * Encodes a block as: numD1, numD2, the deltas of the sorted D1 ids, the deltas of the sorted absolute values of the D2 ids (all as varints).
+     * @param entities the entityIds of a block
+     * @return the encoded block
+     */
+    public static byte[] encode(IntArrayList entities) {
+        final int size = entities.size();
+        int[] d1 = new int[size];
+        int[] d2 = new int[size];
+        int numD1 = 0, numD2 = 0;
+        for (int i = 0; i < size; ++i) {
+            int entityId = entities.getInt(i);
+            if (entityId >= 0) {
+                d1[numD1++] = entityId;
+            } else {
+                d2[numD2++] = -(entityId+1); //0 for -1, 1 for -2, ... (no overflow for Integer.MIN_VALUE)
+            }
+        }
+        Arrays.sort(d1, 0, numD1);
+        Arrays.sort(d2, 0, numD2);
+
+        byte[] bytes = new byte[5 * (size + 2)]; //the maximum length of 2+size varints
+        int pos = writeVarInt(bytes, 0, numD1);
+        pos = writeVarInt(bytes, pos, numD2);
+        pos = writeDeltas(bytes, pos, d1, numD1);
+        pos = writeDeltas(bytes, pos, d2, numD2);
+        return Arrays.copyOf(bytes, pos);
+    }
+
+    /**
+     * Decodes a block encoded by {@link #encode(IntArrayList)}.
+     * @param bytes
+     * @param length the number of valid bytes (e.g., BytesWritable.getLength())
+     * @return the entityIds of the block, i.e., the sorted D1 ids, followed by the D2 ids in descending order (-1, -2, ...)
+     */
+    public static IntArrayList decode(byte[] bytes, int length) {
+        int[] pos = new int[]{0};
+        int numD1 = readVarInt(bytes, pos);
+        int numD2 = readVarInt(bytes, pos);
+        int[] entities = new int[numD1 + numD2];
+        int previous = 0;
+        for (int i = 0; i < numD1; ++i) {
+            previous += readVarInt(bytes, pos);
+            entities[i] = previous;
+        }
+        previous = 0;
+        for (int i = numD1; i < entities.length; ++i) {
+            previous += readVarInt(bytes, pos);
+            entities[i] = -previous-1;
+        }
+        if (pos[0] != length) {
+            throw new IllegalArgumentException("Corrupted block: read "+pos[0]+" bytes out of "+length);
+        }
+        return IntArrayList.wrap(entities);
+    }
+
+    private static int writeDeltas(byte[] bytes, int pos, int[] sortedValues, int size) {
+        int previous = 0;
+        for (int i = 0; i < size; ++i) {
+            pos = writeVarInt(bytes, pos, sortedValues[i] - previous);
+            previous = sortedValues[i];
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a non-negative int in 1-5 bytes, 7 bits per byte, the least significant first.
+     */
+    private static int writeVarInt(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarInt(byte[] bytes, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = bytes[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupted block: malformed varint");
+    }
+
+    public static void main(String[] args) {
+        String tmpPath;
+        String inputPath;
+        String outputPath;
+
+        if (args.length >= 2) {
+            tmpPath = "/file:/tmp";
+            inputPath = args[0];
+            outputPath = args[1];
+
+            // delete existing output directories
+            try {
+                Utils.deleteHDFSPath(outputPath);
+            } catch (IOException | URISyntaxException ex) {
+                Logger.getLogger(BinaryBlockCollection.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else {
+            System.out.println("You can convert a blocking collection to the binary format with the following arguments:"
+                    + "0: inputBlocking (text format: blockId\tD1ids;D2ids)"
+                    + "1: outputPath (binary format)");
+            return;
+        }
+
+        String appName = "Converting "+inputPath.substring(inputPath.lastIndexOf("/", inputPath.length()-2)+1)+" to binary blocks";
+        SparkSession spark = Utils.setUpSpark(appName, 288, 8, 3, tmpPath);
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+
+        convert(jsc, inputPath, outputPath);
+
+        spark.stop();
+    }
+
+}
@@ -17,10 +17,14 @@
 package minoaner.metablocking.preprocessing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
-import minoaner.utils.ComparableIntFloatPair;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.GrowableLongArray;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
@@ -35,92 +39,383 @@ public class BlockFilteringAdvanced {
     
     static final Logger logger = Logger.getLogger(BlockFilteringAdvanced.class.getName());
     
+    public static final double FILTERING_RATIO = 0.8; //the default ratio of the blocks of each entity that are kept (the ones with the smallest inverse utility)
+    public static final int ADAPTIVE_GRID_SIZE = 20; //the adaptive mode considers the ratios 1/20, 2/20, ..., 20/20
+    
+    private double lastRatio = FILTERING_RATIO;
+    
     public JavaPairRDD<Integer, IntArrayList> run(JavaRDD<String> blockingInput, LongAccumulator BLOCK_ASSIGNMENTS) {        
-        JavaPairRDD<Integer,IntArrayList> parsedBlocks = parseBlockCollection(blockingInput);        
-        
-        JavaPairRDD<Integer,Tuple2<Integer,Integer>> entityBlocks = getEntityBlocksAdvanced(parsedBlocks);       
+        return run(parseBlockCollection(blockingInput), BLOCK_ASSIGNMENTS);
+    }
+    
+    /**
+     * Runs block filtering on an already parsed blocking collection, e.g., one read by {@link BinaryBlockCollection#read}.
+     * @param parsedBlocks key: blockId, value: entityIds
+     * @param BLOCK_ASSIGNMENTS
+     * @return an entity index, i.e., key: entityId, value: [blockIds] (filtered)
+     */
+    public JavaPairRDD<Integer, IntArrayList> run(JavaPairRDD<Integer,IntArrayList> parsedBlocks, LongAccumulator BLOCK_ASSIGNMENTS) {
+        return run(parsedBlocks, BLOCK_ASSIGNMENTS, FILTERING_RATIO);
+    }
+    
+    /**
+     * Runs block filtering, keeping the given ratio of the blocks of each entity (at least one block per entity).
+     * @param parsedBlocks key: blockId, value: entityIds
+     * @param BLOCK_ASSIGNMENTS
+     * @param ratio the ratio of the blocks of each entity that are kept, in (0,1]; 1 skips block filtering
+     * @return an entity index, i.e., key: entityId, value: [blockIds] (filtered)
+     */
+    public JavaPairRDD<Integer, IntArrayList> run(JavaPairRDD<Integer,IntArrayList> parsedBlocks, LongAccumulator BLOCK_ASSIGNMENTS, double ratio) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("The block filtering ratio should be in (0,1], but it is "+ratio);
+        }
+        lastRatio = ratio;
+        JavaPairRDD<Integer,Long> entityBlocks = getEntityBlocksAdvanced(parsedBlocks);       
 
-        JavaPairRDD<Integer, IntArrayList> entityIndex = getEntityIndex(entityBlocks, BLOCK_ASSIGNMENTS);
+        JavaPairRDD<Integer, IntArrayList> entityIndex = getEntityIndex(entityBlocks, BLOCK_ASSIGNMENTS, ratio);
         parsedBlocks.unpersist();
         return  entityIndex;
     }
     
+    /**
+     * Runs block filtering with the largest ratio in {1/ADAPTIVE_GRID_SIZE, 2/ADAPTIVE_GRID_SIZE, ..., 1} 
+     * that leaves at most targetComparisons comparisons in the blocks from the entity index (as counted by {@link BlocksFromEntityIndex}),
+     * or with the smallest ratio, if no ratio meets the target. The ratio is picked in a separate job, which reuses the shuffle of block filtering.
+     * @param parsedBlocks key: blockId, value: entityIds
+     * @param BLOCK_ASSIGNMENTS
+     * @param targetComparisons the maximum number of comparisons after block filtering
+     * @return an entity index, i.e., key: entityId, value: [blockIds] (filtered)
+     */
+    public JavaPairRDD<Integer, IntArrayList> runAdaptive(JavaPairRDD<Integer,IntArrayList> parsedBlocks, LongAccumulator BLOCK_ASSIGNMENTS, long targetComparisons) {
+        JavaPairRDD<Integer, GrowableLongArray> groupedEntityBlocks = groupEntityBlocks(getEntityBlocksAdvanced(parsedBlocks));
+        
+        long[] comparisons = estimateComparisons(groupedEntityBlocks);
+        int ratioIndex = 0;
+        for (int j = 0; j < ADAPTIVE_GRID_SIZE; ++j) {
+            System.out.println("Block filtering ratio "+gridRatio(j)+": "+comparisons[j]+" comparisons");
+            if (comparisons[j] <= targetComparisons) {
+                ratioIndex = j;
+            }
+        }
+        lastRatio = gridRatio(ratioIndex);
+        System.out.println("Adaptive block filtering ratio: "+lastRatio+" (target: "+targetComparisons+" comparisons)");
+        
+        JavaPairRDD<Integer, IntArrayList> entityIndex = filterEntityBlocks(groupedEntityBlocks, BLOCK_ASSIGNMENTS, lastRatio);
+        parsedBlocks.unpersist();
+        return entityIndex;
+    }
+    
+    /**
+     * @return the ratio of the blocks of each entity that were kept in the last run (e.g., the one picked by {@link #runAdaptive})
+     */
+    public double getLastRatio() {
+        return lastRatio;
+    }
+    
     //resulting key:blockID, value:entityIds array                            
     public JavaPairRDD<Integer,IntArrayList> parseBlockCollection(JavaRDD<String> blockingInput) {
         System.out.println("Parsing the blocking collection...");
         return blockingInput
-            .map(line -> line.split("\t")) //split to [blockId, [entityIds]]
-            .filter(line -> line.length == 2) //only keep lines of this format
-            .mapToPair(pair -> {                
-                int blockId = Integer.parseInt(pair[0]);
-                String[] entities = pair[1].replaceFirst(";", "").split("#");
-                if (entities == null || entities.length == 0) {
-                    return null;
+            .mapToPair(line -> parseBlock(line))
+            .filter(x -> x != null); //only keep lines of the format blockId\tentityIds
+    }
+    
+    /**
+     * Parses a line of the blocking collection, of the form blockId\tD1ids;D2ids, where ids are separated by '#'. 
+     * The line is scanned once and the ids are written straight into an int array, without creating intermediate Strings.
+     * @param line a line of the blocking collection
+     * @return (blockId, [entityIds]), or null if the line does not have exactly two tab-separated fields
+     */
+    public static Tuple2<Integer,IntArrayList> parseBlock(String line) {
+        final int length = line.length();
+        final int tab = line.indexOf('\t');
+        if (tab < 0) {
+            return null;
+        }
+        int end = line.indexOf('\t', tab+1);
+        if (end < 0) {
+            end = length;
+        } else {
+            for (int i = end; i < length; ++i) {
+                if (line.charAt(i) != '\t') {
+                    return null; //more than two fields
                 }
-                List<Integer> outputEntities = new ArrayList<>(); //possible (but not really probable) cause of OOM (memory errors) if huge blocks exist
-                for (String entity : entities) {
-                    if (entity.isEmpty()) continue; //in case the last entityId finishes with '#'
-                    Integer entityId = Integer.parseInt(entity);			                    
-                    outputEntities.add(entityId);
+            }
+        }
+        if (end == tab+1) {
+            return null; //no entityIds field
+        }
+        int blockId = parseInt(line, 0, tab);
+        
+        int[] entities = new int[16];
+        int numEntities = 0;
+        int start = tab+1;
+        for (int i = start; i <= end; ++i) {
+            if (i == end || line.charAt(i) == '#' || line.charAt(i) == ';') {
+                if (i > start) { //skip the empty ids, e.g., after the last '#'
+                    if (numEntities == entities.length) {
+                        entities = Arrays.copyOf(entities, entities.length << 1);
+                    }
+                    entities[numEntities++] = parseInt(line, start, i);
                 }
-                return new Tuple2<>(blockId, new IntArrayList(outputEntities.stream().mapToInt(i->i).toArray()));
-            })
-            .filter(x -> x != null);
+                start = i+1;
+            }
+        }
+        if (numEntities < entities.length) {
+            entities = Arrays.copyOf(entities, numEntities); //the callers iterate over elements(), so there should be no spare capacity
+        }
+        return new Tuple2<>(blockId, IntArrayList.wrap(entities));
+    }
+    
+    /**
+     * Parses the decimal integer in line[from, to), like Integer.parseInt(line.substring(from, to)), without creating the substring.
+     */
+    private static int parseInt(String line, int from, int to) {
+        if (from == to) {
+            throw new NumberFormatException("Empty id in line: "+line);
+        }
+        boolean negative = line.charAt(from) == '-';
+        int i = (negative || line.charAt(from) == '+') ? from+1 : from;
+        if (i == to) {
+            throw new NumberFormatException("For input string: \""+line.substring(from, to)+"\"");
+        }
+        final int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        final int multmin = limit / 10;
+        int result = 0; //accumulated negatively, to reach Integer.MIN_VALUE
+        for (; i < to; ++i) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multmin || result*10 < limit + digit) { //not a digit, or overflow
+                throw new NumberFormatException("For input string: \""+line.substring(from, to)+"\"");
+            }
+            result = result*10 - digit;
+        }
+        return negative ? result : -result;
     }
     
     //input: a JavaPairRDD of key:blockID, value:entityIds array        
-    //output: a JavaPairRDD of key:entityID, value: (blockId, blockUtility)
-    private JavaPairRDD<Integer, Tuple2<Integer, Integer>> getEntityBlocksAdvanced(JavaPairRDD<Integer, IntArrayList> parsedBlocks) {
+    //output: a JavaPairRDD of key:entityID, value: (blockUtility, blockId) packed in a long (see packBlockUtility)
+    private JavaPairRDD<Integer, Long> getEntityBlocksAdvanced(JavaPairRDD<Integer, IntArrayList> parsedBlocks) {
         return parsedBlocks.flatMapToPair(block -> {
-            int[] entities = block._2().elements();                
-            int D1counter = (int) block._2().stream().filter(entityId -> entityId >=0).count();            
-            int D2counter = (int) entities.length-D1counter;            
+            int[] entities = block._2().elements();
+            int numEntities = block._2().size();
+            int D1counter = 0;
+            for (int i = 0; i < numEntities; ++i) {
+                if (entities[i] >= 0) {
+                    D1counter++;
+                }
+            }
+            int D2counter = numEntities-D1counter;            
             
-            List<Tuple2<Integer, Tuple2<Integer,Integer>>> mapResults = new ArrayList<>();
-                        
             if (D1counter == 0 || D2counter == 0) {                
-                return mapResults.iterator(); //empty
+                return Collections.emptyIterator();
             } 
             
             int inverseUtility = Math.max(D1counter, D2counter);
-            Tuple2<Integer,Integer> blockUtility = new Tuple2<>(block._1(), inverseUtility);  
-                        
-            for (Integer entityId : entities) {
-                mapResults.add(new Tuple2<>(entityId, blockUtility));
-            }
-            return mapResults.iterator();
+            Long blockUtility = packBlockUtility(inverseUtility, block._1());
+            
+            return new EntityBlocksIterator(entities, numEntities, blockUtility); //emit lazily, instead of materializing a list of all the entities
         });        
     }
     
+    /**
+     * Emits (entityId, blockUtility) for each entity of a block.
+     */
+    private static class EntityBlocksIterator implements Iterator<Tuple2<Integer, Long>> {
+        private final int[] entities;
+        private final int numEntities;
+        private final Long blockUtility;
+        private int i = 0;
+
+        EntityBlocksIterator(int[] entities, int numEntities, Long blockUtility) {
+            this.entities = entities;
+            this.numEntities = numEntities;
+            this.blockUtility = blockUtility;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < numEntities;
+        }
+
+        @Override
+        public Tuple2<Integer, Long> next() {
+            if (i >= numEntities) {
+                throw new NoSuchElementException();
+            }
+            return new Tuple2<>(entities[i++], blockUtility);
+        }
+    }
+    
+    /**
+     * Packs the inverse utility of a block (in the high 32 bits) with its blockId (in the low 32 bits), 
+     * so that the natural order of the packed longs is by inverse utility, and then by blockId (for equal utilities).
+     */
+    static long packBlockUtility(int inverseUtility, int blockId) {
+        return ((long) inverseUtility << 32) | (blockId & 0xFFFFFFFFL);
+    }
+    
+    static int unpackBlockId(long blockUtility) {
+        return (int) blockUtility;
+    }
+    
+    static int unpackInverseUtility(long blockUtility) {
+        return (int) (blockUtility >>> 32);
+    }
     
-    //input: a JavaPairRDD of key:entityID, value: (blockId, blockUtility)
+    
+    //input: a JavaPairRDD of key:entityID, value: (blockUtility, blockId) packed in a long
     //output: a JavaPairRDD of key:entityId, value: [blockIds] (filtered), i.e., an entity index
-    private JavaPairRDD<Integer, IntArrayList> getEntityIndex(JavaPairRDD<Integer,Tuple2<Integer,Integer>> entityBlocks,  LongAccumulator BLOCK_ASSIGNMENTS) {        
+    //the kept blocks of each entity are the ones with the smallest inverse utility (ties are broken by blockId), in no particular order
+    private JavaPairRDD<Integer, IntArrayList> getEntityIndex(JavaPairRDD<Integer,Long> entityBlocks,  LongAccumulator BLOCK_ASSIGNMENTS) {        
+        return getEntityIndex(entityBlocks, BLOCK_ASSIGNMENTS, FILTERING_RATIO);
+    }
+    
+    private JavaPairRDD<Integer, IntArrayList> getEntityIndex(JavaPairRDD<Integer,Long> entityBlocks,  LongAccumulator BLOCK_ASSIGNMENTS, double ratio) {        
+        return filterEntityBlocks(groupEntityBlocks(entityBlocks), BLOCK_ASSIGNMENTS, ratio);
+    }
+    
+    //input: a JavaPairRDD of key:entityID, value: (blockUtility, blockId) packed in a long
+    //output: a JavaPairRDD of key:entityID, value: all the (blockUtility, blockId) of this entity
+    private JavaPairRDD<Integer, GrowableLongArray> groupEntityBlocks(JavaPairRDD<Integer,Long> entityBlocks) {
+        //no map-side combine: an entity rarely appears in many blocks of the same partition, so the shuffle carries exactly one (int, long) per block assignment
+        return entityBlocks.combineByKey(
+                block -> new GrowableLongArray().add(block),
+                (blocks, block) -> blocks.add(block),
+                (blocks1, blocks2) -> blocks1.addAll(blocks2),
+                EntityIdPartitioner.forRDD(entityBlocks),
+                false,
+                null);
+    }
+    
+    /**
+     * @return the number of blocks that an entity with numBlocks blocks keeps, for the given ratio (at least one)
+     */
+    static int getBlocksToKeep(int numBlocks, double ratio) {
+        return Math.min(numBlocks, Math.max(1, (int) Math.round(ratio * numBlocks)));
+    }
+    
+    //input: a JavaPairRDD of key:entityID, value: all the (blockUtility, blockId) of this entity
+    //output: a JavaPairRDD of key:entityId, value: [blockIds] (filtered), i.e., an entity index
+    private JavaPairRDD<Integer, IntArrayList> filterEntityBlocks(JavaPairRDD<Integer, GrowableLongArray> groupedEntityBlocks, LongAccumulator BLOCK_ASSIGNMENTS, double ratio) {
         System.out.println("Creating the entity index...");
         
-        return entityBlocks.groupByKey()
-            .mapValues(blocks -> {                               
-                //sort the tuples by value (inverseUtility)
-                PriorityQueue<ComparableIntFloatPair> inverseBlocks = new PriorityQueue<>();
-                int numBlocks = 0;
-                for (Tuple2<Integer,Integer> block : blocks) {
-                    inverseBlocks.add(new ComparableIntFloatPair(block._1(), block._2()));                    
-                    numBlocks++;
+        return groupedEntityBlocks
+            .mapValues(blocks -> {
+                final int numBlocks = blocks.size();
+                final int blocksToKeep = getBlocksToKeep(numBlocks, ratio);
+                
+                //keep blocksToKeep blocks per entity, in linear (expected) time
+                long[] packedBlocks = blocks.elements();
+                selectSmallest(packedBlocks, numBlocks, blocksToKeep);
+                int[] entityIndex = new int[blocksToKeep];
+                for (int i = 0; i < blocksToKeep; ++i) {
+                    entityIndex[i] = unpackBlockId(packedBlocks[i]);
                 }
-                final int MAX_BLOCKS = (int) Math.round(0.8 * numBlocks); 
+                BLOCK_ASSIGNMENTS.add(blocksToKeep);
 
-                //keep MAX_BLOCKS blocks per entity
-                IntArrayList entityIndex = new IntArrayList();                
-                int indexedBlocks = 0;
-                while (!inverseBlocks.isEmpty()) {
-                    int blockId = inverseBlocks.poll().getEntityId();
-                    entityIndex.add(blockId);
-                    if (++indexedBlocks == MAX_BLOCKS) { break;} //comment-out this line to skip block filtering
-                }                
-                BLOCK_ASSIGNMENTS.add(entityIndex.size());
-
-                return entityIndex;
+                return IntArrayList.wrap(entityIndex);
             });    
     }
     
+    static double gridRatio(int j) {
+        return (double) (j+1) / ADAPTIVE_GRID_SIZE;
+    }
+    
+    /**
+     * Computes the number of comparisons in the blocks from the entity index, for each ratio of the adaptive grid, in a single job.
+     * For each (entity, block), it finds the first ratio of the grid, for which the entity keeps the block. 
+     * Then, for each block, it builds a histogram of those first ratios for the D1 and the D2 entities, 
+     * whose prefix sums give the number of D1 and D2 entities of the block for each ratio.
+     * @param groupedEntityBlocks key: entityId, value: all the (blockUtility, blockId) of this entity
+     * @return the total number of comparisons for each ratio of the grid (see gridRatio)
+     */
+    static long[] estimateComparisons(JavaPairRDD<Integer, GrowableLongArray> groupedEntityBlocks) {
+        final int G = ADAPTIVE_GRID_SIZE;
+        return groupedEntityBlocks
+            .flatMapToPair(x -> {
+                int entityId = x._1();
+                int numBlocks = x._2().size();
+                long[] sortedBlocks = Arrays.copyOf(x._2().elements(), numBlocks); //do not reorder the shuffled blocks
+                Arrays.sort(sortedBlocks);
+                List<Tuple2<Integer,Integer>> firstRatios = new ArrayList<>(numBlocks);
+                int rank = 0;
+                for (int j = 0; j < G; ++j) {
+                    int blocksToKeep = getBlocksToKeep(numBlocks, gridRatio(j));
+                    for (; rank < blocksToKeep; ++rank) {
+                        //D1 entities add to the first half of the histogram, D2 entities to the second
+                        firstRatios.add(new Tuple2<>(unpackBlockId(sortedBlocks[rank]), entityId >= 0 ? j : G + j));
+                    }
+                }
+                return firstRatios.iterator();
+            })
+            .aggregateByKey(new int[2*G], 
+                (histogram, j) -> {histogram[j]++; return histogram;}, 
+                (histogram1, histogram2) -> {
+                    for (int j = 0; j < 2*G; ++j) {
+                        histogram1[j] += histogram2[j];
+                    }
+                    return histogram1;
+                })
+            .values()
+            .map(histogram -> {
+                long[] comparisons = new long[G];
+                long D1entities = 0, D2entities = 0;
+                for (int j = 0; j < G; ++j) {
+                    D1entities += histogram[j];
+                    D2entities += histogram[G + j];
+                    comparisons[j] = D1entities * D2entities;
+                }
+                return comparisons;
+            })
+            .fold(new long[G], (comparisons1, comparisons2) -> {
+                long[] sum = new long[G];
+                for (int j = 0; j < G; ++j) {
+                    sum[j] = comparisons1[j] + comparisons2[j];
+                }
+                return sum;
+            });
+    }
+    
+    /**
+     * Rearranges the first size elements of the array, so that its first k elements are the k smallest ones (in no particular order). 
+     * Uses quickselect with a median-of-three pivot, i.e., linear expected time and no extra memory.
+     * @param a the array
+     * @param size the number of valid elements in a
+     * @param k the number of smallest elements to move to the start of a
+     */
+    static void selectSmallest(long[] a, int size, int k) {
+        int left = 0, right = size-1;
+        while (left < right && k > left && k <= right) {
+            //median-of-three pivot, moved to a[right]
+            int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) swap(a, mid, left);
+            if (a[right] < a[left]) swap(a, right, left);
+            if (a[mid] < a[right]) swap(a, mid, right);
+            long pivot = a[right];
+            
+            //Lomuto partition: a[left..store-1] < pivot <= a[store+1..right]
+            int store = left;
+            for (int i = left; i < right; ++i) {
+                if (a[i] < pivot) {
+                    swap(a, i, store++);
+                }
+            }
+            swap(a, store, right);
+            
+            if (store == k || store == k-1) {
+                return; //the first k elements are the k smallest ones
+            } else if (store > k) {
+                right = store-1;
+            } else {
+                left = store+1;
+            }
+        }
+    }
+    
+    private static void swap(long[] a, int i, int j) {
+        long tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
+    }
+    
 }
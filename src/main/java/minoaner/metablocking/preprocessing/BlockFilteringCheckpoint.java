@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+/**
+ * Caches the results of block filtering (the entity index) and of BlocksFromEntityIndex (the filtered blocks) across runs,
+ * so that runs that only change the parameters of CNP or matching (e.g., K, N, valueFactor) skip their shuffles.
+ * The cache of a blocking collection is stored in a sub-directory of the cache directory, named after a fingerprint of
+ * the input files (paths, lengths and modification times) and the filtering ratio, so any change in those invalidates it.
+ * The RDDs are stored in the format of {@link BinaryBlockCollection}, so the ids in each cached list are sorted.
+ * @author vefthym
+ */
+public class BlockFilteringCheckpoint {
+
+    private static final int VERSION = 1; //increase this, if the format of the cache changes
+    private static final String ENTITY_INDEX = "entityIndex";
+    private static final String BLOCKS_FROM_EI = "blocksFromEI";
+    private static final String STATS = "stats"; //written last, i.e., the cache is complete only if this file exists
+
+    private final Path path;
+    private long blockAssignments, cleanBlocks, numComparisons, numEntities;
+
+    /**
+     * @param cacheDir the directory holding the caches of all the blocking collections
+     * @param inputPath the blocking collection (text or binary)
+     * @param filteringRatio the ratio of blocks that block filtering keeps per entity
+     * @throws IOException
+     */
+    public BlockFilteringCheckpoint(String cacheDir, String inputPath, double filteringRatio) throws IOException {
+        this(cacheDir, inputPath, String.valueOf(filteringRatio));
+    }
+
+    /**
+     * @param cacheDir the directory holding the caches of all the blocking collections
+     * @param inputPath the blocking collection (text or binary)
+     * @param filtering the block filtering parameter, i.e., a ratio or adaptive:targetComparisons
+     * @throws IOException
+     */
+    public BlockFilteringCheckpoint(String cacheDir, String inputPath, String filtering) throws IOException {
+        this.path = new Path(cacheDir, fingerprint(inputPath, filtering));
+    }
+
+    /**
+     * Computes a fingerprint of the input blocking collection and the filtering ratio.
+     * @param inputPath a file or a directory
+     * @param filteringRatio
+     * @return a hex MD5 hash of the version of the cache, the filtering ratio, and the path, length and modification time of each input file
+     * @throws IOException
+     */
+    public static String fingerprint(String inputPath, double filteringRatio) throws IOException {
+        return fingerprint(inputPath, String.valueOf(filteringRatio));
+    }
+
+    /**
+     * Computes a fingerprint of the input blocking collection and the block filtering parameter.
+     * @param inputPath a file or a directory
+     * @param filtering the block filtering parameter, i.e., a ratio or adaptive:targetComparisons
+     * @return a hex MD5 hash of the version of the cache, the filtering parameter, and the path, length and modification time of each input file
+     * @throws IOException
+     */
+    public static String fingerprint(String inputPath, String filtering) throws IOException {
+        Path input = new Path(inputPath);
+        FileSystem fs = input.getFileSystem(new Configuration());
+        List<String> files = new ArrayList<>();
+        RemoteIterator<LocatedFileStatus> it = fs.listFiles(input, true);
+        while (it.hasNext()) {
+            LocatedFileStatus file = it.next();
+            files.add(file.getPath().toUri().getPath()+"\t"+file.getLen()+"\t"+file.getModificationTime());
+        }
+        Collections.sort(files); //do not depend on the listing order
+
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(("v"+VERSION+"\t"+filtering+"\n").getBytes(StandardCharsets.UTF_8));
+            for (String file : files) {
+                md5.update((file+"\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : md5.digest()) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); //every Java platform supports MD5
+        }
+    }
+
+    /**
+     * Checks if a complete cache exists for this input and filtering ratio, and if so, loads its statistics.
+     * @return true, if the entity index and the filtered blocks can be loaded from the cache
+     * @throws IOException
+     */
+    public boolean exists() throws IOException {
+        FileSystem fs = path.getFileSystem(new Configuration());
+        Path statsPath = new Path(path, STATS);
+        if (!fs.exists(statsPath)) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(statsPath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] stat = line.split("=");
+                if (stat.length != 2) continue;
+                long value = Long.parseLong(stat[1]);
+                switch (stat[0]) {
+                    case "blockAssignments": blockAssignments = value; break;
+                    case "cleanBlocks": cleanBlocks = value; break;
+                    case "numComparisons": numComparisons = value; break;
+                    case "numEntities": numEntities = value; break;
+                }
+            }
+        }
+        return true;
+    }
+
+    public JavaPairRDD<Integer, IntArrayList> loadEntityIndex(JavaSparkContext jsc) {
+        return BinaryBlockCollection.read(jsc, new Path(path, ENTITY_INDEX).toString());
+    }
+
+    public JavaPairRDD<Integer, IntArrayList> loadBlocksFromEI(JavaSparkContext jsc) {
+        return BinaryBlockCollection.read(jsc, new Path(path, BLOCKS_FROM_EI).toString());
+    }
+
+    /**
+     * Stores the entity index, the filtered blocks and their statistics (the values of the accumulators that they updated).
+     * Any incomplete cache for the same fingerprint (e.g., from a failed run) is overwritten.
+     * @param entityIndex the output of BlockFilteringAdvanced
+     * @param blocksFromEI the output of BlocksFromEntityIndex
+     * @param blockAssignments the value of the block assignments accumulator of BlockFilteringAdvanced
+     * @param cleanBlocks the value of the clean blocks accumulator of BlocksFromEntityIndex
+     * @param numComparisons the value of the comparisons accumulator of BlocksFromEntityIndex
+     * @param numEntities the number of entities in the entity index
+     * @throws IOException
+     */
+    public void save(JavaPairRDD<Integer, IntArrayList> entityIndex, JavaPairRDD<Integer, IntArrayList> blocksFromEI,
+            long blockAssignments, long cleanBlocks, long numComparisons, long numEntities) throws IOException {
+        FileSystem fs = path.getFileSystem(new Configuration());
+        if (fs.exists(path)) {
+            fs.delete(path, true);
+        }
+        BinaryBlockCollection.write(entityIndex, new Path(path, ENTITY_INDEX).toString());
+        BinaryBlockCollection.write(blocksFromEI, new Path(path, BLOCKS_FROM_EI).toString());
+        try (Writer writer = new OutputStreamWriter(fs.create(new Path(path, STATS)), StandardCharsets.UTF_8)) {
+            writer.write("blockAssignments="+blockAssignments+"\n");
+            writer.write("cleanBlocks="+cleanBlocks+"\n");
+            writer.write("numComparisons="+numComparisons+"\n");
+            writer.write("numEntities="+numEntities+"\n");
+        }
+        this.blockAssignments = blockAssignments;
+        this.cleanBlocks = cleanBlocks;
+        this.numComparisons = numComparisons;
+        this.numEntities = numEntities;
+    }
+
+    public String getPath() {
+        return path.toString();
+    }
+
+    public long getBlockAssignments() {
+        return blockAssignments;
+    }
+
+    public long getCleanBlocks() {
+        return cleanBlocks;
+    }
+
+    public long getNumComparisons() {
+        return numComparisons;
+    }
+
+    public long getNumEntities() {
+        return numEntities;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.relationsWeighting;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import java.io.Serializable;
+
+/**
+ * Aggregates the statistics of a relation that are needed for its support and discriminability in a single pass,
+ * i.e., the number of its instances and the number of its distinct objects.
+ * The distinct objects are either counted exactly (with a set of objectIds), or estimated with a HyperLogLog++ sketch of fixed size
+ * (the same as in Spark's countApproxDistinct), to bound the memory for relations with millions of objects.
+ * @author vefthym
+ */
+public class RelationStatistics implements Serializable {
+
+    private long numInstances;
+    private final IntOpenHashSet objects; //null, if the distinct objects are estimated
+    private final HyperLogLogPlus sketch; //null, if the distinct objects are counted exactly
+
+    /**
+     * @param hllPrecision 0, to count the distinct objects exactly, or the precision p of a HyperLogLog++ sketch with 2^p registers (4 to 18),
+     * to estimate them with a relative standard deviation of about 1.04/sqrt(2^p)
+     */
+    public RelationStatistics(int hllPrecision) {
+        this(0, hllPrecision == 0 ? new IntOpenHashSet() : null, hllPrecision == 0 ? null : newSketch(hllPrecision));
+    }
+
+    /**
+     * Restores serialized statistics; exactly one of objects and sketch should be non-null.
+     */
+    public RelationStatistics(long numInstances, IntOpenHashSet objects, HyperLogLogPlus sketch) {
+        this.numInstances = numInstances;
+        this.objects = objects;
+        this.sketch = sketch;
+    }
+
+    private static HyperLogLogPlus newSketch(int hllPrecision) {
+        if (hllPrecision < 4 || hllPrecision > 18) {
+            throw new IllegalArgumentException("The HyperLogLog precision should be between 4 and 18 (or 0 for exact counts), but it is "+hllPrecision);
+        }
+        return new HyperLogLogPlus(hllPrecision, 0);
+    }
+
+    /**
+     * Adds a chunk of instances of the relation.
+     * @param pairs packed (subjectId, objectId) pairs, see RelationsRank.packPair
+     * @return this
+     */
+    public RelationStatistics add(long[] pairs) {
+        numInstances += pairs.length;
+        for (long pair : pairs) {
+            int objectId = RelationsRank.unpackObject(pair);
+            if (objects != null) {
+                objects.add(objectId);
+            } else {
+                sketch.offerHashed(hash(objectId));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the statistics of other, which should be in the same mode (exact or with the same precision).
+     * @param other
+     * @return this
+     */
+    public RelationStatistics merge(RelationStatistics other) {
+        numInstances += other.numInstances;
+        if (objects != null) {
+            objects.addAll(other.objects);
+        } else {
+            try {
+                sketch.addAll(other.sketch);
+            } catch (CardinalityMergeException ex) {
+                throw new IllegalArgumentException("Cannot merge sketches of different precisions", ex);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The finalization step of MurmurHash3, to spread the (dense) objectIds over 64 bits, as HyperLogLog++ expects.
+     */
+    private static long hash(int objectId) {
+        long h = objectId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public long getNumInstances() {
+        return numInstances;
+    }
+
+    /**
+     * @return the exact number of distinct objects, or its estimate, if a sketch is used
+     */
+    public long getNumDistinctObjects() {
+        return objects != null ? objects.size() : sketch.cardinality();
+    }
+
+    /**
+     * @return the set of distinct objectIds (not to be modified), or null, if a sketch is used
+     */
+    public IntOpenHashSet getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return the HyperLogLog++ sketch of the objectIds, or null, if they are counted exactly
+     */
+    public HyperLogLogPlus getSketch() {
+        return sketch;
+    }
+
+}
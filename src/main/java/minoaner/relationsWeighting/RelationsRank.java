@@ -16,8 +16,9 @@
 package minoaner.relationsWeighting;
 
 import com.google.common.collect.Ordering;
-import it.unimi.dsi.fastutil.floats.FloatOpenHashSet;
-import it.unimi.dsi.fastutil.floats.FloatSet;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import java.io.Serializable;
@@ -26,12 +27,15 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
-import minoaner.utils.ComparableIntFloatPair;
-import minoaner.utils.ComparableIntFloatPairDescendingComparator;
+import minoaner.utils.EncodedTriple;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdDictionary;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.GrowableLongArray;
 import minoaner.utils.Utils;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -57,44 +61,132 @@ public class RelationsRank implements Serializable {
      * @return 
      */
     public Map<Integer,IntArrayList> run(JavaRDD<String> rawTriples, String SEPARATOR, JavaRDD<String> entityIdsRDD, float MIN_SUPPORT_THRESHOLD, int N, boolean positiveIds, JavaSparkContext jsc) {
-        //rawTriples.persist(StorageLevel.MEMORY_AND_DISK_SER());        
-        
-        //List<String> subjects = Utils.getEntityUrlsFromEntityRDDInOrder(rawTriples, SEPARATOR); //a list of (distinct) subject URLs, keeping insertion order (from original triples file)        
-        //Object2IntOpenHashMap<String> subjects = Utils.getEntityIdsMapping(rawTriples, SEPARATOR);
-        Object2IntOpenHashMap<String> entityIds = Utils.readEntityIdsMapping(entityIdsRDD, positiveIds);
-        System.out.println("Found "+entityIds.size()+" entities in collection "+ (positiveIds?"1":"2"));
+        return run(rawTriples, SEPARATOR, entityIdsRDD, MIN_SUPPORT_THRESHOLD, N, positiveIds, 0, jsc);
+    }
+    
+    /**
+     * return a map of topN neighbors per entity (reversed to point to in-neighbors (values) having the key entity as their top out-neighbor)
+     * @param rawTriples
+     * @param SEPARATOR
+     * @param entityIdsRDD
+     * @param MIN_SUPPORT_THRESHOLD
+     * @param N topN neighbors per entity
+     * @param positiveIds
+     * @param hllPrecision 0 for exact counts of the distinct objects of each relation, otherwise the precision of the HyperLogLog++ sketches that estimate them
+     * @param jsc
+     * @return 
+     */
+    public Map<Integer,IntArrayList> run(JavaRDD<String> rawTriples, String SEPARATOR, JavaRDD<String> entityIdsRDD, float MIN_SUPPORT_THRESHOLD, int N, boolean positiveIds, int hllPrecision, JavaSparkContext jsc) {
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = getInNeighbors(rawTriples, SEPARATOR, entityIdsRDD, MIN_SUPPORT_THRESHOLD, N, positiveIds, hllPrecision, null, jsc);
+        Map<Integer, IntArrayList> result = inNeighbors.collectAsMap();
+        inNeighbors.unpersist();
+        return result;
+    }
+    
+    /**
+     * return the topN neighbors per entity (reversed to point to in-neighbors (values) having the key entity as their top out-neighbor), 
+     * as a persisted RDD, to be used without collecting it (e.g., joined with RDDs partitioned by the same partitioner). 
+     * The caller should unpersist it, when it is no longer needed.
+     * @param rawTriples
+     * @param SEPARATOR
+     * @param entityIdsRDD
+     * @param MIN_SUPPORT_THRESHOLD
+     * @param N topN neighbors per entity
+     * @param positiveIds
+     * @param hllPrecision 0 for exact counts of the distinct objects of each relation, otherwise the precision of the HyperLogLog++ sketches that estimate them
+     * @param partitioner the partitioner of the result (by entityId), or null for an EntityIdPartitioner with the default parallelism
+     * @param jsc
+     * @return key: entityId, value: its in-neighbors
+     */
+    public JavaPairRDD<Integer,IntArrayList> getInNeighbors(JavaRDD<String> rawTriples, String SEPARATOR, JavaRDD<String> entityIdsRDD, float MIN_SUPPORT_THRESHOLD, int N, boolean positiveIds, int hllPrecision, Partitioner partitioner, JavaSparkContext jsc) {
+        EntityIdDictionary entityIds = EntityIdDictionary.load(entityIdsRDD, positiveIds);
+        EncodedTriples triples = EncodedTriples.encode(rawTriples, SEPARATOR, entityIds);
+        entityIds.unpersist(); //the triples have been materialized
+        JavaPairRDD<Integer,IntArrayList> inNeighbors = getInNeighbors(triples, MIN_SUPPORT_THRESHOLD, N, hllPrecision, partitioner, jsc);
+        triples.unpersist(); //inNeighbors has been materialized
+        return inNeighbors;
+    }
+    
+    /**
+     * The same as getInNeighbors with the raw triples, but with triples that have been tokenized and encoded once (e.g., also used by the label matching heuristic).
+     * @param triples the encoded triples of a collection
+     * @param MIN_SUPPORT_THRESHOLD
+     * @param N topN neighbors per entity
+     * @param hllPrecision 0 for exact counts of the distinct objects of each relation, otherwise the precision of the HyperLogLog++ sketches that estimate them
+     * @param partitioner the partitioner of the result (by entityId), or null for an EntityIdPartitioner with the default parallelism
+     * @param jsc
+     * @return key: entityId, value: its in-neighbors
+     */
+    public JavaPairRDD<Integer,IntArrayList> getInNeighbors(EncodedTriples triples, float MIN_SUPPORT_THRESHOLD, int N, int hllPrecision, Partitioner partitioner, JavaSparkContext jsc) {
+        return getInNeighbors(getEncodedTriples(triples), triples.getPredicates(), triples.getNumEntities(), triples.isPositive(), MIN_SUPPORT_THRESHOLD, N, hllPrecision, partitioner, jsc);
+    }
+    
+    /**
+     * return a map of topN neighbors per entity (reversed to point to in-neighbors (values) having the key entity as their top out-neighbor)
+     * @param triples the encoded triples of a collection
+     * @param MIN_SUPPORT_THRESHOLD
+     * @param N topN neighbors per entity
+     * @param hllPrecision 0 for exact counts of the distinct objects of each relation, otherwise the precision of the HyperLogLog++ sketches that estimate them
+     * @param jsc
+     * @return 
+     */
+    public Map<Integer,IntArrayList> run(EncodedTriples triples, float MIN_SUPPORT_THRESHOLD, int N, int hllPrecision, JavaSparkContext jsc) {
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = getInNeighbors(triples, MIN_SUPPORT_THRESHOLD, N, hllPrecision, null, jsc);
+        Map<Integer, IntArrayList> result = inNeighbors.collectAsMap();
+        inNeighbors.unpersist();
+        return result;
+    }
+    
+    /**
+     * Ranks the relations of the encoded triples and returns the in-neighbors of each entity through its top-N relations.
+     * @param encodedTriples the output of getEncodedTriples
+     * @param predicates the predicate of each predicateId
+     * @param numEntities the number of entities of the collection
+     * @param positiveIds
+     * @return key: entityId, value: its in-neighbors
+     */
+    private JavaPairRDD<Integer,IntArrayList> getInNeighbors(JavaPairRDD<Integer,long[]> encodedTriples, String[] predicates, long numEntities, boolean positiveIds, float MIN_SUPPORT_THRESHOLD, int N, int hllPrecision, Partitioner partitioner, JavaSparkContext jsc) {
+        System.out.println("Found "+numEntities+" entities in collection "+ (positiveIds?"1":"2"));
         
-        long numEntitiesSquared = (long)entityIds.keySet().size();
+        long numEntitiesSquared = numEntities;
         numEntitiesSquared *= numEntitiesSquared;
         
-        Broadcast<Object2IntOpenHashMap<String>> entityIds_BV = jsc.broadcast(entityIds);
-         
-        JavaPairRDD<String,List<Tuple2<Integer, Integer>>> relationIndex = getRelationIndex(rawTriples, SEPARATOR, entityIds_BV); //a list of (s,o) for each predicate      
+        encodedTriples.persist(StorageLevel.MEMORY_AND_DISK_SER());
+        JavaPairRDD<Integer,long[]> relationIndex = getEncodedRelationIndex(encodedTriples); //packed (s,o) pairs per relation and partition
         
         //rawTriples.unpersist();        
         relationIndex.persist(StorageLevel.MEMORY_AND_DISK_SER());                
                         
-        List<String> relationsRank = getRelationsRank(relationIndex, MIN_SUPPORT_THRESHOLD, numEntitiesSquared);      
-        System.out.println("Top-5 relations in collection "+(positiveIds?"1: ":"2: ")+Arrays.toString(relationsRank.subList(0, Math.min(5,relationsRank.size())).toArray()));
-        
-        JavaPairRDD<Integer, IntArrayList> topOutNeighbors = getTopOutNeighborsPerEntity(relationIndex, relationsRank, N, positiveIds); //action
+        List<Integer> relationsRank = getEncodedRelationsRank(relationIndex, MIN_SUPPORT_THRESHOLD, numEntitiesSquared, hllPrecision);      
+        encodedTriples.unpersist(); //relationIndex has been materialized by the statistics
+        List<String> topRelations = new ArrayList<>();
+        for (int relationId : relationsRank.subList(0, Math.min(5,relationsRank.size()))) {
+            topRelations.add(predicates[relationId]);
+        }
+        System.out.println("Top-5 relations in collection "+(positiveIds?"1: ":"2: ")+Arrays.toString(topRelations.toArray()));
         
-        relationIndex.unpersist(); 
+        Broadcast<int[]> relationRanks_BV = jsc.broadcast(getEncodedRelationRanks(relationsRank, predicates.length));
+        JavaPairRDD<Integer, IntArrayList> topOutNeighbors = getTopOutNeighborsPerEntityFromEncodedIndex(relationIndex, relationRanks_BV, N, positiveIds);
         
         //reverse the outNeighbors, to get in neighbors
-        Map<Integer, IntArrayList> inNeighbors =
+        JavaPairRDD<Integer,Integer> reversedNeighbors =
         topOutNeighbors.flatMapToPair(x -> { //reverse the neighbor pairs from (in,[out1,out2,out3]) to (out1,in), (out2,in), (out3,in)
                     List<Tuple2<Integer,Integer>> inNeighbs = new ArrayList<>();
                     for (int outNeighbor : x._2()) {
                         inNeighbs.add(new Tuple2<>(outNeighbor, x._1()));
                     }
                     return inNeighbs.iterator();
-                })
+                });
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = reversedNeighbors
                 .aggregateByKey(new IntOpenHashSet(), 
+                        partitioner != null ? partitioner : EntityIdPartitioner.forRDD(reversedNeighbors),
                         (x,y) -> {x.add(y); return x;}, 
                         (x,y) -> {x.addAll(y); return x;})
-                .mapValues(x-> new IntArrayList(x))
-                .collectAsMap();
+                .mapValues(x-> new IntArrayList(x));
+        inNeighbors.setName("inNeighbors"+(positiveIds?"1":"2")).persist(StorageLevel.MEMORY_AND_DISK_SER());
+        System.out.println(inNeighbors.count()+" entities have in-neighbors in collection "+(positiveIds?"1":"2")); //action
+        
+        relationIndex.unpersist(); 
         
         return inNeighbors;
     }
@@ -125,8 +217,8 @@ public class RelationsRank implements Serializable {
     public JavaPairRDD<String,List<Tuple2<Integer, Integer>>> getRelationIndex(JavaRDD<String> rawTriples, String SEPARATOR, Broadcast<Object2IntOpenHashMap<String>> subjects_BV) {        
         return rawTriples        
         .mapToPair(line -> {
-          String[] spo = line.toLowerCase().replaceAll(" \\.$", "").split(SEPARATOR); //lose the ending " ." from valid .nt files
-          if (spo.length != 3) {
+          String[] spo = parseTriple(line, SEPARATOR);
+          if (spo == null) {
               return null;
           }
           int subjectId = subjects_BV.value().getInt(Utils.encodeURIinUTF8(spo[0])); //replace subject url with entity id (subjects belongs to subjects by default)
@@ -157,6 +249,203 @@ public class RelationsRank implements Serializable {
         });        
     }
     
+    /**
+     * Splits a triple to its subject, predicate and object, after lowercasing it (see Utils.tokenizeTriple). 
+     * Triples whose object contains the separator (e.g., literals with spaces) are not valid here, as when the raw triples were split on the separator.
+     * @param line a triple
+     * @param SEPARATOR
+     * @return the subject, predicate and object of the triple, or null, if the line is not a valid triple
+     */
+    private static String[] parseTriple(String line, String SEPARATOR) {
+        String[] spo = Utils.tokenizeTriple(line, SEPARATOR); //loses the ending " ." from valid .nt files
+        return spo != null && !spo[2].contains(SEPARATOR) ? spo : null;
+    }
+    
+    /**
+     * Packs a (subjectId, objectId) pair in a long, the subjectId in the high 32 bits.
+     * @param subjectId
+     * @param objectId an entity id, or -1, if the object is not an entity
+     * @return the packed pair
+     */
+    public static long packPair(int subjectId, int objectId) {
+        return ((long) subjectId << 32) | (objectId & 0xFFFFFFFFL);
+    }
+    
+    public static int unpackSubject(long pair) {
+        return (int) (pair >> 32);
+    }
+    
+    public static int unpackObject(long pair) {
+        return (int) pair;
+    }
+    
+    /**
+     * Encodes the triples as (predicateId, packed (subjectId, objectId) pairs), see packPair. 
+     * Instead of grouping all the pairs of a predicate (a single huge, skewed group for popular predicates), 
+     * each partition emits one packed chunk of pairs per predicate that it contains. 
+     * @param triples the encoded triples of a collection
+     * @return key: predicateId, value: a chunk of packed (subjectId, objectId) pairs, with objectId -1, if the object is not an entity
+     */
+    public JavaPairRDD<Integer,long[]> getEncodedTriples(EncodedTriples triples) {
+        return triples.getTriples().mapPartitionsToPair(partition -> {
+            Int2ObjectOpenHashMap<GrowableLongArray> pairsPerPredicate = new Int2ObjectOpenHashMap<>();
+            while (partition.hasNext()) {
+                EncodedTriple triple = partition.next();
+                addPair(pairsPerPredicate, triple.getPredicateId(), packPair(triple.getSubjectId(), triple.getObjectId()));
+            }
+            return toChunks(pairsPerPredicate).iterator();
+        });
+    }
+    
+    private static void addPair(Int2ObjectOpenHashMap<GrowableLongArray> pairsPerPredicate, int predicateId, long pair) {
+        GrowableLongArray pairs = pairsPerPredicate.get(predicateId);
+        if (pairs == null) {
+            pairs = new GrowableLongArray();
+            pairsPerPredicate.put(predicateId, pairs);
+        }
+        pairs.add(pair);
+    }
+    
+    private static List<Tuple2<Integer,long[]>> toChunks(Int2ObjectOpenHashMap<GrowableLongArray> pairsPerPredicate) {
+        List<Tuple2<Integer,long[]>> chunks = new ArrayList<>(pairsPerPredicate.size());
+        for (Int2ObjectMap.Entry<GrowableLongArray> predicate : pairsPerPredicate.int2ObjectEntrySet()) {
+            GrowableLongArray pairs = predicate.getValue();
+            chunks.add(new Tuple2<>(predicate.getIntKey(), Arrays.copyOf(pairs.elements(), pairs.size())));
+        }
+        return chunks;
+    }
+    
+    /**
+     * The encoded equivalent of getRelationIndex: keeps only the relations (properties that have more object values than datatype values) 
+     * and their (subject, object) pairs with an entity object. The majority voting only shuffles two counters per predicate and partition. 
+     * @param encodedTriples the output of getEncodedTriples
+     * @return key: relationId (the predicateId), value: a chunk of packed (subjectId, objectId) pairs linked by this relation (the chunks of a relation are not merged)
+     */
+    public JavaPairRDD<Integer,long[]> getEncodedRelationIndex(JavaPairRDD<Integer,long[]> encodedTriples) {
+        Map<Integer,long[]> counts = encodedTriples
+                .aggregateByKey(new long[2], //numInstances, relationCount
+                        (count, pairs) -> {
+                            count[0] += pairs.length;
+                            for (long pair : pairs) {
+                                if (unpackObject(pair) != -1) {
+                                    count[1]++;
+                                }
+                            }
+                            return count;
+                        },
+                        (count1, count2) -> {
+                            count1[0] += count2[0];
+                            count1[1] += count2[1];
+                            return count1;
+                        })
+                .collectAsMap();
+        IntOpenHashSet relations = new IntOpenHashSet();
+        for (Map.Entry<Integer,long[]> count : counts.entrySet()) {
+            long numInstances = count.getValue()[0], relationCount = count.getValue()[1];
+            if (relationCount > (numInstances-relationCount)) { //majority voting (is this property used more as a relation or as a datatype property?
+                relations.add(count.getKey().intValue());
+            }
+        }
+        Broadcast<IntOpenHashSet> relations_BV = JavaSparkContext.fromSparkContext(encodedTriples.context()).broadcast(relations);
+        
+        return encodedTriples
+                .filter(x -> relations_BV.value().contains(x._1().intValue()))
+                .mapValues(pairs -> {
+                    int numRelations = 0;
+                    for (long pair : pairs) {
+                        if (unpackObject(pair) != -1) {
+                            numRelations++;
+                        }
+                    }
+                    if (numRelations == pairs.length) {
+                        return pairs;
+                    }
+                    long[] relationsOnly = new long[numRelations];
+                    int i = 0;
+                    for (long pair : pairs) {
+                        if (unpackObject(pair) != -1) {
+                            relationsOnly[i++] = pair; //(subject, object) pairs connected with this relation
+                        }
+                    }
+                    return relationsOnly;
+                })
+                .filter(x -> x._2().length > 0);
+    }
+    
+    /**
+     * The encoded equivalent of getRelationsRank, with exact counts of distinct objects. 
+     * @param relationIndex the output of getEncodedRelationIndex
+     * @param minSupportThreshold the minimum support threshold allowed, used for filtering relations with lower support
+     * @param numEntitiesSquared
+     * @return a list of relationIds sorted in descending score
+     */
+    public List<Integer> getEncodedRelationsRank(JavaPairRDD<Integer,long[]> relationIndex, float minSupportThreshold, long numEntitiesSquared) {
+        return getEncodedRelationsRank(relationIndex, minSupportThreshold, numEntitiesSquared, 0);
+    }
+    
+    /**
+     * The encoded equivalent of getRelationsRank. The statistics of all relations are computed in a single job (one shuffle), 
+     * and the relations are normalized and ranked in the driver. 
+     * @param relationIndex the output of getEncodedRelationIndex
+     * @param minSupportThreshold the minimum support threshold allowed, used for filtering relations with lower support
+     * @param numEntitiesSquared
+     * @param hllPrecision 0 for exact counts of distinct objects, otherwise the precision of the HyperLogLog++ sketches that estimate them (see RelationStatistics)
+     * @return a list of relationIds sorted in descending score
+     */
+    public List<Integer> getEncodedRelationsRank(JavaPairRDD<Integer,long[]> relationIndex, float minSupportThreshold, long numEntitiesSquared, int hllPrecision) {
+        return rankRelations(getRelationStatistics(relationIndex, hllPrecision), minSupportThreshold, numEntitiesSquared);
+    }
+    
+    /**
+     * Computes the number of instances and the number of distinct objects of each relation in a single pass (action).
+     * @param relationIndex the output of getEncodedRelationIndex
+     * @param hllPrecision 0 for exact counts of distinct objects, otherwise the precision of the HyperLogLog++ sketches that estimate them (see RelationStatistics)
+     * @return key: relationId, value: (numInstances, numDistinctObjects)
+     */
+    public Map<Integer,long[]> getRelationStatistics(JavaPairRDD<Integer,long[]> relationIndex, int hllPrecision) {
+        return relationIndex
+                .aggregateByKey(new RelationStatistics(hllPrecision), 
+                        (stats, pairs) -> stats.add(pairs), 
+                        (stats1, stats2) -> stats1.merge(stats2))
+                .mapValues(stats -> new long[]{stats.getNumInstances(), stats.getNumDistinctObjects()}) //do not collect the sets of objects
+                .collectAsMap();
+    }
+    
+    /**
+     * Ranks the relations by the f-measure of their support and discriminability, as getSortedRelations, but in the driver.
+     * The support of a relation is its number of instances / numEntitiesSquared, normalized by the maximum support, 
+     * and its discriminability is its number of distinct objects / its number of instances.
+     * @param statistics key: relationId, value: (numInstances, numDistinctObjects), from getRelationStatistics
+     * @param minSupportThreshold the minimum support threshold allowed, used for filtering relations with lower support
+     * @param numEntitiesSquared
+     * @return a list of relationIds sorted in descending score (ties are broken by ascending relationId)
+     */
+    public static List<Integer> rankRelations(Map<Integer,long[]> statistics, float minSupportThreshold, long numEntitiesSquared) {
+        System.out.println(statistics.size()+" relations have been assigned a support value");
+        float max_support = 0;
+        for (long[] stats : statistics.values()) {
+            max_support = Math.max(max_support, (float) stats[0] / numEntitiesSquared);
+        }
+        
+        List<Integer> relations = new ArrayList<>();
+        Int2FloatOpenHashMap scores = new Int2FloatOpenHashMap();
+        for (Map.Entry<Integer,long[]> relation : statistics.entrySet()) {
+            long[] stats = relation.getValue();
+            float support = ((float) stats[0] / numEntitiesSquared) / max_support; //normalize the support values
+            if (support <= minSupportThreshold) {
+                continue; //filter out relations below the min support threshold (infrequent relations)
+            }
+            float discriminability = Math.min(1f, (float) stats[1] / stats[0]); //an estimate of distinct objects can exceed the instances
+            relations.add(relation.getKey());
+            scores.put(relation.getKey().intValue(), (2 * support * discriminability) / (support + discriminability)); // keep the f-measure of support and discriminability as the score of a relation
+        }
+        relations.sort((r1, r2) -> {
+            int byScore = Float.compare(scores.get(r2.intValue()), scores.get(r1.intValue())); //descending score
+            return byScore != 0 ? byScore : Integer.compare(r1, r2);
+        });
+        return relations;
+    }
+    
     public JavaPairRDD<String,Float> getSupportOfRelations(JavaPairRDD<String,List<Tuple2<Integer, Integer>>> relationIndex, long numEntititiesSquared, float minSupportThreshold) {
         JavaPairRDD<String, Float> unnormalizedSupports = relationIndex
                 .mapValues(so -> (float)so.size() / numEntititiesSquared);
@@ -181,7 +470,7 @@ public class RelationsRank implements Serializable {
             });               
     }
     
-    public List<String> getSortedRelations(JavaPairRDD<String,Float> supports, JavaPairRDD<String,Float> discriminabilities) {
+    public <R> List<R> getSortedRelations(JavaPairRDD<R,Float> supports, JavaPairRDD<R,Float> discriminabilities) {
         return supports
                 .join(discriminabilities)
                 .mapValues(x-> (2* x._1() * x._2()) / (x._1() + x._2())) // keep the f-measure of support and discriminability as the score of a relation
@@ -191,6 +480,35 @@ public class RelationsRank implements Serializable {
                 .collect();        
     }
     
+    /**
+     * Returns the rank of each relation, i.e., its index in relationsRank. Relations missing from relationsRank get the rank -1 (like List.indexOf).
+     * @param relationsRank a list of relations sorted in descending score, as returned by getRelationsRank
+     * @return key: relation, value: its rank (0 for the top-ranked relation)
+     */
+    public static Object2IntOpenHashMap<String> getRelationRanks(List<String> relationsRank) {
+        Object2IntOpenHashMap<String> relationRanks = new Object2IntOpenHashMap<>(relationsRank.size());
+        relationRanks.defaultReturnValue(-1);
+        for (int rank = relationsRank.size()-1; rank >= 0; --rank) { //in reverse, so that a duplicate relation keeps its first index
+            relationRanks.put(relationsRank.get(rank), rank);
+        }
+        return relationRanks;
+    }
+    
+    /**
+     * Returns the rank of each relation, i.e., its index in relationsRank.
+     * @param relationsRank a list of relationIds sorted in descending score, as returned by getEncodedRelationsRank
+     * @param numPredicates the number of predicates in the dictionary of predicates
+     * @return the rank of each predicateId (0 for the top-ranked relation), or -1 for the predicates missing from relationsRank (like List.indexOf)
+     */
+    public static int[] getEncodedRelationRanks(List<Integer> relationsRank, int numPredicates) {
+        int[] relationRanks = new int[numPredicates];
+        Arrays.fill(relationRanks, -1);
+        for (int rank = relationsRank.size()-1; rank >= 0; --rank) {
+            relationRanks[relationsRank.get(rank)] = rank;
+        }
+        return relationRanks;
+    }
+    
     /**
      * Get the top neighbors (the neighbors found for the top-N relations, based on the local ranking of the relations).
      * @param relationIndex key: relation, value: (subjectId, objectId)
@@ -200,91 +518,68 @@ public class RelationsRank implements Serializable {
      * @return 
      */
     public JavaPairRDD<Integer, IntArrayList> getTopOutNeighborsPerEntity(JavaPairRDD<String,List<Tuple2<Integer, Integer>>> relationIndex, List<String> relationsRank, int N, boolean postiveIds) {
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(relationIndex.context());
+        return getTopOutNeighborsPerEntity(relationIndex, jsc.broadcast(getRelationRanks(relationsRank)), N, postiveIds);
+    }
+    
+    /**
+     * Get the top neighbors (the neighbors found for the top-N relations, based on the local ranking of the relations).
+     * Each (subject, relation, object) record costs a hash lookup for the rank of the relation and O(log N) for updating the top neighbors of the subject.
+     * @param relationIndex key: relation, value: (subjectId, objectId)
+     * @param relationRanks_BV key: relation, value: its rank in the global ranking of relations per dataset (0 for top-ranked), see getRelationRanks
+     * @param N the N from top-N
+     * @param postiveIds true if entity ids should be positive, false, if they should be reversed (-eId), i.e., if it is dataset1, or dataset 2
+     * @return key: entityId, value: its top out-neighbors, from the ones of the best-ranked relation to the ones of the worst
+     */
+    public JavaPairRDD<Integer, IntArrayList> getTopOutNeighborsPerEntity(JavaPairRDD<String,List<Tuple2<Integer, Integer>>> relationIndex, Broadcast<Object2IntOpenHashMap<String>> relationRanks_BV, int N, boolean postiveIds) {
         return relationIndex.flatMapToPair(x-> {
-                List<Tuple2<Integer, Tuple2<String, Integer>>> entities = new ArrayList<>(); //key: subjectId, value: (relation, objectId)
+                int relationRank = relationRanks_BV.value().getInt(x._1()); //once per relation, not per (subject, object) pair
+                List<Tuple2<Integer, Tuple2<Integer, Integer>>> entities = new ArrayList<>(); //key: subjectId, value: (objectId, relationRank)
                 for (Tuple2<Integer,Integer> relatedEntities : x._2()) {
                     if (postiveIds) {
-                        entities.add(new Tuple2<>(relatedEntities._1(), new Tuple2<>(x._1(), relatedEntities._2())));
+                        entities.add(new Tuple2<>(relatedEntities._1(), new Tuple2<>(relatedEntities._2(), relationRank)));
                     } else {
-                        entities.add(new Tuple2<>(-relatedEntities._1(), new Tuple2<>(x._1(), -relatedEntities._2())));
+                        entities.add(new Tuple2<>(-relatedEntities._1(), new Tuple2<>(-relatedEntities._2(), relationRank)));
                     }
                 }
                 return entities.iterator();
             })    
             .combineByKey( //for each entity, keeps local top-Ns before shuffling, like a combiner in MapReduce
             //createCombiner
-            relation -> {
-                PriorityQueue<ComparableIntFloatPair> initial = new PriorityQueue<>(new ComparableIntFloatPairDescendingComparator());
-                int relationRank = relationsRank.indexOf(relation._1()); //relation's name
-                initial.add(new ComparableIntFloatPair(relation._2(), relationRank)); //neighbor's id, relation's rank
-                return initial; 
-            }
+            neighbor -> new TopRelationNeighbors(N).add(neighbor._1(), neighbor._2()) //neighbor's id, relation's rank
             //mergeValue
-            , (PriorityQueue<ComparableIntFloatPair> pq, Tuple2<String,Integer> relation) -> {
-                int relationRank = relationsRank.indexOf(relation._1());
-                ComparableIntFloatPair c = new ComparableIntFloatPair(relation._2(), relationRank);
-                pq.add(c);         
-                pq = removeSameNeighborWithLowerRank(pq, c); //from duplicate neighbor Ids, keep the one from the relation with the better ranking                                                       
-                if (getNumberOfDistinctRelationsInPQ(pq) > N) {
-                    pq.poll();
-                }
-                return pq;
-            }
+            , (TopRelationNeighbors top, Tuple2<Integer,Integer> neighbor) -> top.add(neighbor._1(), neighbor._2())
             //mergeCombiners
-            , (PriorityQueue<ComparableIntFloatPair> pq1, PriorityQueue<ComparableIntFloatPair> pq2) -> {
-                while (!pq2.isEmpty()) {
-                    ComparableIntFloatPair c = pq2.poll();                    
-                    pq1.add(c);
-                    pq1 = removeSameNeighborWithLowerRank(pq1, c);
-                    if (getNumberOfDistinctRelationsInPQ(pq1) > N) {
-                        pq1.poll();
-                    }
-                }
-                return pq1;
-            }
-        ).mapValues(pq -> Utils.toIntArrayListReversed(pq));
+            , (TopRelationNeighbors top1, TopRelationNeighbors top2) -> top1.addAll(top2)
+        ).mapValues(top -> top.toIntArrayList());
        
     }
-        
+    
     /**
-     * At this point, pq contains x and maybe 1 more element y with the same key as x. If y exists, keep from those two the one with the better value. 
-     * If y does not exist, keep x. 
-     * @param pq
-     * @param x
-     * @return 
+     * The encoded equivalent of getTopOutNeighborsPerEntity.
+     * @param relationIndex the output of getEncodedRelationIndex
+     * @param relationRanks_BV the rank of each predicateId, see getEncodedRelationRanks
+     * @param N the N from top-N
+     * @param postiveIds true if entity ids should be positive, false, if they should be reversed (-eId), i.e., if it is dataset1, or dataset 2
+     * @return key: entityId, value: its top out-neighbors, from the ones of the best-ranked relation to the ones of the worst
      */
-    private PriorityQueue<ComparableIntFloatPair> removeSameNeighborWithLowerRank(PriorityQueue<ComparableIntFloatPair> pq, ComparableIntFloatPair x) {
-        int neighborIdToAdd = x.getEntityId();
-        double newValue = x.getValue();
-        ComparableIntFloatPair elementToDelete = null;
-        boolean sameRankTwice = false;
-        for (ComparableIntFloatPair qElement : pq) { //traverses the queue in random order
-            if (qElement.getEntityId() == neighborIdToAdd) {
-                if (qElement.getValue() > newValue) { //y is worse than x => delete y
-                    elementToDelete = qElement;
-                    break;
-                } else if (qElement.getValue() < newValue) { //y is better than x => delete x
-                    elementToDelete = x;
-                    break;
-                } else {  //qElement has the same value as x
-                    if (!sameRankTwice) { //first time meeting this element (it can be x or a y with the same rank)
-                        sameRankTwice = true; 
-                    } else{               //second time meeting this element (x and y are equivalent => delete one of them)
-                        elementToDelete = x;
-                        break;
+    public JavaPairRDD<Integer, IntArrayList> getTopOutNeighborsPerEntityFromEncodedIndex(JavaPairRDD<Integer,long[]> relationIndex, Broadcast<int[]> relationRanks_BV, int N, boolean postiveIds) {
+        return relationIndex.flatMapToPair(x-> {
+                int relationRank = relationRanks_BV.value()[x._1()];
+                List<Tuple2<Integer, Tuple2<Integer, Integer>>> entities = new ArrayList<>(x._2().length); //key: subjectId, value: (objectId, relationRank)
+                for (long pair : x._2()) {
+                    if (postiveIds) {
+                        entities.add(new Tuple2<>(unpackSubject(pair), new Tuple2<>(unpackObject(pair), relationRank)));
+                    } else {
+                        entities.add(new Tuple2<>(-unpackSubject(pair), new Tuple2<>(-unpackObject(pair), relationRank)));
                     }
                 }
-            }
-        }
-        if (elementToDelete != null) {
-            pq.remove(elementToDelete);
-        }
-        return pq;
-    }
-
-    private int getNumberOfDistinctRelationsInPQ(PriorityQueue<ComparableIntFloatPair> pq) {
-        FloatSet distinctRelations = new FloatOpenHashSet();        
-        pq.stream().forEach(relation -> distinctRelations.add(relation.getValue())); //adds the order of each relation to the set
-        return distinctRelations.size();
+                return entities.iterator();
+            })    
+            .combineByKey( //for each entity, keeps local top-Ns before shuffling, like a combiner in MapReduce
+            neighbor -> new TopRelationNeighbors(N).add(neighbor._1(), neighbor._2()) //neighbor's id, relation's rank
+            , (TopRelationNeighbors top, Tuple2<Integer,Integer> neighbor) -> top.add(neighbor._1(), neighbor._2())
+            , (TopRelationNeighbors top1, TopRelationNeighbors top2) -> top1.addAll(top2)
+        ).mapValues(top -> top.toIntArrayList());
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.relationsWeighting;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.Serializable;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * The out-neighbors of an entity, found through its top-N relations (the ones with the N best, i.e., lowest, distinct ranks).
+ * Each neighbor is kept once, with the best rank of the relations that link the entity to it.
+ * Adding a neighbor takes O(log N) time: neighbors are grouped by rank in a sorted map, so the worst rank can be evicted directly.
+ * @author vefthym
+ */
+public class TopRelationNeighbors implements Serializable {
+
+    private final int N;
+    private final Int2IntOpenHashMap bestRanks; //key: neighborId, value: the best rank of a relation to this neighbor
+    private final Int2ObjectRBTreeMap<IntOpenHashSet> neighborsPerRank; //key: rank, value: the neighbors with this best rank
+
+    public TopRelationNeighbors(int N) {
+        this.N = N;
+        this.bestRanks = new Int2IntOpenHashMap();
+        this.neighborsPerRank = new Int2ObjectRBTreeMap<>();
+    }
+
+    /**
+     * Adds a neighbor linked with a relation of the given rank.
+     * If the neighbor already exists with a better (or the same) rank, nothing changes.
+     * If the neighbors have more than N distinct ranks after this, the neighbors of the worst rank are evicted.
+     * @param neighborId
+     * @param relationRank the rank of the relation (0 for the top-ranked relation)
+     * @return this
+     */
+    public TopRelationNeighbors add(int neighborId, int relationRank) {
+        if (bestRanks.containsKey(neighborId)) {
+            int currentRank = bestRanks.get(neighborId);
+            if (currentRank <= relationRank) {
+                return this;
+            }
+            IntOpenHashSet sameRank = neighborsPerRank.get(currentRank);
+            sameRank.remove(neighborId);
+            if (sameRank.isEmpty()) {
+                neighborsPerRank.remove(currentRank);
+            }
+        }
+        bestRanks.put(neighborId, relationRank);
+        IntOpenHashSet sameRank = neighborsPerRank.get(relationRank);
+        if (sameRank == null) {
+            sameRank = new IntOpenHashSet();
+            neighborsPerRank.put(relationRank, sameRank);
+        }
+        sameRank.add(neighborId);
+
+        while (neighborsPerRank.size() > N) { //evict the neighbors of the worst rank
+            IntOpenHashSet evicted = neighborsPerRank.remove(neighborsPerRank.lastIntKey());
+            for (IntIterator it = evicted.iterator(); it.hasNext(); ) {
+                bestRanks.remove(it.nextInt());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds all the neighbors of other, with their best ranks.
+     * @param other
+     * @return this
+     */
+    public TopRelationNeighbors addAll(TopRelationNeighbors other) {
+        ObjectIterator<Int2IntMap.Entry> it = other.bestRanks.int2IntEntrySet().fastIterator();
+        while (it.hasNext()) {
+            Int2IntMap.Entry neighbor = it.next();
+            add(neighbor.getIntKey(), neighbor.getIntValue());
+        }
+        return this;
+    }
+
+    /**
+     * @return the neighborIds, from the ones of the best rank to the ones of the worst rank
+     */
+    public IntArrayList toIntArrayList() {
+        IntArrayList result = new IntArrayList(bestRanks.size());
+        for (Int2ObjectMap.Entry<IntOpenHashSet> rank : neighborsPerRank.int2ObjectEntrySet()) {
+            for (IntIterator it = rank.getValue().iterator(); it.hasNext(); ) {
+                result.add(it.nextInt());
+            }
+        }
+        return result;
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int size() {
+        return bestRanks.size();
+    }
+
+    /**
+     * @return key: neighborId, value: its best rank (not to be modified)
+     */
+    public Int2IntOpenHashMap getBestRanks() {
+        return bestRanks;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A triple of an entity collection, parsed once, with its subject, predicate and (entity) object replaced by their ids.
+ * Objects that are not entities of the collection (e.g., literals) keep their (lowercased) text, e.g., for the label matching heuristic.
+ * The subject and object ids are the ones of Utils.readEntityIdsMapping, i.e., the ids of the second collection start from 1 and should be negated by the caller.
+ * @author vefthym
+ */
+public class EncodedTriple implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int subjectId;
+    private final int predicateId;
+    private final int objectId; //-1, if the object is not an entity
+    private final String literal; //the object, if it is not an entity, otherwise null
+
+    public EncodedTriple(int subjectId, int predicateId, int objectId, String literal) {
+        this.subjectId = subjectId;
+        this.predicateId = predicateId;
+        this.objectId = objectId;
+        this.literal = literal;
+    }
+
+    public int getSubjectId() {
+        return subjectId;
+    }
+
+    public int getPredicateId() {
+        return predicateId;
+    }
+
+    /**
+     * @return the entity id of the object, or -1, if the object is not an entity
+     */
+    public int getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * @return the (lowercased) object, if it is not an entity, otherwise null
+     */
+    public String getLiteral() {
+        return literal;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EncodedTriple)) {
+            return false;
+        }
+        EncodedTriple other = (EncodedTriple) obj;
+        return subjectId == other.subjectId && predicateId == other.predicateId && objectId == other.objectId && Objects.equals(literal, other.literal);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + subjectId;
+        hash = 31 * hash + predicateId;
+        hash = 31 * hash + objectId;
+        hash = 31 * hash + Objects.hashCode(literal);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + subjectId + ", " + predicateId + ", " + (literal == null ? objectId : literal) + ")";
+    }
+
+}
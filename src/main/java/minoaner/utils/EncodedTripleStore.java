@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import minoaner.metablocking.preprocessing.BlockFilteringCheckpoint;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import scala.Tuple2;
+
+/**
+ * A binary format for the encoded triples of an entity collection, to skip parsing the raw rdf triples in every run.
+ * A store is a directory with the predicates (one per line, in the order of their ids), a SequenceFile of blocks (with no keys),
+ * and a meta file with the version of the format, the collection and its number of entities (written last, i.e., the store is complete only if it exists).
+ * Each block holds up to blockSize triples: their number, then subjectId, predicateId and object of each triple (as varints),
+ * and then a heap with the distinct literals of the block (each as a varint length and its UTF-8 bytes).
+ * The object of a triple is its entity id times 2, or the offset of its literal in the heap times 2, plus 1.
+ * Blocks are independent of each other, so the store is splittable, like any SequenceFile.
+ * Use {@link #main(java.lang.String[])} to convert the triples of a collection offline,
+ * or {@link #loadOrEncode} to convert them in the first run and read the store in the next ones.
+ * @author vefthym
+ */
+public class EncodedTripleStore {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int VERSION = 2; //increase this, if the format of the store changes
+    private static final String TRIPLES = "triples";
+    private static final String PREDICATES = "predicates";
+    private static final String META = "meta";
+
+    /**
+     * Writes the given triples in the binary format, overwriting any existing store in outputPath.
+     * @param triples the encoded triples of a collection
+     * @param outputPath
+     * @throws IOException
+     */
+    public static void write(EncodedTriples triples, String outputPath) throws IOException {
+        write(triples, outputPath, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the given triples in the binary format, overwriting any existing store in outputPath.
+     * The triples should not be read from the same store, since they are read lazily, after it is deleted.
+     * @param triples the encoded triples of a collection
+     * @param outputPath
+     * @param blockSize the maximum number of triples per block
+     * @throws IOException
+     */
+    public static void write(EncodedTriples triples, String outputPath, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size should be positive, but it is "+blockSize);
+        }
+        Path path = new Path(outputPath);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        if (fs.exists(path)) {
+            fs.delete(path, true);
+        }
+        triples.getTriples()
+                .mapPartitions(partition -> new Blocks(partition, blockSize))
+                .mapToPair(block -> new Tuple2<>(NullWritable.get(), new BytesWritable(encode(block)))) //the number of triples is in the block
+                .saveAsHadoopFile(new Path(path, TRIPLES).toString(), NullWritable.class, BytesWritable.class, SequenceFileOutputFormat.class);
+        try (Writer writer = new OutputStreamWriter(fs.create(new Path(path, PREDICATES)), StandardCharsets.UTF_8)) {
+            for (String predicate : triples.getPredicates()) {
+                writer.write(predicate+"\n");
+            }
+        }
+        try (Writer writer = new OutputStreamWriter(fs.create(new Path(path, META)), StandardCharsets.UTF_8)) {
+            writer.write("version="+VERSION+"\n");
+            writer.write("positiveIds="+triples.isPositive()+"\n");
+            writer.write("numEntities="+triples.getNumEntities()+"\n");
+        }
+    }
+
+    /**
+     * Reads the triples written by {@link #write(EncodedTriples, String)}.
+     * The triples are not persisted, since reading them again from the store is cheap.
+     * @param jsc
+     * @param inputPath
+     * @return the encoded triples of the store
+     * @throws IOException if the store is missing or incomplete
+     */
+    public static EncodedTriples read(JavaSparkContext jsc, String inputPath) throws IOException {
+        Path path = new Path(inputPath);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        boolean positiveIds = true;
+        long numEntities = -1;
+        int version = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(path, META)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] stat = line.split("=");
+                if (stat.length != 2) {
+                    continue;
+                }
+                switch (stat[0]) {
+                    case "version":
+                        version = Integer.parseInt(stat[1]);
+                        break;
+                    case "positiveIds":
+                        positiveIds = Boolean.parseBoolean(stat[1]);
+                        break;
+                    case "numEntities":
+                        numEntities = Long.parseLong(stat[1]);
+                        break;
+                }
+            }
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported version "+version+" of the triple store "+inputPath+" (expected "+VERSION+")");
+        }
+        List<String> predicates = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(path, PREDICATES)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                predicates.add(line);
+            }
+        }
+        JavaRDD<EncodedTriple> triples = jsc.sequenceFile(new Path(path, TRIPLES).toString(), NullWritable.class, BytesWritable.class)
+                .flatMap(block -> decode(block._2().getBytes(), block._2().getLength()).iterator());
+        return new EncodedTriples(triples, predicates.toArray(new String[predicates.size()]), positiveIds, numEntities);
+    }
+
+    /**
+     * @param inputPath
+     * @return true, if inputPath holds a complete store of the current version
+     * @throws IOException
+     */
+    public static boolean exists(String inputPath) throws IOException {
+        Path path = new Path(inputPath);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        Path metaPath = new Path(path, META);
+        if (!fs.exists(metaPath)) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(metaPath), StandardCharsets.UTF_8))) {
+            return ("version="+VERSION).equals(reader.readLine());
+        }
+    }
+
+    /**
+     * Encodes the raw triples of a collection with its entity ids and writes them in the binary format.
+     * @param jsc
+     * @param rawTriplesPath the rdf triples of the collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in the rdf triples
+     * @param entityIdsPath entityUrl\tentityId
+     * @param positiveIds true, for the first collection
+     * @param maxBroadcastSize the maximum number of entities, whose ids are broadcast instead of being joined
+     * @param outputPath
+     * @throws IOException
+     */
+    public static void convert(JavaSparkContext jsc, String rawTriplesPath, String SEPARATOR, String entityIdsPath, boolean positiveIds, long maxBroadcastSize, String outputPath) throws IOException {
+        EncodedTriples triples = encode(jsc, rawTriplesPath, SEPARATOR, entityIdsPath, positiveIds, maxBroadcastSize, jsc.defaultParallelism());
+        write(triples, outputPath);
+        triples.unpersist();
+    }
+
+    /**
+     * Reads the encoded triples of a collection from its store in cacheDir, if it exists,
+     * otherwise encodes the raw triples and writes them to the store, for the next runs.
+     * The store of a collection is named after a fingerprint of the raw triples, the separator and the entity ids (see BlockFilteringCheckpoint.fingerprint),
+     * so any change in those invalidates it. If the store cannot be read or written, the triples are only encoded.
+     * @param jsc
+     * @param cacheDir the directory holding the stores, or null for no store
+     * @param rawTriplesPath the rdf triples of the collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in the rdf triples
+     * @param entityIdsPath entityUrl\tentityId
+     * @param positiveIds true, for the first collection
+     * @param maxBroadcastSize the maximum number of entities, whose ids are broadcast instead of being joined
+     * @param parallelism the minimum number of partitions of the raw triples and the entity ids
+     * @return the encoded triples (persisted, only if they have been encoded in this run)
+     */
+    public static EncodedTriples loadOrEncode(JavaSparkContext jsc, String cacheDir, String rawTriplesPath, String SEPARATOR,
+            String entityIdsPath, boolean positiveIds, long maxBroadcastSize, int parallelism) {
+        String storePath = null;
+        if (cacheDir != null) {
+            try {
+                storePath = new Path(cacheDir, fingerprint(rawTriplesPath, SEPARATOR, entityIdsPath, positiveIds)).toString();
+                if (exists(storePath)) {
+                    System.out.println("Reading the encoded triples of "+rawTriplesPath+" from "+storePath);
+                    return read(jsc, storePath);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(EncodedTripleStore.class.getName()).log(Level.SEVERE, null, ex);
+                storePath = null;
+            }
+        }
+        EncodedTriples triples = encode(jsc, rawTriplesPath, SEPARATOR, entityIdsPath, positiveIds, maxBroadcastSize, parallelism);
+        if (storePath != null) {
+            try {
+                write(triples, storePath);
+                System.out.println("The encoded triples of "+rawTriplesPath+" have been stored in "+storePath);
+            } catch (IOException ex) {
+                Logger.getLogger(EncodedTripleStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return triples;
+    }
+
+    private static EncodedTriples encode(JavaSparkContext jsc, String rawTriplesPath, String SEPARATOR, String entityIdsPath, boolean positiveIds, long maxBroadcastSize, int parallelism) {
+        EntityIdDictionary entityIds = EntityIdDictionary.load(jsc.textFile(entityIdsPath, parallelism), positiveIds, maxBroadcastSize);
+        EncodedTriples triples = EncodedTriples.encode(jsc.textFile(rawTriplesPath, parallelism), SEPARATOR, entityIds);
+        entityIds.unpersist();
+        return triples;
+    }
+
+    /**
+     * @return a hex MD5 hash of the version of the store, the separator, the collection, and the path, length and modification time of each file of the raw triples and the entity ids
+     * @throws IOException
+     */
+    static String fingerprint(String rawTriplesPath, String SEPARATOR, String entityIdsPath, boolean positiveIds) throws IOException {
+        String entityIdsFingerprint = BlockFilteringCheckpoint.fingerprint(entityIdsPath, "entityIds\t"+positiveIds);
+        return BlockFilteringCheckpoint.fingerprint(rawTriplesPath, "triples\tv"+VERSION+"\t"+SEPARATOR+"\t"+entityIdsFingerprint);
+    }
+
+    /**
+     * Encodes a block of triples (see the format above). Equal literals are stored once per block.
+     * @param block
+     * @return the encoded block
+     */
+    public static byte[] encode(List<EncodedTriple> block) {
+        ByteArrayOutputStream triples = new ByteArrayOutputStream(block.size() * 8);
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        Object2IntOpenHashMap<String> literalOffsets = new Object2IntOpenHashMap<>();
+        literalOffsets.defaultReturnValue(-1);
+        writeVarLong(triples, block.size());
+        for (EncodedTriple triple : block) {
+            writeVarLong(triples, triple.getSubjectId());
+            writeVarLong(triples, triple.getPredicateId());
+            if (triple.getLiteral() == null) {
+                writeVarLong(triples, (long) triple.getObjectId() << 1);
+            } else {
+                int offset = literalOffsets.getInt(triple.getLiteral());
+                if (offset == -1) {
+                    offset = heap.size();
+                    literalOffsets.put(triple.getLiteral(), offset);
+                    byte[] literal = triple.getLiteral().getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(heap, literal.length);
+                    heap.write(literal, 0, literal.length);
+                }
+                writeVarLong(triples, ((long) offset << 1) | 1);
+            }
+        }
+        byte[] heapBytes = heap.toByteArray();
+        triples.write(heapBytes, 0, heapBytes.length);
+        return triples.toByteArray();
+    }
+
+    /**
+     * Decodes a block encoded by {@link #encode(List)}. Equal literals of the block share the same String.
+     * @param bytes
+     * @param length the number of valid bytes (e.g., BytesWritable.getLength())
+     * @return the triples of the block
+     */
+    public static List<EncodedTriple> decode(byte[] bytes, int length) {
+        int[] pos = new int[]{0};
+        int numTriples = (int) readVarLong(bytes, pos);
+        int[] subjects = new int[numTriples], predicates = new int[numTriples];
+        long[] objects = new long[numTriples];
+        for (int i = 0; i < numTriples; ++i) {
+            subjects[i] = (int) readVarLong(bytes, pos);
+            predicates[i] = (int) readVarLong(bytes, pos);
+            objects[i] = readVarLong(bytes, pos);
+        }
+        final int heapStart = pos[0];
+        Int2ObjectOpenHashMap<String> literals = new Int2ObjectOpenHashMap<>(); //key: offset in the heap
+        List<EncodedTriple> triples = new ArrayList<>(numTriples);
+        for (int i = 0; i < numTriples; ++i) {
+            if ((objects[i] & 1) == 0) {
+                triples.add(new EncodedTriple(subjects[i], predicates[i], (int) (objects[i] >>> 1), null));
+                continue;
+            }
+            int offset = (int) (objects[i] >>> 1);
+            String literal = literals.get(offset);
+            if (literal == null) {
+                pos[0] = heapStart + offset;
+                int literalLength = (int) readVarLong(bytes, pos);
+                if (pos[0] + literalLength > length) {
+                    throw new IllegalArgumentException("Corrupted block: a literal ends after "+length+" bytes");
+                }
+                literal = new String(bytes, pos[0], literalLength, StandardCharsets.UTF_8);
+                literals.put(offset, literal);
+            }
+            triples.add(new EncodedTriple(subjects[i], predicates[i], -1, literal));
+        }
+        return triples;
+    }
+
+    /**
+     * Writes a non-negative long in 1-10 bytes, 7 bits per byte, the least significant first.
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupted block: malformed varint");
+    }
+
+    /**
+     * Groups the triples of a partition into lists of (at most) blockSize triples.
+     */
+    private static class Blocks implements Iterator<List<EncodedTriple>> {
+        private final Iterator<EncodedTriple> triples;
+        private final int blockSize;
+
+        Blocks(Iterator<EncodedTriple> triples, int blockSize) {
+            this.triples = triples;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return triples.hasNext();
+        }
+
+        @Override
+        public List<EncodedTriple> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<EncodedTriple> block = new ArrayList<>(blockSize);
+            while (block.size() < blockSize && triples.hasNext()) {
+                block.add(triples.next());
+            }
+            return block;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String tmpPath;
+        String inputTriples, entityIds, outputPath;
+        boolean positiveIds;
+
+        if (args.length >= 4) {
+            tmpPath = "/file:/tmp";
+            inputTriples = args[0];
+            entityIds = args[1];
+            positiveIds = !args[2].equals("2");
+            outputPath = args[3];
+
+            // delete existing output directories
+            try {
+                Utils.deleteHDFSPath(outputPath);
+            } catch (IOException | URISyntaxException ex) {
+                Logger.getLogger(EncodedTripleStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else {
+            System.out.println("You can convert the triples of a collection to the binary format with the following arguments:"
+                    + "0: inputTriples (raw rdf triples)"
+                    + "1: entityIds: entityUrl\tentityId"
+                    + "2: collection: 1 or 2"
+                    + "3: outputPath (binary format)"
+                    + "4: max broadcast entity ids (optional, default: 1000000)");
+            return;
+        }
+        long maxBroadcastIds = (args.length >= 5) ? Long.parseLong(args[4]) : EntityIdDictionary.DEFAULT_MAX_BROADCAST_SIZE;
+        String SEPARATOR = (inputTriples.endsWith(".tsv"))? "\t" : " ";
+
+        String appName = "Converting "+inputTriples.substring(inputTriples.lastIndexOf("/", inputTriples.length()-2)+1)+" to encoded triples";
+        SparkSession spark = Utils.setUpSpark(appName, 288, 8, 3, tmpPath);
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+
+        convert(jsc, inputTriples, SEPARATOR, entityIds, positiveIds, maxBroadcastIds, outputPath);
+
+        spark.stop();
+    }
+
+}
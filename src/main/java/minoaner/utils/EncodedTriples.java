@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2IntFunction;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+import scala.Tuple2;
+
+/**
+ * The triples of an entity collection, tokenized once (see Utils.tokenizeTriple) and encoded with the entity ids of the collection 
+ * and the ids of its predicates, in a persisted RDD that is shared by the relation ranking and the label matching heuristic, 
+ * instead of each of them parsing the raw triples again.
+ * The triples should be unpersisted, when they are no longer needed.
+ * Usage: EncodedTriples triples1 = EncodedTriples.encode(jsc.textFile(inputTriples1), SEPARATOR, EntityIdDictionary.load(jsc.textFile(entityIds1), true));
+ * @author vefthym
+ */
+public class EncodedTriples {
+    
+    private final JavaRDD<EncodedTriple> triples;
+    private final String[] predicates; //the predicate of each predicateId
+    private final boolean positiveIds;
+    private final long numEntities;
+    
+    /**
+     * Wraps already encoded triples, e.g., loaded from a file.
+     * @param triples the encoded triples (the caller should persist them, if they are used more than once)
+     * @param predicates the predicate of each predicateId
+     * @param positiveIds true, if the triples belong to the first collection (with positive ids)
+     * @param numEntities the number of entities of the collection
+     */
+    public EncodedTriples(JavaRDD<EncodedTriple> triples, String[] predicates, boolean positiveIds, long numEntities) {
+        this.triples = triples;
+        this.predicates = predicates;
+        this.positiveIds = positiveIds;
+        this.numEntities = numEntities;
+    }
+    
+    /**
+     * Encodes the given triples, keeping them in memory and disk, serialized.
+     * @param rawTriples the rdf triples of an entity collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in rawTriples
+     * @param entityIds the entity ids of the collection
+     * @return the persisted and materialized encoded triples
+     */
+    public static EncodedTriples encode(JavaRDD<String> rawTriples, String SEPARATOR, EntityIdDictionary entityIds) {
+        return encode(rawTriples, SEPARATOR, entityIds, StorageLevel.MEMORY_AND_DISK_SER());
+    }
+    
+    /**
+     * Tokenizes the given triples once, assigns an id to each distinct predicate, in lexicographic order, 
+     * and replaces the subjects and the entity objects with their entity ids, through the broadcast dictionary, if it is small enough, 
+     * or through joins with the distributed dictionary. Literal objects are never looked up (nor shuffled for the join of the objects). 
+     * Triples with a subject that is not an entity of the collection are dropped.
+     * @param rawTriples the rdf triples of an entity collection
+     * @param SEPARATOR the delimiter that separates subjects, predicates and objects in rawTriples
+     * @param entityIds the entity ids of the collection
+     * @param storageLevel the storage level of the encoded triples
+     * @return the persisted and materialized encoded triples
+     */
+    public static EncodedTriples encode(JavaRDD<String> rawTriples, String SEPARATOR, EntityIdDictionary entityIds, StorageLevel storageLevel) {
+        JavaRDD<String[]> tokens = rawTriples
+                .map(line -> Utils.tokenizeTriple(line, SEPARATOR))
+                .filter(spo -> spo != null);
+        tokens.persist(StorageLevel.MEMORY_AND_DISK_SER()); //so that the raw triples are read and tokenized once
+        
+        List<String> predicateList = new ArrayList<>(tokens.map(spo -> spo[1]).distinct().collect()); //action
+        Collections.sort(predicateList);
+        String[] predicates = predicateList.toArray(new String[predicateList.size()]);
+        Object2IntOpenHashMap<String> predicateIds = getPredicateIds(predicates);
+        Broadcast<Object2IntOpenHashMap<String>> predicateIds_BV = JavaSparkContext.fromSparkContext(rawTriples.context()).broadcast(predicateIds);
+        
+        JavaRDD<EncodedTriple> triples;
+        JavaPairRDD<Integer,EncodedTriple> bySubjectId = null;
+        if (entityIds.isBroadcast()) {
+            Broadcast<Object2IntFunction<String>> entityIds_BV = entityIds.broadcast();
+            triples = tokens.map(spo -> {
+                Object2IntFunction<String> ids = entityIds_BV.value();
+                String subject = Utils.encodeURIinUTF8(spo[0]);
+                if (!ids.containsKey(subject)) {
+                    return null;
+                }
+                String object = isLiteral(spo[2]) ? null : Utils.encodeURIinUTF8(spo[2]); //literals are never entities
+                int objectId = object != null && ids.containsKey(object) ? ids.getInt(object) : -1;
+                return new EncodedTriple(ids.getInt(subject), predicateIds_BV.value().getInt(spo[1]), objectId, objectId == -1 ? spo[2] : null);
+            })
+            .filter(x -> x != null);
+        } else {
+            JavaPairRDD<String,EncodedTriple> bySubject = tokens.mapToPair(spo -> //key: subject URL, value: the triple without a subjectId
+                    new Tuple2<>(Utils.encodeURIinUTF8(spo[0]), new EncodedTriple(-1, predicateIds_BV.value().getInt(spo[1]), -1, spo[2])));
+            bySubjectId = entityIds.resolve(bySubject) //key: subjectId, value: the triple without a subjectId
+                    .persist(StorageLevel.MEMORY_AND_DISK_SER()); //read twice, for the literal and for the other objects
+            JavaRDD<EncodedTriple> literalTriples = bySubjectId
+                    .filter(x -> isLiteral(x._2().getLiteral())) //literals are never entities, so they are not joined with the dictionary
+                    .map(x -> new EncodedTriple(x._1(), x._2().getPredicateId(), -1, x._2().getLiteral()));
+            JavaPairRDD<String,EncodedTriple> byObject = bySubjectId //key: object URL, value: the triple without an objectId
+                    .filter(x -> !isLiteral(x._2().getLiteral()))
+                    .mapToPair(x -> new Tuple2<>(Utils.encodeURIinUTF8(x._2().getLiteral()), new EncodedTriple(x._1(), x._2().getPredicateId(), -1, x._2().getLiteral())));
+            triples = entityIds.resolveOrDefault(byObject, -1)
+                    .map(x -> x._1() == -1 ? x._2() : new EncodedTriple(x._2().getSubjectId(), x._2().getPredicateId(), x._1(), null))
+                    .union(literalTriples);
+        }
+        triples.setName("encodedTriples"+(entityIds.isPositive()?"1":"2")).persist(storageLevel);
+        System.out.println(triples.count()+" triples have been encoded in collection "+(entityIds.isPositive()?"1":"2")); //action
+        tokens.unpersist();
+        if (bySubjectId != null) {
+            bySubjectId.unpersist();
+        }
+        
+        return new EncodedTriples(triples, predicates, entityIds.isPositive(), entityIds.size());
+    }
+    
+    /**
+     * @param object the (lowercased) object of a triple
+     * @return true, if the object is a literal, e.g., "the matrix"@en, and not a url
+     */
+    private static boolean isLiteral(String object) {
+        return object.startsWith("\"");
+    }
+    
+    private static Object2IntOpenHashMap<String> getPredicateIds(String[] predicates) {
+        Object2IntOpenHashMap<String> predicateIds = new Object2IntOpenHashMap<>(predicates.length);
+        predicateIds.defaultReturnValue(-1);
+        for (int i = 0; i < predicates.length; ++i) {
+            predicateIds.put(predicates[i], i);
+        }
+        return predicateIds;
+    }
+    
+    /**
+     * @return the encoded triples
+     */
+    public JavaRDD<EncodedTriple> getTriples() {
+        return triples;
+    }
+    
+    /**
+     * @return the predicate of each predicateId
+     */
+    public String[] getPredicates() {
+        return predicates;
+    }
+    
+    /**
+     * @param predicateNames (lowercased) predicates, e.g., the label attributes of a collection
+     * @return the ids of the given predicates that appear in the triples
+     */
+    public IntOpenHashSet getPredicateIds(Set<String> predicateNames) {
+        Object2IntOpenHashMap<String> predicateIds = getPredicateIds(predicates);
+        IntOpenHashSet result = new IntOpenHashSet();
+        for (String predicate : predicateNames) {
+            if (predicateIds.containsKey(predicate)) {
+                result.add(predicateIds.getInt(predicate));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return true, if the triples belong to the first collection (with positive ids)
+     */
+    public boolean isPositive() {
+        return positiveIds;
+    }
+    
+    /**
+     * @return the number of entities of the collection
+     */
+    public long getNumEntities() {
+        return numEntities;
+    }
+    
+    /**
+     * Unpersists the encoded triples.
+     */
+    public void unpersist() {
+        triples.unpersist();
+    }
+    
+}
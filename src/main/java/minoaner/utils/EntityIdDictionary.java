@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.objects.Object2IntFunction;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+import scala.Tuple2;
+
+/**
+ * The mapping of the entity urls of a collection to the entity ids used in blocking, loaded once and kept distributed, 
+ * so that it does not have to pass through the driver (see {@link Utils#readEntityIdsMapping(JavaRDD, boolean)}, which collects it).
+ * The urls are hash partitioned, so that they are resolved with a join that only shuffles the side of the urls to be resolved.
+ * Small collections (up to maxBroadcastSize entities) can also be collected once and broadcast, to resolve urls without a shuffle.
+ * The ids are the same as the ones of readEntityIdsMapping, i.e., the ids of the second collection start from 1 and should be negated by the caller.
+ * The dictionary should be unpersisted, when it is no longer needed.
+ * Usage: EntityIdDictionary ids1 = EntityIdDictionary.load(jsc.textFile(entityIds1), true); ids1.resolve(triplesBySubjectUrl);
+ * @author vefthym
+ */
+public class EntityIdDictionary {
+    
+    /**
+     * The default maximum number of entities of a dictionary that is broadcast, instead of being joined.
+     */
+    public static final long DEFAULT_MAX_BROADCAST_SIZE = 1_000_000;
+    
+    private final JavaPairRDD<String,Integer> ids; //key: the (lowercased) entity url, value: its entity id
+    private final boolean positiveIds;
+    private final long size;
+    private final long maxBroadcastSize;
+    private Broadcast<Object2IntFunction<String>> ids_BV; //collected on the first call of broadcast
+    
+    private EntityIdDictionary(JavaPairRDD<String,Integer> ids, boolean positiveIds, long size, long maxBroadcastSize) {
+        this.ids = ids;
+        this.positiveIds = positiveIds;
+        this.size = size;
+        this.maxBroadcastSize = maxBroadcastSize;
+    }
+    
+    /**
+     * Loads the mapping of entity urls to entity ids, with the default maximum broadcast size.
+     * @param entityIdsText lines of the form entityUrl\tentityId
+     * @param positiveIds false, if the ids will be later converted to negatives, so that their numbering should start from -1, instead of 0
+     * @return the persisted and materialized dictionary
+     */
+    public static EntityIdDictionary load(JavaRDD<String> entityIdsText, boolean positiveIds) {
+        return load(entityIdsText, positiveIds, DEFAULT_MAX_BROADCAST_SIZE);
+    }
+    
+    /**
+     * Loads the mapping of entity urls to entity ids, partitioned by url, in as many partitions as entityIdsText.
+     * @param entityIdsText lines of the form entityUrl\tentityId
+     * @param positiveIds false, if the ids will be later converted to negatives, so that their numbering should start from -1, instead of 0
+     * @param maxBroadcastSize the maximum number of entities, up to which the dictionary is broadcast, instead of being joined (0 to always join)
+     * @return the persisted and materialized dictionary
+     */
+    public static EntityIdDictionary load(JavaRDD<String> entityIdsText, boolean positiveIds, long maxBroadcastSize) {
+        JavaPairRDD<String,Integer> ids = Utils.parseEntityIds(entityIdsText, positiveIds)
+            .partitionBy(new HashPartitioner(entityIdsText.getNumPartitions()));
+        ids.setName("entityIds"+(positiveIds?"1":"2")).persist(StorageLevel.MEMORY_AND_DISK_SER());
+        return new EntityIdDictionary(ids, positiveIds, ids.count(), maxBroadcastSize); //action
+    }
+    
+    /**
+     * @return key: entity url, value: entity id
+     */
+    public JavaPairRDD<String,Integer> getIds() {
+        return ids;
+    }
+    
+    /**
+     * @return true, if this is the dictionary of the first collection (with positive ids)
+     */
+    public boolean isPositive() {
+        return positiveIds;
+    }
+    
+    /**
+     * @return the number of entities in this dictionary
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * @return true, if this dictionary is small enough to be broadcast, instead of being joined
+     */
+    public boolean isBroadcast() {
+        return size <= maxBroadcastSize;
+    }
+    
+    /**
+     * Collects the dictionary in the driver and broadcasts it front-coded (see FrontCodedDictionary), only the first time it is called.
+     * @return the broadcast mapping of entity urls to entity ids, with the same ids as Utils.readEntityIdsMapping
+     */
+    public Broadcast<Object2IntFunction<String>> broadcast() {
+        if (ids_BV == null) {
+            ids_BV = JavaSparkContext.fromSparkContext(ids.context()).broadcast(FrontCodedDictionary.fromMap(ids.collectAsMap()));
+        }
+        return ids_BV;
+    }
+    
+    /**
+     * Replaces the urls of the given pairs with their entity ids, through a join with this dictionary. Pairs with unknown urls are dropped.
+     * @param <V>
+     * @param byUrl key: an (encoded, lowercased) entity url, value: any value
+     * @return key: the entity id of the url, value: the value of the url
+     */
+    public <V> JavaPairRDD<Integer,V> resolve(JavaPairRDD<String,V> byUrl) {
+        return byUrl
+            .join(ids, ids.partitioner().get()) //only byUrl is shuffled
+            .mapToPair(x -> new Tuple2<>(x._2()._2(), x._2()._1()));
+    }
+    
+    /**
+     * Replaces the urls of the given pairs with their entity ids, through a join with this dictionary. Unknown urls get defaultId.
+     * @param <V>
+     * @param byUrl key: a (encoded, lowercased) url, value: any value
+     * @param defaultId the id of the urls that are not entities of this collection, e.g., -1
+     * @return key: the entity id of the url, or defaultId, value: the value of the url
+     */
+    public <V> JavaPairRDD<Integer,V> resolveOrDefault(JavaPairRDD<String,V> byUrl, int defaultId) {
+        return byUrl
+            .leftOuterJoin(ids, ids.partitioner().get()) //only byUrl is shuffled
+            .mapToPair(x -> new Tuple2<>(x._2()._2().isPresent() ? x._2()._2().get() : defaultId, x._2()._1()));
+    }
+    
+    /**
+     * Unpersists the dictionary and its broadcast form, if any, from the executors 
+     * (the broadcast form is not destroyed, so that RDDs computed from it can still be recomputed).
+     */
+    public void unpersist() {
+        ids.unpersist();
+        if (ids_BV != null) {
+            ids_BV.unpersist();
+        }
+    }
+    
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+
+/**
+ * Partitions RDDs keyed by entity id. Entity ids are dense (0, 1, 2, ... for D1 and -1, -2, ... for D2),
+ * so taking them modulo the number of partitions spreads the entities of both collections evenly,
+ * without calling hashCode() on the boxed keys.
+ * RDDs partitioned by equal EntityIdPartitioners are co-partitioned, i.e., they can be joined without a shuffle.
+ * @author vefthym
+ */
+public class EntityIdPartitioner extends Partitioner {
+
+    private final int numPartitions;
+
+    public EntityIdPartitioner(int numPartitions) {
+        if (numPartitions <= 0) {
+            throw new IllegalArgumentException("The number of partitions should be positive, but it is "+numPartitions);
+        }
+        this.numPartitions = numPartitions;
+    }
+
+    /**
+     * Creates an EntityIdPartitioner with as many partitions as a shuffle of the given RDD would have by default,
+     * i.e., spark.default.parallelism, if it is set, or the current number of partitions of the RDD, otherwise.
+     * @param rdd an RDD that will be shuffled by entity id
+     * @return a new EntityIdPartitioner
+     */
+    public static EntityIdPartitioner forRDD(JavaPairRDD<?,?> rdd) {
+        if (rdd.context().getConf().contains("spark.default.parallelism")) {
+            return new EntityIdPartitioner(rdd.context().defaultParallelism());
+        }
+        return new EntityIdPartitioner(rdd.getNumPartitions());
+    }
+
+    @Override
+    public int numPartitions() {
+        return numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        return Math.floorMod(((Integer) key), numPartitions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof EntityIdPartitioner && ((EntityIdPartitioner) other).numPartitions == numPartitions;
+    }
+
+    @Override
+    public int hashCode() {
+        return numPartitions;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.AbstractObject2IntFunction;
+import it.unimi.dsi.fastutil.objects.Object2IntFunction;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * An immutable, compact mapping of strings (e.g., entity urls) to ints, to be broadcast instead of an Object2IntOpenHashMap of Strings.
+ * The keys are sorted by their UTF-8 bytes and split in buckets of bucketSize keys. The first key of each bucket is stored in full, 
+ * and each following key only as the length of the prefix it shares with the previous key and the rest of its bytes (front coding), 
+ * all in a single byte[], so that long common prefixes (e.g., "&lt;http://dbpedia.org/resource/") are stored once per bucket, 
+ * and the executors hold three arrays, instead of millions of String objects. 
+ * A lookup binary searches the first keys of the buckets and scans a single bucket, without decoding its keys.
+ * Usage: FrontCodedDictionary ids = FrontCodedDictionary.fromMap(Utils.readEntityIdsMapping(entityIdsText, true)); int id = ids.getInt(url);
+ * @author vefthym
+ */
+public class FrontCodedDictionary extends AbstractObject2IntFunction<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The default number of keys per bucket: larger buckets share more prefixes, but are scanned slower.
+     */
+    public static final int DEFAULT_BUCKET_SIZE = 16;
+
+    private final int bucketSize;
+    private final int[] bucketOffsets; //the bytes of bucket b start at data[bucketOffsets[b]]
+    private final byte[] data;
+    private final int[] values; //the value of each key, in the order of the keys
+
+    /**
+     * Wraps the given arrays (no copy), e.g., when deserializing a dictionary. Use fromMap to build a new dictionary.
+     * @param bucketSize the number of keys per bucket
+     * @param bucketOffsets the start of each bucket in data
+     * @param data the front-coded keys
+     * @param values the value of each key, in the order of the keys
+     */
+    public FrontCodedDictionary(int bucketSize, int[] bucketOffsets, byte[] data, int[] values) {
+        this.bucketSize = bucketSize;
+        this.bucketOffsets = bucketOffsets;
+        this.data = data;
+        this.values = values;
+    }
+
+    /**
+     * Builds the dictionary of the given mapping, with the default bucket size.
+     * @param map key: a string, value: its int
+     * @return the dictionary of map, with the default return value of map, if it is a fastutil map
+     */
+    public static FrontCodedDictionary fromMap(Map<String, Integer> map) {
+        return fromMap(map, DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     * Builds the dictionary of the given mapping.
+     * @param map key: a string, value: its int
+     * @param bucketSize the number of keys per bucket
+     * @return the dictionary of map, with the default return value of map, if it is a fastutil map
+     */
+    public static FrontCodedDictionary fromMap(Map<String, Integer> map, int bucketSize) {
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException("The bucket size should be positive, but it is "+bucketSize);
+        }
+        byte[][] keys = new byte[map.size()][];
+        int[] order = new int[keys.length];
+        int[] unsortedValues = new int[keys.length];
+        int k = 0;
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            keys[k] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            unsortedValues[k] = entry.getValue();
+            order[k] = k;
+            k++;
+        }
+        IntArrays.quickSort(order, new AbstractIntComparator() { //by the unsigned UTF-8 bytes of the keys
+            @Override
+            public int compare(int i, int j) {
+                return FrontCodedDictionary.compare(keys[i], 0, keys[i].length, keys[j], 0);
+            }
+        });
+
+        int[] bucketOffsets = new int[(keys.length + bucketSize - 1) / bucketSize];
+        int[] values = new int[keys.length];
+        ByteArrayList data = new ByteArrayList();
+        byte[] previous = null;
+        for (int i = 0; i < keys.length; ++i) {
+            byte[] key = keys[order[i]];
+            values[i] = unsortedValues[order[i]];
+            if (i % bucketSize == 0) { //the first key of a bucket
+                bucketOffsets[i / bucketSize] = data.size();
+                writeVarInt(data, key.length);
+                data.addElements(data.size(), key);
+            } else {
+                int prefix = commonPrefix(previous, key);
+                if (prefix == key.length && prefix == previous.length) {
+                    throw new IllegalArgumentException("Duplicate key: "+new String(key, StandardCharsets.UTF_8)); //only if two Strings have the same UTF-8 bytes, e.g., malformed surrogates
+                }
+                writeVarInt(data, prefix);
+                writeVarInt(data, key.length - prefix);
+                data.addElements(data.size(), key, prefix, key.length - prefix);
+            }
+            previous = key;
+        }
+        FrontCodedDictionary dictionary = new FrontCodedDictionary(bucketSize, bucketOffsets, data.toByteArray(), values);
+        if (map instanceof Object2IntFunction) {
+            dictionary.defaultReturnValue(((Object2IntFunction<?>) map).defaultReturnValue());
+        }
+        return dictionary;
+    }
+
+    /**
+     * @param key
+     * @return the index of key in the sorted keys, or -1, if it is not a key of this dictionary
+     */
+    private int indexOf(Object key) {
+        if (!(key instanceof String) || values.length == 0) {
+            return -1;
+        }
+        byte[] query = ((String) key).getBytes(StandardCharsets.UTF_8);
+
+        //binary search for the last bucket whose first key is <= query
+        int low = 0, high = bucketOffsets.length - 1, bucket = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareToHead(mid, query);
+            if (cmp == 0) {
+                return mid * bucketSize;
+            } else if (cmp < 0) {
+                bucket = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (bucket == -1) {
+            return -1; //query is smaller than the first key
+        }
+
+        //scan the bucket, keeping the length of the common prefix of query and the previous key, which is smaller than query
+        int pos = bucketOffsets[bucket];
+        int headLength = readVarInt(pos);
+        pos = skipVarInt(pos);
+        int matched = commonPrefix(data, pos, headLength, query);
+        pos += headLength;
+        int end = Math.min((bucket + 1) * bucketSize, values.length);
+        for (int i = bucket * bucketSize + 1; i < end; ++i) {
+            int prefix = readVarInt(pos);
+            pos = skipVarInt(pos);
+            int suffixLength = readVarInt(pos);
+            pos = skipVarInt(pos);
+            if (prefix < matched) {
+                return -1; //this key is larger than the previous key at a byte where the previous key and query are the same, so it is larger than query
+            }
+            if (prefix == matched) { //otherwise, this key is equal to the previous key at the byte where the previous key is smaller than query
+                int cmp = compare(data, pos, suffixLength, query, matched);
+                if (cmp == 0) {
+                    return i;
+                } else if (cmp > 0) {
+                    return -1;
+                }
+                matched += commonPrefix(data, pos, suffixLength, query, matched);
+            }
+            pos += suffixLength;
+        }
+        return -1;
+    }
+
+    private int compareToHead(int bucket, byte[] query) {
+        int pos = bucketOffsets[bucket];
+        int length = readVarInt(pos);
+        return compare(data, skipVarInt(pos), length, query, 0);
+    }
+
+    /**
+     * Compares bytes[from..from+length) with query[queryFrom..], as unsigned bytes.
+     */
+    private static int compare(byte[] bytes, int from, int length, byte[] query, int queryFrom) {
+        int queryLength = query.length - queryFrom;
+        int n = Math.min(length, queryLength);
+        for (int i = 0; i < n; ++i) {
+            int cmp = (bytes[from + i] & 0xFF) - (query[queryFrom + i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - queryLength;
+    }
+
+    private static int commonPrefix(byte[] bytes, int from, int length, byte[] query) {
+        return commonPrefix(bytes, from, length, query, 0);
+    }
+
+    /**
+     * @return the length of the common prefix of bytes[from..from+length) and query[queryFrom..]
+     */
+    private static int commonPrefix(byte[] bytes, int from, int length, byte[] query, int queryFrom) {
+        int n = Math.min(length, query.length - queryFrom);
+        int i = 0;
+        while (i < n && bytes[from + i] == query[queryFrom + i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static int commonPrefix(byte[] key1, byte[] key2) {
+        return commonPrefix(key1, 0, key1.length, key2);
+    }
+
+    private static void writeVarInt(ByteArrayList data, int value) {
+        while ((value & ~0x7F) != 0) {
+            data.add((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        data.add((byte) value);
+    }
+
+    private int readVarInt(int pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private int skipVarInt(int pos) {
+        while (data[pos++] < 0) {
+        }
+        return pos;
+    }
+
+    @Override
+    public int getInt(Object key) {
+        int index = indexOf(key);
+        return index == -1 ? defRetValue : values[index];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return the number of keys per bucket
+     */
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * @return the start of each bucket in the front-coded keys
+     */
+    public int[] getBucketOffsets() {
+        return bucketOffsets;
+    }
+
+    /**
+     * @return the front-coded keys
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the value of each key, in the order of the keys
+     */
+    public int[] getValues() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "FrontCodedDictionary{size=" + values.length + ", bucketSize=" + bucketSize + ", bytes=" + data.length + "}";
+    }
+
+}
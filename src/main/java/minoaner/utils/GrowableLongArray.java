@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A minimal growable array of primitive longs, to be used as an aggregation buffer (e.g., in aggregateByKey).
+ * Unlike fastutil's LongArrayList, its backing array is not transient, so it is also serialized correctly by Kryo's default serializer
+ * (see {@link MyKryoRegistrator} for the compact one).
+ * @author vefthym
+ */
+public class GrowableLongArray implements Serializable {
+
+    private long[] elements;
+    private int size;
+
+    public GrowableLongArray() {
+        this(4);
+    }
+
+    public GrowableLongArray(int capacity) {
+        this.elements = new long[Math.max(1, capacity)];
+        this.size = 0;
+    }
+
+    /**
+     * Wraps the first size elements of the given array (no copy).
+     */
+    public static GrowableLongArray wrap(long[] elements, int size) {
+        GrowableLongArray array = new GrowableLongArray(0);
+        array.elements = elements.length == 0 ? new long[1] : elements;
+        array.size = size;
+        return array;
+    }
+
+    public GrowableLongArray add(long element) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, elements.length << 1);
+        }
+        elements[size++] = element;
+        return this;
+    }
+
+    public GrowableLongArray addAll(GrowableLongArray other) {
+        if (size + other.size > elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(elements.length << 1, size + other.size));
+        }
+        System.arraycopy(other.elements, 0, elements, size, other.size);
+        size += other.size;
+        return this;
+    }
+
+    public long get(int i) {
+        return elements[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the backing array, whose first size() elements are valid
+     */
+    public long[] elements() {
+        return elements;
+    }
+
+}
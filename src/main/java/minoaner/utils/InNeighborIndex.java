@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * An immutable index of the in-neighbors of each entity in compressed sparse row (CSR) format, to be broadcast instead of a Map of IntArrayLists.
+ * The in-neighbors of all entities are stored in a single int[], and an int[] of offsets, indexed by entity id, marks where the in-neighbors of each entity start.
+ * Entity ids of the first collection (0, 1, 2, ...) take the first slots of the offsets, and entity ids of the second collection (-1, -2, ...) the following ones,
+ * so the offsets need one slot per entity id up to the maximum id of each collection (entity ids are dense).
+ * Usage: for (int i = index.start(eId); i &lt; index.end(eId); ++i) { int inNeighbor = index.neighbors()[i]; ... }
+ * @author vefthym
+ */
+public class InNeighborIndex implements Serializable {
+
+    private final int positiveSlots; //the number of slots for entity ids >= 0
+    private final int[] offsets; //the in-neighbors of slot s are neighbors[offsets[s]], ..., neighbors[offsets[s+1]-1]
+    private final int[] neighbors;
+
+    /**
+     * Wraps the given arrays (no copy), e.g., when deserializing an index. Use fromMap to build a new index.
+     * @param positiveSlots the number of slots for entity ids &gt;= 0, i.e., the maximum such id + 1
+     * @param offsets the start of the in-neighbors of each slot, followed by the total number of in-neighbors
+     * @param neighbors the in-neighbors of all slots
+     */
+    public InNeighborIndex(int positiveSlots, int[] offsets, int[] neighbors) {
+        this.positiveSlots = positiveSlots;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Builds the index of the given in-neighbors.
+     * @param inNeighbors key: entityId, value: its in-neighbors (from both collections)
+     * @return the index of inNeighbors
+     */
+    public static InNeighborIndex fromMap(Map<Integer, IntArrayList> inNeighbors) {
+        int maxPositiveId = -1, maxNegativeSlot = -1;
+        long numNeighbors = 0;
+        for (Map.Entry<Integer, IntArrayList> entity : inNeighbors.entrySet()) {
+            int eId = entity.getKey();
+            if (eId >= 0) {
+                maxPositiveId = Math.max(maxPositiveId, eId);
+            } else {
+                maxNegativeSlot = Math.max(maxNegativeSlot, -(eId+1));
+            }
+            numNeighbors += entity.getValue().size();
+        }
+        if (numNeighbors > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many in-neighbors for a single index: "+numNeighbors);
+        }
+        int positiveSlots = maxPositiveId + 1;
+        int numSlots = positiveSlots + maxNegativeSlot + 1;
+
+        int[] offsets = new int[numSlots + 1];
+        for (Map.Entry<Integer, IntArrayList> entity : inNeighbors.entrySet()) { //count the in-neighbors of each slot
+            offsets[slot(entity.getKey(), positiveSlots) + 1] = entity.getValue().size();
+        }
+        for (int s = 0; s < numSlots; ++s) { //prefix sums
+            offsets[s+1] += offsets[s];
+        }
+        int[] neighbors = new int[(int) numNeighbors];
+        for (Map.Entry<Integer, IntArrayList> entity : inNeighbors.entrySet()) {
+            IntArrayList eInNeighbors = entity.getValue();
+            System.arraycopy(eInNeighbors.elements(), 0, neighbors, offsets[slot(entity.getKey(), positiveSlots)], eInNeighbors.size());
+        }
+        return new InNeighborIndex(positiveSlots, offsets, neighbors);
+    }
+
+    private static int slot(int eId, int positiveSlots) {
+        return eId >= 0 ? eId : positiveSlots - (eId+1);
+    }
+
+    /**
+     * @return the slot of eId, or -1, if eId is beyond the indexed ids
+     */
+    private int indexedSlot(int eId) {
+        if (eId >= positiveSlots) {
+            return -1;
+        }
+        int s = slot(eId, positiveSlots);
+        return (s < 0 || s >= offsets.length - 1) ? -1 : s; //s < 0 on overflow
+    }
+
+    /**
+     * @param eId an entity id
+     * @return the position of the first in-neighbor of eId in neighbors()
+     */
+    public int start(int eId) {
+        int s = indexedSlot(eId);
+        return s < 0 ? 0 : offsets[s];
+    }
+
+    /**
+     * @param eId an entity id
+     * @return the position after the last in-neighbor of eId in neighbors() (equal to start(eId), if eId has no in-neighbors)
+     */
+    public int end(int eId) {
+        int s = indexedSlot(eId);
+        return s < 0 ? 0 : offsets[s+1];
+    }
+
+    /**
+     * @return the in-neighbors of all entities (not to be modified), see start and end
+     */
+    public int[] neighbors() {
+        return neighbors;
+    }
+
+    /**
+     * @param eId an entity id
+     * @return the number of in-neighbors of eId
+     */
+    public int size(int eId) {
+        return end(eId) - start(eId);
+    }
+
+    /**
+     * @param eId an entity id
+     * @return a copy of the in-neighbors of eId, or null, if eId has no in-neighbors (like Map.get)
+     */
+    public IntArrayList get(int eId) {
+        int start = start(eId), end = end(eId);
+        return start == end ? null : IntArrayList.wrap(Arrays.copyOfRange(neighbors, start, end));
+    }
+
+    public int getPositiveSlots() {
+        return positiveSlots;
+    }
+
+    /**
+     * @return the offsets of the slots (not to be modified)
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @return the total number of in-neighbors of all entities
+     */
+    public int numNeighbors() {
+        return neighbors.length;
+    }
+
+}
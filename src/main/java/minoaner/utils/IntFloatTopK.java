@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.Serializable;
+import java.util.Arrays;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Keeps the top-K (id, score) pairs in a fixed-size min-heap of primitive ints and floats.
+ * Replaces sorting the whole candidate map (e.g., with {@link Utils#sortByValue(java.util.Map, boolean)}) to keep only K of them.
+ * Ties are broken deterministically: for equal scores, the smaller id is ranked higher.
+ * If created with {@link #maxPerId(int)}, each id is kept at most once, with its maximum offered score, 
+ * using an index from ids to heap positions, so that offering an id that is already kept (or evicting one) still takes O(log K) time.
+ * @author vefthym
+ */
+public class IntFloatTopK implements Serializable {
+
+    private static final int INITIAL_CAPACITY = 16; //the arrays grow up to K, as pairs are offered
+
+    private final int K;
+    private int[] ids;
+    private float[] scores;
+    private int size;
+    private boolean ranked;
+    private final Int2IntOpenHashMap positions; //key: a kept id, value: its position in the heap; null, unless the maximum score per id is kept
+
+    public IntFloatTopK(int K) {
+        this(K, false);
+    }
+
+    private IntFloatTopK(int K, boolean maxPerId) {
+        this(K, new int[Math.max(0, Math.min(K, INITIAL_CAPACITY))], new float[Math.max(0, Math.min(K, INITIAL_CAPACITY))], 0, false, maxPerId);
+    }
+
+    /**
+     * Restores a top-K from its arrays (no copy), e.g., when deserializing it.
+     * @param K the K in top-K
+     * @param ids the kept ids in their first size positions, in heap order (or in descending score, if ranked)
+     * @param scores the scores of the kept ids
+     * @param size the number of kept pairs
+     * @param ranked true, if the pairs are sorted in descending score
+     * @param maxPerId true, if each id is kept at most once, with its maximum score
+     */
+    public IntFloatTopK(int K, int[] ids, float[] scores, int size, boolean ranked, boolean maxPerId) {
+        this.K = K;
+        this.ids = ids;
+        this.scores = scores;
+        this.size = size;
+        this.ranked = ranked;
+        if (maxPerId) {
+            positions = new Int2IntOpenHashMap(size);
+            for (int i = 0; i < size; ++i) {
+                positions.put(ids[i], i);
+            }
+        } else {
+            positions = null;
+        }
+    }
+
+    /**
+     * Creates an empty top-K that keeps each id at most once, with the maximum score offered for it.
+     * @param K the K in top-K
+     * @return a new top-K with the maximum score per id
+     */
+    public static IntFloatTopK maxPerId(int K) {
+        return new IntFloatTopK(K, true);
+    }
+
+    /**
+     * Returns the top-K entries of the input map, ranked in descending score.
+     * @param candidates key: a candidate id, value: its score
+     * @param K the K in top-K
+     * @return the top-K entries of the input map, ranked in descending score
+     */
+    public static IntFloatTopK select(Int2FloatMap candidates, int K) {
+        IntFloatTopK topK = new IntFloatTopK(Math.min(K, candidates.size()));
+        ObjectIterator<Int2FloatMap.Entry> it = candidates.int2FloatEntrySet() instanceof Int2FloatMap.FastEntrySet
+                ? ((Int2FloatMap.FastEntrySet) candidates.int2FloatEntrySet()).fastIterator()
+                : candidates.int2FloatEntrySet().iterator();
+        while (it.hasNext()) {
+            Int2FloatMap.Entry candidate = it.next();
+            topK.offer(candidate.getIntKey(), candidate.getFloatValue());
+        }
+        return topK.rank();
+    }
+
+    /**
+     * Offers a new (id, score) pair. It is kept if there are less than K pairs so far, or if it is better than the worst kept pair.
+     * If the maximum score per id is kept and id is already kept, only its score is updated, if the new score is higher.
+     * @param id
+     * @param score
+     * @return true, if the pair is kept
+     */
+    public boolean offer(int id, float score) {
+        if (ranked) {
+            throw new IllegalStateException("no pairs can be offered after ranking");
+        }
+        if (positions != null && positions.containsKey(id)) {
+            int i = positions.get(id);
+            if (score <= scores[i]) {
+                return false;
+            }
+            scores[i] = score;
+            siftDown(i, size); //a better pair moves away from the worst one, at the root
+            return true;
+        }
+        if (size < K) {
+            if (size == ids.length) {
+                int capacity = (int) Math.min(K, Math.max(INITIAL_CAPACITY, 2L * size));
+                ids = Arrays.copyOf(ids, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            ids[size] = id;
+            scores[size] = score;
+            if (positions != null) {
+                positions.put(id, size);
+            }
+            siftUp(size++);
+            return true;
+        }
+        if (K == 0 || !isWorse(ids[0], scores[0], id, score)) {
+            return false;
+        }
+        if (positions != null) {
+            positions.remove(ids[0]);
+            positions.put(id, 0);
+        }
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Offers all the kept pairs of other, e.g., to merge the top-Ks of two partitions.
+     * @param other an unranked top-K
+     * @return this
+     */
+    public IntFloatTopK addAll(IntFloatTopK other) {
+        for (int i = 0; i < other.size; ++i) {
+            offer(other.ids[i], other.scores[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Sorts the kept pairs in descending score (in place, with heapsort). No more pairs can be offered after this call.
+     * @return this
+     */
+    public IntFloatTopK rank() {
+        if (!ranked) {
+            for (int last = size-1; last > 0; --last) {
+                swap(0, last); //move the worst remaining pair to the end
+                siftDown(0, last);
+            }
+            ranked = true;
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getK() {
+        return K;
+    }
+
+    public boolean isRanked() {
+        return ranked;
+    }
+
+    /**
+     * @return true, if each id is kept at most once, with its maximum score
+     */
+    public boolean isMaxPerId() {
+        return positions != null;
+    }
+
+    /**
+     * @return the kept ids in their first size() positions, in heap order, or in descending score, if ranked (not to be modified)
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return the scores of the kept ids, in the same positions as getIds() (not to be modified)
+     */
+    public float[] getScores() {
+        return scores;
+    }
+
+    /**
+     * @param rank the rank of a kept pair, starting from 0 for the best
+     * @return the id of the pair in this rank
+     */
+    public int getId(int rank) {
+        rank();
+        return ids[rank];
+    }
+
+    /**
+     * @param rank the rank of a kept pair, starting from 0 for the best
+     * @return the score of the pair in this rank
+     */
+    public float getScore(int rank) {
+        rank();
+        return scores[rank];
+    }
+
+    /**
+     * @return the kept ids, in descending score
+     */
+    public IntArrayList toIntArrayList() {
+        rank();
+        IntArrayList result = new IntArrayList(size);
+        result.addElements(0, ids, 0, size);
+        return result;
+    }
+
+    /**
+     * @return the kept (id, score) pairs, in descending score
+     */
+    public Int2FloatLinkedOpenHashMap toInt2FloatLinkedOpenHashMap() {
+        rank();
+        Int2FloatLinkedOpenHashMap result = new Int2FloatLinkedOpenHashMap(size);
+        for (int i = 0; i < size; ++i) {
+            result.put(ids[i], scores[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return true, if (id1, score1) is ranked lower than (id2, score2)
+     */
+    private static boolean isWorse(int id1, float score1, int id2, float score2) {
+        int comparison = Float.compare(score1, score2);
+        return comparison < 0 || (comparison == 0 && id1 > id2);
+    }
+
+    private boolean isWorse(int i, int j) {
+        return isWorse(ids[i], scores[i], ids[j], scores[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i-1) >>> 1;
+            if (!isWorse(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int heapSize) {
+        while (true) {
+            int worst = i;
+            int left = 2*i + 1;
+            int right = left + 1;
+            if (left < heapSize && isWorse(left, worst)) {
+                worst = left;
+            }
+            if (right < heapSize && isWorse(right, worst)) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int tmpId = ids[i];
+        ids[i] = ids[j];
+        ids[j] = tmpId;
+        float tmpScore = scores[i];
+        scores[i] = scores[j];
+        scores[j] = tmpScore;
+        if (positions != null) {
+            positions.put(ids[i], i);
+            positions.put(ids[j], j);
+        }
+    }
+
+}
@@ -15,13 +15,34 @@
  */
 package minoaner.utils;
 
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import minoaner.relationsWeighting.RelationStatistics;
+import minoaner.relationsWeighting.TopRelationNeighbors;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.serializer.KryoRegistrator;
 
 /**
- *
+ * Registers the classes that are shuffled, cached or broadcast by MinoanER.
+ * The primitive collections get custom serializers, since the default FieldSerializer of Kryo
+ * would either skip their (transient) backing arrays or write them with one entry per bucket.
+ * All entity ids are written as zig-zag varints, since they can be negative (entities of the second collection).
  * @author vefthym
  */
 public class MyKryoRegistrator implements KryoRegistrator {
@@ -30,12 +51,32 @@ public class MyKryoRegistrator implements KryoRegistrator {
     public void registerClasses(Kryo kryo) {
         kryo.register(Integer.class);
         kryo.register(Integer[].class);
-        kryo.register(Class.class/*, new ClassSerializer()*/); 
+        kryo.register(Class.class/*, new ClassSerializer()*/);
         kryo.register(Object.class);
         kryo.register(Object[].class);
+        kryo.register(int[].class);
+        kryo.register(float[].class);
+        kryo.register(long[].class);
         //kryo.register(VIntWritable.class);
         //kryo.register(VIntWritable[].class);
         //kryo.register(VIntArrayWritable.class);
+
+        kryo.register(IntArrayList.class, new IntArrayListSerializer());
+        kryo.register(IntOpenHashSet.class, new IntOpenHashSetSerializer());
+        kryo.register(Int2FloatOpenHashMap.class, new Int2FloatOpenHashMapSerializer());
+        kryo.register(Int2FloatLinkedOpenHashMap.class, new Int2FloatLinkedOpenHashMapSerializer());
+        kryo.register(ComparableIntFloatPair.class, new ComparableIntFloatPairSerializer());
+        kryo.register(ComparableIntFloatPairDUMMY.class, new ComparableIntFloatPairDUMMYSerializer());
+        kryo.register(ComparableIntFloatPairDescendingComparator.class);
+        kryo.register(PriorityQueue.class, new PriorityQueueSerializer());
+        kryo.register(GrowableLongArray.class, new GrowableLongArraySerializer());
+        kryo.register(InNeighborIndex.class, new InNeighborIndexSerializer());
+        kryo.register(FrontCodedDictionary.class, new FrontCodedDictionarySerializer());
+        kryo.register(EncodedTriple.class, new EncodedTripleSerializer());
+        kryo.register(String[].class);
+        kryo.register(TopRelationNeighbors.class, new TopRelationNeighborsSerializer());
+        kryo.register(RelationStatistics.class, new RelationStatisticsSerializer());
+        kryo.register(IntFloatTopK.class, new IntFloatTopKSerializer());
         try {
             kryo.register(Class.forName("scala.reflect.ClassTag$$anon$1"));
             kryo.register(Class.forName("scala.reflect.ManifestFactory$$anon$2"));
@@ -43,5 +84,399 @@ public class MyKryoRegistrator implements KryoRegistrator {
             Logger.getLogger(MyKryoRegistrator.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
-    
+
+    /**
+     * Writes the size of the list, followed by its elements, packed as varints.
+     */
+    public static class IntArrayListSerializer extends Serializer<IntArrayList> {
+        @Override
+        public void write(Kryo kryo, Output output, IntArrayList list) {
+            int size = list.size();
+            int[] elements = list.elements();
+            output.writeVarInt(size, true);
+            for (int i = 0; i < size; ++i) {
+                output.writeVarInt(elements[i], false);
+            }
+        }
+
+        @Override
+        public IntArrayList read(Kryo kryo, Input input, Class<IntArrayList> type) {
+            int size = input.readVarInt(true);
+            int[] elements = new int[size];
+            for (int i = 0; i < size; ++i) {
+                elements[i] = input.readVarInt(false);
+            }
+            return IntArrayList.wrap(elements);
+        }
+    }
+
+    /**
+     * Writes the size of the array, followed by its elements, packed as varlongs.
+     */
+    public static class GrowableLongArraySerializer extends Serializer<GrowableLongArray> {
+        @Override
+        public void write(Kryo kryo, Output output, GrowableLongArray array) {
+            int size = array.size();
+            long[] elements = array.elements();
+            output.writeVarInt(size, true);
+            for (int i = 0; i < size; ++i) {
+                output.writeVarLong(elements[i], true);
+            }
+        }
+
+        @Override
+        public GrowableLongArray read(Kryo kryo, Input input, Class<GrowableLongArray> type) {
+            int size = input.readVarInt(true);
+            long[] elements = new long[size];
+            for (int i = 0; i < size; ++i) {
+                elements[i] = input.readVarLong(true);
+            }
+            return GrowableLongArray.wrap(elements, size);
+        }
+    }
+
+    /**
+     * Writes the number of slots, the number of in-neighbors of each slot (instead of the offsets, which keep increasing) 
+     * and the in-neighbors, all packed as varints.
+     */
+    public static class InNeighborIndexSerializer extends Serializer<InNeighborIndex> {
+        public InNeighborIndexSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, InNeighborIndex index) {
+            int[] offsets = index.getOffsets();
+            int[] neighbors = index.neighbors();
+            output.writeVarInt(index.getPositiveSlots(), true);
+            output.writeVarInt(offsets.length, true);
+            for (int s = 1; s < offsets.length; ++s) {
+                output.writeVarInt(offsets[s] - offsets[s-1], true);
+            }
+            output.writeVarInt(neighbors.length, true);
+            for (int neighbor : neighbors) {
+                output.writeVarInt(neighbor, false);
+            }
+        }
+
+        @Override
+        public InNeighborIndex read(Kryo kryo, Input input, Class<InNeighborIndex> type) {
+            int positiveSlots = input.readVarInt(true);
+            int[] offsets = new int[input.readVarInt(true)];
+            for (int s = 1; s < offsets.length; ++s) {
+                offsets[s] = offsets[s-1] + input.readVarInt(true);
+            }
+            int[] neighbors = new int[input.readVarInt(true)];
+            for (int i = 0; i < neighbors.length; ++i) {
+                neighbors[i] = input.readVarInt(false);
+            }
+            return new InNeighborIndex(positiveSlots, offsets, neighbors);
+        }
+    }
+
+    /**
+     * Writes the bucket size, the default return value, the length of each bucket (instead of the offsets, which keep increasing), 
+     * the front-coded keys as they are and the values, packed as varints.
+     */
+    public static class FrontCodedDictionarySerializer extends Serializer<FrontCodedDictionary> {
+        public FrontCodedDictionarySerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, FrontCodedDictionary dictionary) {
+            int[] bucketOffsets = dictionary.getBucketOffsets();
+            byte[] data = dictionary.getData();
+            int[] values = dictionary.getValues();
+            output.writeVarInt(dictionary.getBucketSize(), true);
+            output.writeVarInt(dictionary.defaultReturnValue(), false);
+            output.writeVarInt(bucketOffsets.length, true);
+            for (int b = 1; b < bucketOffsets.length; ++b) {
+                output.writeVarInt(bucketOffsets[b] - bucketOffsets[b-1], true);
+            }
+            output.writeVarInt(data.length, true);
+            output.writeBytes(data);
+            output.writeVarInt(values.length, true);
+            for (int value : values) {
+                output.writeVarInt(value, false);
+            }
+        }
+
+        @Override
+        public FrontCodedDictionary read(Kryo kryo, Input input, Class<FrontCodedDictionary> type) {
+            int bucketSize = input.readVarInt(true);
+            int defaultReturnValue = input.readVarInt(false);
+            int[] bucketOffsets = new int[input.readVarInt(true)];
+            for (int b = 1; b < bucketOffsets.length; ++b) {
+                bucketOffsets[b] = bucketOffsets[b-1] + input.readVarInt(true);
+            }
+            byte[] data = input.readBytes(input.readVarInt(true));
+            int[] values = new int[input.readVarInt(true)];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = input.readVarInt(false);
+            }
+            FrontCodedDictionary dictionary = new FrontCodedDictionary(bucketSize, bucketOffsets, data, values);
+            dictionary.defaultReturnValue(defaultReturnValue);
+            return dictionary;
+        }
+    }
+
+    /**
+     * Writes the ids of the triple as varints, followed by its literal, if any.
+     */
+    public static class EncodedTripleSerializer extends Serializer<EncodedTriple> {
+        public EncodedTripleSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, EncodedTriple triple) {
+            output.writeVarInt(triple.getSubjectId(), false);
+            output.writeVarInt(triple.getPredicateId(), true);
+            output.writeVarInt(triple.getObjectId(), false);
+            output.writeString(triple.getLiteral()); //null, if the object is an entity
+        }
+
+        @Override
+        public EncodedTriple read(Kryo kryo, Input input, Class<EncodedTriple> type) {
+            return new EncodedTriple(input.readVarInt(false), input.readVarInt(true), input.readVarInt(false), input.readString());
+        }
+    }
+
+    public static class IntOpenHashSetSerializer extends Serializer<IntOpenHashSet> {
+        @Override
+        public void write(Kryo kryo, Output output, IntOpenHashSet set) {
+            output.writeVarInt(set.size(), true);
+            for (IntIterator it = set.iterator(); it.hasNext(); ) {
+                output.writeVarInt(it.nextInt(), false);
+            }
+        }
+
+        @Override
+        public IntOpenHashSet read(Kryo kryo, Input input, Class<IntOpenHashSet> type) {
+            int size = input.readVarInt(true);
+            IntOpenHashSet set = new IntOpenHashSet(size);
+            for (int i = 0; i < size; ++i) {
+                set.add(input.readVarInt(false));
+            }
+            return set;
+        }
+    }
+
+    /**
+     * Writes the size of the map, followed by its (key, value) pairs in iteration order.
+     * Keeping the iteration order matters for the linked maps, which hold candidates in descending score.
+     */
+    private static void writeInt2FloatMap(Output output, Int2FloatMap map) {
+        output.writeVarInt(map.size(), true);
+        ObjectIterator<Int2FloatMap.Entry> it = map.int2FloatEntrySet() instanceof Int2FloatMap.FastEntrySet
+                ? ((Int2FloatMap.FastEntrySet) map.int2FloatEntrySet()).fastIterator()
+                : map.int2FloatEntrySet().iterator();
+        while (it.hasNext()) {
+            Int2FloatMap.Entry entry = it.next();
+            output.writeVarInt(entry.getIntKey(), false);
+            output.writeFloat(entry.getFloatValue());
+        }
+    }
+
+    private static <T extends Int2FloatMap> T readInt2FloatMap(Input input, T map, int size) {
+        for (int i = 0; i < size; ++i) {
+            int key = input.readVarInt(false);
+            map.put(key, input.readFloat());
+        }
+        return map;
+    }
+
+    public static class Int2FloatOpenHashMapSerializer extends Serializer<Int2FloatOpenHashMap> {
+        @Override
+        public void write(Kryo kryo, Output output, Int2FloatOpenHashMap map) {
+            writeInt2FloatMap(output, map);
+        }
+
+        @Override
+        public Int2FloatOpenHashMap read(Kryo kryo, Input input, Class<Int2FloatOpenHashMap> type) {
+            int size = input.readVarInt(true);
+            return readInt2FloatMap(input, new Int2FloatOpenHashMap(size), size);
+        }
+    }
+
+    public static class Int2FloatLinkedOpenHashMapSerializer extends Serializer<Int2FloatLinkedOpenHashMap> {
+        @Override
+        public void write(Kryo kryo, Output output, Int2FloatLinkedOpenHashMap map) {
+            writeInt2FloatMap(output, map);
+        }
+
+        @Override
+        public Int2FloatLinkedOpenHashMap read(Kryo kryo, Input input, Class<Int2FloatLinkedOpenHashMap> type) {
+            int size = input.readVarInt(true);
+            return readInt2FloatMap(input, new Int2FloatLinkedOpenHashMap(size), size);
+        }
+    }
+
+    public static class ComparableIntFloatPairSerializer extends Serializer<ComparableIntFloatPair> {
+        public ComparableIntFloatPairSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, ComparableIntFloatPair pair) {
+            output.writeVarInt(pair.getEntityId(), false);
+            output.writeFloat(pair.getValue());
+        }
+
+        @Override
+        public ComparableIntFloatPair read(Kryo kryo, Input input, Class<ComparableIntFloatPair> type) {
+            int entityId = input.readVarInt(false);
+            return new ComparableIntFloatPair(entityId, input.readFloat());
+        }
+    }
+
+    public static class ComparableIntFloatPairDUMMYSerializer extends Serializer<ComparableIntFloatPairDUMMY> {
+        public ComparableIntFloatPairDUMMYSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, ComparableIntFloatPairDUMMY pair) {
+            output.writeVarInt(pair.getEntityId(), false);
+            output.writeFloat(pair.getValue());
+            output.writeVarInt(pair.getType().ordinal(), true);
+        }
+
+        @Override
+        public ComparableIntFloatPairDUMMY read(Kryo kryo, Input input, Class<ComparableIntFloatPairDUMMY> type) {
+            int entityId = input.readVarInt(false);
+            float value = input.readFloat();
+            return new ComparableIntFloatPairDUMMY(entityId, value, ComparableIntFloatPairDUMMY.TYPE.values()[input.readVarInt(true)]);
+        }
+    }
+
+    /**
+     * Writes N and the number of neighbors, followed by the (neighborId, rank) pairs.
+     * The default FieldSerializer would write the red-black tree of the neighbors per rank node by node.
+     */
+    public static class TopRelationNeighborsSerializer extends Serializer<TopRelationNeighbors> {
+        @Override
+        public void write(Kryo kryo, Output output, TopRelationNeighbors top) {
+            output.writeVarInt(top.getN(), true);
+            output.writeVarInt(top.size(), true);
+            ObjectIterator<Int2IntMap.Entry> it = top.getBestRanks().int2IntEntrySet().fastIterator();
+            while (it.hasNext()) {
+                Int2IntMap.Entry neighbor = it.next();
+                output.writeVarInt(neighbor.getIntKey(), false);
+                output.writeVarInt(neighbor.getIntValue(), false); //-1 for relations without a rank
+            }
+        }
+
+        @Override
+        public TopRelationNeighbors read(Kryo kryo, Input input, Class<TopRelationNeighbors> type) {
+            TopRelationNeighbors top = new TopRelationNeighbors(input.readVarInt(true));
+            int size = input.readVarInt(true);
+            for (int i = 0; i < size; ++i) {
+                int neighborId = input.readVarInt(false);
+                top.add(neighborId, input.readVarInt(false));
+            }
+            return top;
+        }
+    }
+
+    /**
+     * Writes K, the mode and the kept (id, score) pairs in their current order, without the unused slots of the arrays and without the index of the ids.
+     */
+    public static class IntFloatTopKSerializer extends Serializer<IntFloatTopK> {
+        @Override
+        public void write(Kryo kryo, Output output, IntFloatTopK topK) {
+            output.writeVarInt(topK.getK(), true);
+            output.writeBoolean(topK.isRanked());
+            output.writeBoolean(topK.isMaxPerId());
+            output.writeVarInt(topK.size(), true);
+            int[] ids = topK.getIds();
+            float[] scores = topK.getScores();
+            for (int i = 0; i < topK.size(); ++i) {
+                output.writeVarInt(ids[i], false);
+                output.writeFloat(scores[i]);
+            }
+        }
+
+        @Override
+        public IntFloatTopK read(Kryo kryo, Input input, Class<IntFloatTopK> type) {
+            int K = input.readVarInt(true);
+            boolean ranked = input.readBoolean();
+            boolean maxPerId = input.readBoolean();
+            int size = input.readVarInt(true);
+            int[] ids = new int[size];
+            float[] scores = new float[size];
+            for (int i = 0; i < size; ++i) {
+                ids[i] = input.readVarInt(false);
+                scores[i] = input.readFloat();
+            }
+            return new IntFloatTopK(K, ids, scores, size, ranked, maxPerId);
+        }
+    }
+
+    /**
+     * Writes the number of instances, followed by either the set of objects, or the bytes of the HyperLogLog++ sketch.
+     */
+    public static class RelationStatisticsSerializer extends Serializer<RelationStatistics> {
+        private final IntOpenHashSetSerializer setSerializer = new IntOpenHashSetSerializer();
+
+        @Override
+        public void write(Kryo kryo, Output output, RelationStatistics stats) {
+            output.writeVarLong(stats.getNumInstances(), true);
+            output.writeBoolean(stats.getObjects() != null);
+            if (stats.getObjects() != null) {
+                setSerializer.write(kryo, output, stats.getObjects());
+            } else {
+                try {
+                    byte[] sketch = stats.getSketch().getBytes();
+                    output.writeVarInt(sketch.length, true);
+                    output.writeBytes(sketch);
+                } catch (IOException ex) {
+                    throw new KryoException(ex);
+                }
+            }
+        }
+
+        @Override
+        public RelationStatistics read(Kryo kryo, Input input, Class<RelationStatistics> type) {
+            long numInstances = input.readVarLong(true);
+            if (input.readBoolean()) {
+                return new RelationStatistics(numInstances, setSerializer.read(kryo, input, IntOpenHashSet.class), null);
+            }
+            try {
+                HyperLogLogPlus sketch = HyperLogLogPlus.Builder.build(input.readBytes(input.readVarInt(true)));
+                return new RelationStatistics(numInstances, null, sketch);
+            } catch (IOException ex) {
+                throw new KryoException(ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the comparator of the queue (null for natural ordering), followed by its elements.
+     * The default CollectionSerializer of Kryo would lose the comparator (e.g., a descending order would become ascending).
+     */
+    public static class PriorityQueueSerializer extends Serializer<PriorityQueue<Object>> {
+        @Override
+        public void write(Kryo kryo, Output output, PriorityQueue<Object> pq) {
+            kryo.writeClassAndObject(output, pq.comparator());
+            output.writeVarInt(pq.size(), true);
+            for (Object element : pq) {
+                kryo.writeClassAndObject(output, element);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") //the comparator was written by write, for the elements of the same queue
+        public PriorityQueue<Object> read(Kryo kryo, Input input, Class<PriorityQueue<Object>> type) {
+            Comparator<Object> comparator = (Comparator<Object>) kryo.readClassAndObject(input);
+            int size = input.readVarInt(true);
+            PriorityQueue<Object> pq = new PriorityQueue<>(Math.max(1, size), comparator);
+            for (int i = 0; i < size; ++i) {
+                pq.add(kryo.readClassAndObject(input));
+            }
+            return pq;
+        }
+    }
+
 }
@@ -117,13 +117,22 @@ public class Utils {
      * @return a map from an entity url to its entity id, that is also used by blocking.
      */
     public static Object2IntOpenHashMap<String> readEntityIdsMapping(JavaRDD<String> entityIdsText, boolean positiveIds) {        
-        return new Object2IntOpenHashMap<>(entityIdsText
+        return new Object2IntOpenHashMap<>(parseEntityIds(entityIdsText, positiveIds).collectAsMap());
+    }
+    
+    /**
+     * Parses the mapping of entity urls to entity ids, without collecting it.
+     * @param entityIdsText lines of the form entityUrl\tentityId
+     * @param positiveIds false, if the ids will be later converted to negatives, so that their numbering should start from -1, instead of 0
+     * @return key: the (lowercased) entity url, value: its entity id
+     */
+    public static JavaPairRDD<String,Integer> parseEntityIds(JavaRDD<String> entityIdsText, boolean positiveIds) {        
+        return entityIdsText
             .mapToPair(line -> {
                 String[] parts = line.toLowerCase().split("\t");
                 Integer id = Integer.parseInt(parts[1]);
                 return new Tuple2<>(parts[0], positiveIds ? id : id + 1); //negative ids should start from -1, not 0. they will be negated later
-            })
-            .collectAsMap());
+            });
     }
     
     /**
@@ -202,11 +211,33 @@ public class Utils {
      * @return 
      */
     public static SparkSession setUpSpark(String appName, int NUM_CORES_IN_CLUSTER, int NUM_WORKERS, int parallelismFactor, String tmpPath) {
+        return setUpSpark(appName, NUM_CORES_IN_CLUSTER, NUM_WORKERS, parallelismFactor, tmpPath, true);
+    }
+    
+    /**
+     * Sets up a new SparkSession
+     * @param appName The name that will show up in the Web UI (and the history server)
+     * @param NUM_CORES_IN_CLUSTER the number of available cores in the cluster
+     * @param NUM_WORKERS the number of worker nodes in the cluster
+     * @param parallelismFactor spark tuning documentation suggests 2 or 3, unless OOM error (in that case more)
+     * @param tmpPath
+     * @param useKryo true, to serialize shuffled and cached data with Kryo (using {@link MyKryoRegistrator}), false to use Java serialization
+     * @return 
+     */
+    public static SparkSession setUpSpark(String appName, int NUM_CORES_IN_CLUSTER, int NUM_WORKERS, int parallelismFactor, String tmpPath, boolean useKryo) {
         final int NUM_EXECUTORS = NUM_WORKERS * 2; //standard: NUM_WORKERS *3
         final int NUM_EXECUTOR_CORES = NUM_CORES_IN_CLUSTER/NUM_EXECUTORS;
         final int PARALLELISM = NUM_EXECUTORS * NUM_EXECUTOR_CORES * parallelismFactor;
+        
+        SparkSession.Builder builder = SparkSession.builder();
+        if (useKryo) {
+            builder = builder
+                .config("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+                .config("spark.kryo.registrator", MyKryoRegistrator.class.getName())
+                .config("spark.kryoserializer.buffer.max", "1g"); //a single huge block (IntArrayList) should still fit in the buffer
+        }
                        
-        return SparkSession.builder()
+        return builder
             .appName(appName) 
             .config("spark.sql.warehouse.dir", tmpPath)
             .config("spark.eventLog.enabled", true)
@@ -224,23 +255,129 @@ public class Utils {
             .getOrCreate();        
     }
     
+    private static final String DBPEDIA_RESOURCE_PREFIX = "<http://dbpedia.org/resource/";
+    private static final int URI_CACHE_SIZE = 1 << 12; //the number of encodings that each thread remembers (a power of 2)
+    private static final ThreadLocal<String[]> URI_CACHE = ThreadLocal.withInitial(() -> new String[2 * URI_CACHE_SIZE]); //uri at 2*slot, its encoding at 2*slot+1
+    
+    /**
+     * URL-encodes (in UTF-8) the local name of a DBpedia resource, after unescaping its Java escapes, so that it matches the encoded URIs of the entity ids.
+     * Other URIs, and DBpedia URIs that are already encoded (i.e., containing '%'), are returned as they are.
+     * The local names that URLEncoder would not change (only letters, digits, '.', '-', '*' and '_') are detected in a single scan, without allocations,
+     * and the encodings of the rest are kept in a small direct-mapped cache per thread (i.e., per executor core), since the same objects appear in many triples.
+     * @param uri a (lowercased) subject or object of a triple
+     * @return the uri, with its local name URL-encoded, if it is a DBpedia resource
+     */
     public static String encodeURIinUTF8(String uri) {
-        if (uri.startsWith("<http://dbpedia.org/resource/")) {            
-            int splitPoint = uri.lastIndexOf("/")+1;
-            String infix = uri.substring(splitPoint, uri.length()-1);
-            if (infix.contains("%")) {
-                return uri;
+        if (!uri.startsWith(DBPEDIA_RESOURCE_PREFIX)) {
+            return uri;
+        }
+        int splitPoint = uri.lastIndexOf('/')+1;
+        if (!needsURLEncoding(uri, splitPoint, uri.length()-1)) {
+            return uri;
+        }
+        String[] cache = URI_CACHE.get();
+        int slot = (uri.hashCode() & (URI_CACHE_SIZE-1)) << 1;
+        if (uri.equals(cache[slot])) {
+            return cache[slot+1];
+        }
+        String encoded = encodeLocalName(uri, splitPoint);
+        cache[slot] = uri;
+        cache[slot+1] = encoded;
+        return encoded;
+    }
+    
+    /**
+     * @return true, if uri[start..end) has a character that encodeLocalName would change, and no '%'
+     */
+    private static boolean needsURLEncoding(String uri, int start, int end) {
+        boolean unsafe = false;
+        for (int i = start; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c == '%') {
+                return false; //already encoded
             }
-            try {
-                infix = infix.replace("\\\\", "\\");
-                infix = StringEscapeUtils.unescapeJava(infix);
-                infix = URLEncoder.encode(infix, "UTF-8");            
-            } catch (UnsupportedEncodingException ex) {
-                System.err.println("Encoding exception: "+ex);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '.' || c == '-' || c == '*' || c == '_')) {
+                unsafe = true; //keep looking for a '%'
             }
-            uri = uri.substring(0, splitPoint) + infix + ">";            
         }
-        return uri;
+        return unsafe;
+    }
+    
+    /**
+     * The encoding of encodeURIinUTF8, without its fast path and cache.
+     */
+    static String encodeLocalName(String uri, int splitPoint) {
+        String infix = uri.substring(splitPoint, uri.length()-1);
+        try {
+            infix = infix.replace("\\\\", "\\");
+            infix = StringEscapeUtils.unescapeJava(infix);
+            infix = URLEncoder.encode(infix, "UTF-8");            
+        } catch (UnsupportedEncodingException ex) {
+            System.err.println("Encoding exception: "+ex);
+        }
+        return uri.substring(0, splitPoint) + infix + ">";
+    }
+    
+    /**
+     * Splits a (lowercased) triple to its subject, predicate and object in a single pass, without regular expressions. 
+     * The object is the rest of the line after the predicate (e.g., a literal with separators), without the ending " ." of valid .nt files.
+     * @param line a triple of an .nt or a .tsv file
+     * @param SEPARATOR the delimiter of subjects, predicates and objects
+     * @return the lowercased subject, predicate and object of the triple, or null, if the line is not a valid triple
+     */
+    public static String[] tokenizeTriple(String line, String SEPARATOR) {
+        line = line.toLowerCase();
+        int end = line.endsWith(" .") ? line.length() - 2 : line.length();
+        int predicateStart = line.indexOf(SEPARATOR) + SEPARATOR.length();
+        if (predicateStart <= SEPARATOR.length() || predicateStart >= end) {
+            return null; //no subject or no predicate
+        }
+        int objectStart = line.indexOf(SEPARATOR, predicateStart) + SEPARATOR.length();
+        if (objectStart <= predicateStart + SEPARATOR.length() || objectStart >= end) {
+            return null; //no predicate or no object
+        }
+        return new String[]{line.substring(0, predicateStart - SEPARATOR.length()), line.substring(predicateStart, objectStart - SEPARATOR.length()), line.substring(objectStart, end)};
+    }
+    
+    /**
+     * Keeps only the lowercase letters, digits and (inner) spaces of a (lowercased) label, e.g., "\"the matrix\"@en" becomes "the matrixen".
+     * @param label the object of a label triple, see tokenizeTriple
+     * @return the normalized label, on which labels of different collections are compared
+     */
+    public static String normalizeLabel(String label) {
+        StringBuilder normalized = new StringBuilder(label.length());
+        for (int i = 0; i < label.length(); ++i) {
+            char c = label.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == ' ') {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString().trim();
+    }
+    
+    /**
+     * Returns the number of records in each partition of the input RDD (triggers a job). 
+     * Useful to detect skewed partitions, e.g., caused by huge blocks.
+     * @param <K> the key type of the RDD
+     * @param <V> the value type of the RDD
+     * @param rdd the input RDD
+     * @return the number of records in each partition of the input RDD, indexed by partition id
+     */
+    public static <K,V> long[] countRecordsPerPartition(JavaPairRDD<K,V> rdd) {
+        List<Tuple2<Integer,Long>> counts = rdd.mapPartitionsWithIndex((partitionId, records) -> {
+                    long count = 0;
+                    while (records.hasNext()) {
+                        records.next();
+                        count++;
+                    }
+                    return Collections.singletonList(new Tuple2<>(partitionId, count)).iterator();
+                }, true)
+                .collect();
+        long[] result = new long[rdd.getNumPartitions()];
+        for (Tuple2<Integer,Long> count : counts) {
+            result[count._1()] = count._2();
+        }
+        return result;
     }
     
     /**
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+
+/**
+ * Collects the timing and shuffle metrics of each stage of a workflow (e.g., block filtering, value CNP, matching).
+ * The driver marks the start of each workflow stage with startStage, which labels all the Spark jobs submitted from then on
+ * (through a local property of the SparkContext), and a SparkListener adds up the metrics of the tasks of the labelled jobs.
+ * Since RDDs are evaluated lazily, the tasks of a workflow stage are the ones of the jobs triggered by its actions,
+ * so a workflow stage should materialize its output (e.g., with persist and count) to be measured separately from the next one.
+ * The listener receives the task metrics asynchronously, so the report is complete after the SparkContext is stopped.
+ * Usage: WorkflowMetrics metrics = WorkflowMetrics.register(jsc); metrics.startStage("blockFiltering"); ...; metrics.endStage(); spark.stop(); metrics.writeJson(path);
+ * @author vefthym
+ */
+public class WorkflowMetrics extends SparkListener {
+
+    public static final String STAGE_PROPERTY = "minoaner.stage"; //the local property holding the label of the current workflow stage
+
+    private final JavaSparkContext jsc;
+    private final Map<String, StageMetrics> stages; //key: a workflow stage, in the order they were started
+    private final Map<Integer, String> stageLabels; //key: the id of a Spark stage, value: the workflow stage it belongs to
+    private String currentStage;
+    private long currentStageStart;
+
+    private WorkflowMetrics(JavaSparkContext jsc) {
+        this.jsc = jsc;
+        this.stages = new LinkedHashMap<>();
+        this.stageLabels = new HashMap<>();
+    }
+
+    /**
+     * Creates new metrics and registers them as a listener of the given context.
+     * @param jsc
+     * @return the new metrics
+     */
+    public static WorkflowMetrics register(JavaSparkContext jsc) {
+        WorkflowMetrics metrics = new WorkflowMetrics(jsc);
+        jsc.sc().addSparkListener(metrics);
+        return metrics;
+    }
+
+    /**
+     * Ends the current workflow stage (if any) and starts the given one. Starting the same stage again adds to its metrics.
+     * @param name the name of the workflow stage in the report
+     */
+    public synchronized void startStage(String name) {
+        endStage();
+        getStage(name);
+        currentStage = name;
+        currentStageStart = System.nanoTime();
+        jsc.setLocalProperty(STAGE_PROPERTY, name);
+    }
+
+    /**
+     * Ends the current workflow stage (if any). The jobs submitted from now on are not measured.
+     */
+    public synchronized void endStage() {
+        if (currentStage != null) {
+            getStage(currentStage).wallTimeNanos += System.nanoTime() - currentStageStart;
+            currentStage = null;
+            jsc.setLocalProperty(STAGE_PROPERTY, null);
+        }
+    }
+
+    private StageMetrics getStage(String name) {
+        StageMetrics stage = stages.get(name);
+        if (stage == null) {
+            stage = new StageMetrics(name);
+            stages.put(name, stage);
+        }
+        return stage;
+    }
+
+    @Override
+    public synchronized void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+        Properties properties = stageSubmitted.properties();
+        String name = properties == null ? null : properties.getProperty(STAGE_PROPERTY);
+        if (name != null) {
+            stageLabels.put(stageSubmitted.stageInfo().stageId(), name);
+            getStage(name).numStages++;
+        }
+    }
+
+    @Override
+    public synchronized void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+        String name = stageLabels.get(taskEnd.stageId());
+        TaskMetrics taskMetrics = taskEnd.taskMetrics();
+        if (name != null && taskMetrics != null) { //no metrics for some failed tasks
+            getStage(name).add(taskMetrics);
+        }
+    }
+
+    /**
+     * @return the metrics of each workflow stage, in the order they were started
+     */
+    public synchronized Map<String, StageMetrics> getStages() {
+        return new LinkedHashMap<>(stages);
+    }
+
+    /**
+     * @return a JSON object with the application name and id, and an array with the metrics of each workflow stage
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"appName\":");
+        appendString(json, jsc.sc().appName());
+        json.append(",\"appId\":");
+        appendString(json, jsc.sc().applicationId());
+        json.append(",\"stages\":[");
+        boolean first = true;
+        for (StageMetrics stage : stages.values()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            stage.appendJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Writes the report (see toJson) to a file of any Hadoop file system, overwriting it, if it exists.
+     * @param path
+     * @throws IOException
+     */
+    public void writeJson(String path) throws IOException {
+        Path reportPath = new Path(path);
+        FileSystem fs = reportPath.getFileSystem(new Configuration());
+        try (Writer writer = new OutputStreamWriter(fs.create(reportPath, true), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+            writer.write("\n");
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * The metrics of a workflow stage, summed over the tasks of all its Spark stages.
+     */
+    public static class StageMetrics {
+        private final String name;
+        private long wallTimeNanos;
+        private int numStages, numTasks;
+        private long executorRunTime, jvmGCTime; //ms
+        private long inputRecords, outputRecords, shuffleRecordsRead, shuffleRecordsWritten;
+        private long inputBytes, shuffleReadBytes, shuffleWriteBytes, memoryBytesSpilled, diskBytesSpilled;
+
+        StageMetrics(String name) {
+            this.name = name;
+        }
+
+        void add(TaskMetrics task) {
+            numTasks++;
+            executorRunTime += task.executorRunTime();
+            jvmGCTime += task.jvmGCTime();
+            inputRecords += task.inputMetrics().recordsRead();
+            inputBytes += task.inputMetrics().bytesRead();
+            outputRecords += task.outputMetrics().recordsWritten();
+            shuffleRecordsRead += task.shuffleReadMetrics().recordsRead();
+            shuffleReadBytes += task.shuffleReadMetrics().totalBytesRead();
+            shuffleRecordsWritten += task.shuffleWriteMetrics().recordsWritten();
+            shuffleWriteBytes += task.shuffleWriteMetrics().bytesWritten();
+            memoryBytesSpilled += task.memoryBytesSpilled();
+            diskBytesSpilled += task.diskBytesSpilled();
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{\"name\":");
+            appendString(json, name);
+            json.append(",\"wallTimeMs\":").append(getWallTimeMs())
+                .append(",\"numStages\":").append(numStages)
+                .append(",\"numTasks\":").append(numTasks)
+                .append(",\"executorRunTimeMs\":").append(executorRunTime)
+                .append(",\"gcTimeMs\":").append(jvmGCTime)
+                .append(",\"recordsIn\":").append(getRecordsIn())
+                .append(",\"recordsOut\":").append(getRecordsOut())
+                .append(",\"inputBytes\":").append(inputBytes)
+                .append(",\"shuffleReadBytes\":").append(shuffleReadBytes)
+                .append(",\"shuffleWriteBytes\":").append(shuffleWriteBytes)
+                .append(",\"memoryBytesSpilled\":").append(memoryBytesSpilled)
+                .append(",\"diskBytesSpilled\":").append(diskBytesSpilled)
+                .append('}');
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the time from the start to the end of the workflow stage in the driver
+         */
+        public long getWallTimeMs() {
+            return wallTimeNanos / 1_000_000;
+        }
+
+        public int getNumStages() {
+            return numStages;
+        }
+
+        public int getNumTasks() {
+            return numTasks;
+        }
+
+        public long getExecutorRunTimeMs() {
+            return executorRunTime;
+        }
+
+        public long getGCTimeMs() {
+            return jvmGCTime;
+        }
+
+        /**
+         * @return the records read from the input and from the shuffle
+         */
+        public long getRecordsIn() {
+            return inputRecords + shuffleRecordsRead;
+        }
+
+        /**
+         * @return the records written to the output and to the shuffle
+         */
+        public long getRecordsOut() {
+            return outputRecords + shuffleRecordsWritten;
+        }
+
+        public long getShuffleReadBytes() {
+            return shuffleReadBytes;
+        }
+
+        public long getShuffleWriteBytes() {
+            return shuffleWriteBytes;
+        }
+
+        public long getMemoryBytesSpilled() {
+            return memoryBytesSpilled;
+        }
+
+        public long getDiskBytesSpilled() {
+            return diskBytesSpilled;
+        }
+    }
+
+}
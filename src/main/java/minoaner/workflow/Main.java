@@ -27,13 +27,22 @@ import java.util.logging.Logger;
 import minoaner.metablocking.entityBased.neighbors.CNPARCS;
 import minoaner.matching.LabelMatchingHeuristic;
 import minoaner.matching.ReciprocalMatchingFromMetaBlocking;
+import minoaner.metablocking.preprocessing.BinaryBlockCollection;
 import minoaner.metablocking.preprocessing.BlockFilteringAdvanced;
+import minoaner.metablocking.preprocessing.BlockFilteringCheckpoint;
 import minoaner.metablocking.preprocessing.BlocksFromEntityIndex;
+import minoaner.utils.EncodedTripleStore;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdDictionary;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.InNeighborIndex;
 import minoaner.utils.Utils;
+import minoaner.utils.WorkflowMetrics;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.util.LongAccumulator;
@@ -84,12 +93,21 @@ public class Main {
             }
         } else {
             System.out.println("You can run Metablocking with the following arguments:"
-                    + "0: inputBlocking" 
+                    + "0: inputBlocking (text or binary format, see BinaryBlockCollection)" 
                     + "1: inputTriples1 (raw rdf triples)"
                     + "2: inputTriples2 (raw rdf triples)"
                     + "3: entityIds1: entityUrl\tentityId (positive)"
                     + "4: entityIds2: entityUrl\tentityId (also positive)"
-                    + "5: outputPath");
+                    + "5: outputPath"
+                    + "6: K (optional)"
+                    + "7: N (optional)"
+                    + "8: valueFactor (optional)"
+                    + "9: cacheDir (optional): where the entity index, the filtered blocks and the encoded triples are cached across runs (empty for no cache)"
+                    + "10: block filtering (optional): the ratio of blocks kept per entity (default: 0.8, 1 for no filtering), or adaptive:targetComparisons"
+                    + "11: in-neighbors (optional): broadcast (default), or join, to keep the in-neighbors in an RDD, for KBs whose in-neighbors do not fit in the driver"
+                    + "12: storage level of the value candidates (optional): e.g., MEMORY_AND_DISK_SER (default), MEMORY_ONLY_SER, DISK_ONLY"
+                    + "13: metrics report (optional): where the JSON report with the metrics of each stage is written (default: outputPath_metrics.json)"
+                    + "14: max broadcast entity ids (optional): the maximum number of entities of a collection, whose ids are broadcast instead of being joined (default: 1000000, 0 to always join)");
             return;
         }
         
@@ -97,6 +115,7 @@ public class Main {
         SparkSession spark = Utils.setUpSpark(appName, 288, 8, 3, tmpPath);
         int PARALLELISM = spark.sparkContext().getConf().getInt("spark.default.parallelism", 144);        
         JavaSparkContext jsc = JavaSparkContext.fromSparkContext(spark.sparkContext()); 
+        WorkflowMetrics metrics = WorkflowMetrics.register(jsc); //timing and shuffle metrics per stage
                        
         
         ////////////////////////
@@ -127,39 +146,105 @@ public class Main {
             labelAtts2 = new HashSet<>(Arrays.asList("<http://www.okkam.org/ontology_restaurant2.owl#name>"));
         }
         
-        //parse triples and entity ids as RDDs
-        JavaRDD<String> triples1 = jsc.textFile(inputTriples1, PARALLELISM).setName("triples1").persist(StorageLevel.MEMORY_AND_DISK_SER());        
-        JavaRDD<String> triples2 = jsc.textFile(inputTriples2, PARALLELISM).setName("triples2").persist(StorageLevel.MEMORY_AND_DISK_SER());        
-        JavaRDD<String> ids1 = jsc.textFile(entityIds1, PARALLELISM).setName("ids1").cache();
-        JavaRDD<String> ids2 = jsc.textFile(entityIds2, PARALLELISM).setName("ids2").cache();
+        //the entity ids of each collection are loaded once, and the triples are parsed once, encoded with them, and shared by label matching and relation ranking
+        //with a cache directory, the encoded triples are stored in a binary format in the first run, and read from there in the next runs (see EncodedTripleStore)
+        metrics.startStage("encodeTriples");
+        final long maxBroadcastIds = (args.length >= 15) ? Long.parseLong(args[14]) : EntityIdDictionary.DEFAULT_MAX_BROADCAST_SIZE;
+        final String cacheDir = (args.length >= 10 && !args[9].isEmpty()) ? args[9] : null;
+        EncodedTriples triples1 = EncodedTripleStore.loadOrEncode(jsc, cacheDir, inputTriples1, SEPARATOR, entityIds1, true, maxBroadcastIds, PARALLELISM);
+        EncodedTriples triples2 = EncodedTripleStore.loadOrEncode(jsc, cacheDir, inputTriples2, SEPARATOR, entityIds2, false, maxBroadcastIds, PARALLELISM);
         
         //label matching heuristic first
-        JavaPairRDD<Integer,Integer> matchesFromLabels = new LabelMatchingHeuristic().getMatchesFromLabels(triples1, triples2, ids1, ids2, SEPARATOR, labelAtts1, labelAtts2);
+        metrics.startStage("labelMatching");
+        JavaPairRDD<Integer,Integer> matchesFromLabels = new LabelMatchingHeuristic().getMatchesFromLabels(triples1, triples2, labelAtts1, labelAtts2);
         matchesFromLabels.setName("matchesFromLabels").cache();
+        System.out.println(matchesFromLabels.count()+" matches have been found from labels");
         
         //Meta-Blocking
         
-        //Block Filtering (delete the biggest blocks of each entity)
-        System.out.println("\n\nStarting BlockFiltering, reading from "+inputPath);
-        LongAccumulator BLOCK_ASSIGNMENTS_ACCUM = jsc.sc().longAccumulator();        
-        JavaPairRDD<Integer,IntArrayList> entityIndex = new BlockFilteringAdvanced().run(jsc.textFile(inputPath), BLOCK_ASSIGNMENTS_ACCUM);                 
-        entityIndex.setName("entityIndex").cache();
+        //block filtering keeps a fixed ratio of the blocks of each entity, or picks the ratio that gives a target number of comparisons (adaptive:targetComparisons)
+        final String filtering = (args.length >= 11) ? args[10] : String.valueOf(BlockFilteringAdvanced.FILTERING_RATIO);
         
+        //the entity index and the filtered blocks are cached (if a cache directory is given), to be reused by runs on the same blocking collection
+        BlockFilteringCheckpoint checkpoint = null;
+        boolean fromCheckpoint = false;
+        if (cacheDir != null) {
+            try {
+                checkpoint = new BlockFilteringCheckpoint(cacheDir, inputPath, filtering);
+                fromCheckpoint = checkpoint.exists();
+            } catch (IOException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                checkpoint = null;
+            }
+        }
         
-        //Blocks From Entity Index (after block filtering, reconstruct the blocks with their remaining entities)
-        System.out.println("\n\nStarting BlocksFromEntityIndex...");                
-        LongAccumulator CLEAN_BLOCK_ACCUM = jsc.sc().longAccumulator();
-        LongAccumulator NUM_COMPARISONS_ACCUM = jsc.sc().longAccumulator();                
-        JavaPairRDD<Integer, IntArrayList> blocksFromEI = new BlocksFromEntityIndex().run(entityIndex, CLEAN_BLOCK_ACCUM, NUM_COMPARISONS_ACCUM);
-        blocksFromEI.setName("blocksFromEI").cache(); //a few hundred MBs        
-        
-        System.out.println(blocksFromEI.count()+" blocks have been left after block filtering");
+        JavaPairRDD<Integer,IntArrayList> entityIndex;
+        JavaPairRDD<Integer, IntArrayList> blocksFromEI;
+        long blockAssignments, cleanBlocks, numComparisons, numEntities;
+        if (fromCheckpoint) {
+            System.out.println("\n\nLoading the entity index and the filtered blocks from "+checkpoint.getPath());
+            metrics.startStage("loadCheckpoint");
+            entityIndex = checkpoint.loadEntityIndex(jsc).setName("entityIndex");
+            blocksFromEI = checkpoint.loadBlocksFromEI(jsc).setName("blocksFromEI").cache();
+            System.out.println(blocksFromEI.count()+" blocks have been left after block filtering");
+            blockAssignments = checkpoint.getBlockAssignments();
+            cleanBlocks = checkpoint.getCleanBlocks();
+            numComparisons = checkpoint.getNumComparisons();
+            numEntities = checkpoint.getNumEntities();
+        } else {
+            //Block Filtering (delete the biggest blocks of each entity)
+            System.out.println("\n\nStarting BlockFiltering, reading from "+inputPath);
+            metrics.startStage("blockFiltering");
+            LongAccumulator BLOCK_ASSIGNMENTS_ACCUM = jsc.sc().longAccumulator();        
+            JavaPairRDD<Integer,IntArrayList> parsedBlocks;
+            try {
+                parsedBlocks = BinaryBlockCollection.isBinary(inputPath) 
+                        ? BinaryBlockCollection.read(jsc, inputPath) //no text parsing needed (see BinaryBlockCollection.main for the conversion)
+                        : new BlockFilteringAdvanced().parseBlockCollection(jsc.textFile(inputPath));
+            } catch (IOException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                parsedBlocks = new BlockFilteringAdvanced().parseBlockCollection(jsc.textFile(inputPath));
+            }
+            BlockFilteringAdvanced blockFiltering = new BlockFilteringAdvanced();
+            if (filtering.startsWith("adaptive:")) {
+                entityIndex = blockFiltering.runAdaptive(parsedBlocks, BLOCK_ASSIGNMENTS_ACCUM, Long.parseLong(filtering.substring("adaptive:".length())));
+            } else {
+                entityIndex = blockFiltering.run(parsedBlocks, BLOCK_ASSIGNMENTS_ACCUM, Double.parseDouble(filtering));
+            }
+            entityIndex.setName("entityIndex").cache();
+            numEntities = entityIndex.count();
+
+
+            //Blocks From Entity Index (after block filtering, reconstruct the blocks with their remaining entities)
+            System.out.println("\n\nStarting BlocksFromEntityIndex...");                
+            metrics.startStage("blockReconstruction");
+            LongAccumulator CLEAN_BLOCK_ACCUM = jsc.sc().longAccumulator();
+            LongAccumulator NUM_COMPARISONS_ACCUM = jsc.sc().longAccumulator();                
+            blocksFromEI = new BlocksFromEntityIndex().run(entityIndex, CLEAN_BLOCK_ACCUM, NUM_COMPARISONS_ACCUM);
+            blocksFromEI.setName("blocksFromEI").cache(); //a few hundred MBs        
+
+            System.out.println(blocksFromEI.count()+" blocks have been left after block filtering");
+            
+            blockAssignments = BLOCK_ASSIGNMENTS_ACCUM.value();
+            cleanBlocks = CLEAN_BLOCK_ACCUM.value();
+            numComparisons = NUM_COMPARISONS_ACCUM.value();
+            
+            if (checkpoint != null) {
+                System.out.println("Caching the entity index and the filtered blocks in "+checkpoint.getPath());
+                metrics.startStage("saveCheckpoint");
+                try {
+                    checkpoint.save(entityIndex, blocksFromEI, blockAssignments, cleanBlocks, numComparisons, numEntities);
+                } catch (IOException ex) {
+                    Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
         
-        double BCin = (double) BLOCK_ASSIGNMENTS_ACCUM.value() / entityIndex.count(); //BCin: average number of block assignments per entity
+        double BCin = (double) blockAssignments / numEntities; //BCin: average number of block assignments per entity
         final int K = (args.length >= 7) ? Integer.parseInt(args[6]) : Math.max(1, ((Double)Math.floor(BCin)).intValue()); //K = |_BCin -1_|        
-        System.out.println(BLOCK_ASSIGNMENTS_ACCUM.value()+" block assignments");
-        System.out.println(CLEAN_BLOCK_ACCUM.value()+" clean blocks");
-        System.out.println(NUM_COMPARISONS_ACCUM.value()+" comparisons");
+        System.out.println(blockAssignments+" block assignments");
+        System.out.println(cleanBlocks+" clean blocks");
+        System.out.println(numComparisons+" comparisons");
         System.out.println("BCin = "+BCin);
         System.out.println("K = "+K);
         
@@ -172,37 +257,63 @@ public class Main {
         System.out.println("N = "+N);
         
         System.out.println("Getting the top K value candidates...");
+        metrics.startStage("valueCNP");
         CNPARCS cnp = new CNPARCS();        
-        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKValueCandidates = cnp.getTopKValueSims(blocksFromEI, K);
+        final StorageLevel valueCandidatesStorage = (args.length >= 13) ? StorageLevel.fromString(args[12]) : StorageLevel.MEMORY_AND_DISK_SER();
+        //computed once and reused by the neighbor candidates and by matching
+        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKValueCandidates = cnp.getPersistedTopKValueSims(blocksFromEI, K, valueCandidatesStorage);
         
-        blocksFromEI.unpersist();        
-        //topKValueCandidates.setName("topKValueCandidates").persist(StorageLevel.MEMORY_AND_DISK_SER());l
+        blocksFromEI.unpersist(); //topKValueCandidates are materialized, so they do not need it anymore        
         
-        System.out.println("Getting the top K neighbor candidates...");
-        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKNeighborCandidates = cnp.run2(
-                topKValueCandidates, 
-                triples1, 
-                triples2, 
-                SEPARATOR, 
-                ids1,
-                ids2,
-                MIN_SUPPORT_THRESHOLD, K, N, 
-                jsc);
+        System.out.println("Ranking the relations...");
+        metrics.startStage("relationRanking");
+        final boolean joinInNeighbors = args.length >= 12 && args[11].equals("join"); //see CNPARCS.run2Distributed
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = null;
+        Broadcast<InNeighborIndex> inNeighbors_BV = null;
+        if (joinInNeighbors) {
+            Partitioner partitioner = topKValueCandidates.partitioner().isPresent() ? topKValueCandidates.partitioner().get() : EntityIdPartitioner.forRDD(topKValueCandidates);
+            inNeighbors = cnp.getInNeighbors(triples1, triples2, MIN_SUPPORT_THRESHOLD, N, partitioner, jsc);
+        } else {
+            inNeighbors_BV = cnp.getInNeighborIndex(triples1, triples2, MIN_SUPPORT_THRESHOLD, N, jsc);
+        }
         
         triples1.unpersist();
         triples2.unpersist();
         
+        System.out.println("Getting the top K neighbor candidates...");
+        metrics.startStage("neighborCNP");
+        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> topKNeighborCandidates = (joinInNeighbors 
+                ? cnp.getTopKNeighborSimsSUMWithScores(topKValueCandidates, inNeighbors, K)
+                : cnp.getTopKNeighborSimsSUMWithScores(topKValueCandidates, inNeighbors_BV, K))
+                .setName("topKNeighborCandidates").persist(StorageLevel.MEMORY_AND_DISK_SER());
+        System.out.println(topKNeighborCandidates.count()+" entities have neighbor candidates");
+        if (joinInNeighbors) {
+            CNPARCS.unpersistInNeighbors(inNeighbors); //topKNeighborCandidates are materialized, so they do not need them anymore
+        }
+        
         //Matching
         final float valueFactor = (args.length >= 9) ? Float.parseFloat(args[8]) : 0.6f; //the weight of values vs neighbors for the rank aggregation (linear combination)        
         System.out.println("Starting reciprocal matching...");        
+        metrics.startStage("reciprocalMatching");
         JavaPairRDD<Integer,Integer> matches = new ReciprocalMatchingFromMetaBlocking()
                 .getReciprocalMatches(topKValueCandidates, topKNeighborCandidates, valueFactor)
                 .subtractByKey(matchesFromLabels) //delete the entities, whose matches have been already found from the label heuristic
                 .union(matchesFromLabels); //and then add the matches of those entities from the label heuristic
         
         matches.saveAsTextFile(outputPath);
+        metrics.endStage();
+        topKValueCandidates.unpersist();
+        topKNeighborCandidates.unpersist();
         
-        spark.stop();
+        spark.stop(); //waits for the listener of the metrics to receive all the events
+        
+        final String metricsPath = (args.length >= 14) ? args[13] : outputPath + "_metrics.json";
+        try {
+            metrics.writeJson(metricsPath);
+            System.out.println("The metrics of each stage have been written to "+metricsPath);
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
     
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.matching;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdDictionary;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class LabelMatchingHeuristicTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public LabelMatchingHeuristicTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of getMatchesFromLabels method, of class LabelMatchingHeuristic, with a broadcast and with a joined dictionary of entity ids, 
+     * when some subjects are not entities of their collection.
+     */
+    @Test
+    public void testGetMatchesFromLabelsWithUnknownSubjects() {
+        System.out.println("getMatchesFromLabelsWithUnknownSubjects");
+        JavaRDD<String> triples1 = jsc.parallelize(Arrays.asList(
+                "<a0> <label> \"The Matrix\" .", "<a1> <label> \"Alien\" .",
+                "<x> <label> \"Heat\" .")); //x is not an entity
+        JavaRDD<String> triples2 = jsc.parallelize(Arrays.asList(
+                "<b1> <name> \"The Matrix\" .", "<b2> <name> \"Heat\" ."));
+        JavaRDD<String> entityIds1 = jsc.parallelize(Arrays.asList("<a0>\t0", "<a1>\t1"));
+        JavaRDD<String> entityIds2 = jsc.parallelize(Arrays.asList("<b1>\t1", "<b2>\t2"));
+        Set<String> labelAtts1 = new HashSet<>(Arrays.asList("<label>"));
+        Set<String> labelAtts2 = new HashSet<>(Arrays.asList("<name>"));
+        
+        Map<Integer,Integer> expResult = new HashMap<>();
+        expResult.put(-2, 0); //the ids of the second collection start from 1 (not -3 with 0, for the label of x)
+        
+        LabelMatchingHeuristic instance = new LabelMatchingHeuristic();
+        for (long maxBroadcastSize : new long[]{EntityIdDictionary.DEFAULT_MAX_BROADCAST_SIZE, 0}) {
+            EntityIdDictionary dictionary1 = EntityIdDictionary.load(entityIds1, true, maxBroadcastSize);
+            EntityIdDictionary dictionary2 = EntityIdDictionary.load(entityIds2, false, maxBroadcastSize);
+            assertEquals(maxBroadcastSize > 0, dictionary1.isBroadcast());
+            EncodedTriples encoded1 = EncodedTriples.encode(triples1, " ", dictionary1);
+            EncodedTriples encoded2 = EncodedTriples.encode(triples2, " ", dictionary2);
+            Map<Integer,Integer> result = instance.getMatchesFromLabels(encoded1, encoded2, labelAtts1, labelAtts2).collectAsMap();
+            assertEquals(expResult, result);
+            encoded1.unpersist();
+            encoded2.unpersist();
+            dictionary1.unpersist();
+            dictionary2.unpersist();
+        }
+        assertEquals(expResult, instance.getMatchesFromLabels(triples1, triples2, entityIds1, entityIds2, " ", labelAtts1, labelAtts2).collectAsMap()); //encoded in the same way
+    }
+    
+}
@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.List;
 import minoaner.metablocking.preprocessing.BlockFilteringAdvanced;
 import minoaner.metablocking.preprocessing.BlocksFromEntityIndex;
+import minoaner.utils.Utils;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
@@ -156,4 +157,66 @@ public class EntityBasedCNPMapPhaseTest {
         
     }
     
+    /**
+     * Test of the skew-aware getMapOutputWJS method, of class CNPMapPhase.
+     */
+    @Test
+    public void testGetMapOutputWJSSkewAware() {
+        System.out.println("getMapOutputWJS (skew-aware)");
+        
+        List<Tuple2<Integer,IntArrayList>> blocks = new ArrayList<>();
+        blocks.add(new Tuple2<>(0, new IntArrayList(new int[]{1, 2, 3, 4, 5, 6, -1, -2, -3, -4}))); //24 comparisons (oversized)
+        blocks.add(new Tuple2<>(1, new IntArrayList(new int[]{3, 4, 5, -1, -5})));
+        blocks.add(new Tuple2<>(2, new IntArrayList(new int[]{5, -5})));
+        JavaPairRDD<Integer, IntArrayList> blocksFromEI = jsc.parallelizePairs(blocks, 3);
+        
+        JavaPairRDD<Integer, IntArrayList> expResult = CNPMapPhase.getMapOutputWJS(blocksFromEI);
+        JavaPairRDD<Integer, IntArrayList> result = CNPMapPhase.getMapOutputWJS(blocksFromEI, 8);
+        
+        System.out.println("Records per partition before: "+Arrays.toString(Utils.countRecordsPerPartition(expResult)));
+        System.out.println("Records per partition after:  "+Arrays.toString(Utils.countRecordsPerPartition(result)));
+        
+        List<String> resultList = new ArrayList<>();
+        result.collect().forEach(x -> resultList.add(x.toString()));
+        List<String> expResultList = new ArrayList<>();
+        expResult.collect().forEach(x -> expResultList.add(x.toString()));
+        Collections.sort(resultList);
+        Collections.sort(expResultList);
+        
+        assertEquals(expResultList, resultList);
+    }
+    
+    /**
+     * Test of the skew-aware getMapOutput method, of class CNPMapPhase.
+     */
+    @Test
+    public void testGetMapOutputSkewAware() {
+        System.out.println("getMapOutput (skew-aware)");
+        
+        List<Tuple2<Integer,IntArrayList>> blocks = new ArrayList<>();
+        blocks.add(new Tuple2<>(0, new IntArrayList(new int[]{1, 2, 3, 4, 5, 6, -1, -2, -3, -4}))); //24 comparisons (oversized)
+        blocks.add(new Tuple2<>(1, new IntArrayList(new int[]{3, 4, 5, -1, -5})));
+        blocks.add(new Tuple2<>(2, new IntArrayList(new int[]{5, -5})));
+        blocks.add(new Tuple2<>(3, new IntArrayList(new int[]{1, 2}))); //no comparisons
+        JavaPairRDD<Integer, IntArrayList> blocksFromEI = jsc.parallelizePairs(blocks, 3);
+        
+        JavaPairRDD<Integer, IntArrayList> expResult = CNPMapPhase.getMapOutput(blocksFromEI);
+        JavaPairRDD<Integer, IntArrayList> result = CNPMapPhase.getMapOutput(blocksFromEI, 8);
+        
+        List<String> resultList = new ArrayList<>();
+        result.collect().forEach(x -> resultList.add(x.toString()));
+        List<String> expResultList = new ArrayList<>();
+        expResult.collect().forEach(x -> expResultList.add(x.toString()));
+        Collections.sort(resultList);
+        Collections.sort(expResultList);
+        
+        assertEquals(17, expResultList.size()); //10+5+2 records from blocks 0-2
+        assertEquals(expResultList, resultList);
+        
+        List<String> unsplitList = new ArrayList<>(); //no block is oversized
+        CNPMapPhase.getMapOutput(blocksFromEI, CNPMapPhase.DEFAULT_MAX_BLOCK_COMPARISONS).collect().forEach(x -> unsplitList.add(x.toString()));
+        Collections.sort(unsplitList);
+        assertEquals(expResultList, unsplitList);
+    }
+    
 }
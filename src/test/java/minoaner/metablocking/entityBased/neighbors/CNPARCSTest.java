@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.entityBased.neighbors;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import minoaner.utils.EntityIdPartitioner;
+import minoaner.utils.InNeighborIndex;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.RDDInfo;
+import org.apache.spark.storage.StorageLevel;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class CNPARCSTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public CNPARCSTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private JavaPairRDD<Integer, IntArrayList> getDummyBlocksFromEI() {
+        List<Tuple2<Integer,IntArrayList>> blocks = new ArrayList<>();
+        blocks.add(new Tuple2<>(0, new IntArrayList(new int[]{1,2,-1,-2}))); //4 comparisons
+        blocks.add(new Tuple2<>(1, new IntArrayList(new int[]{1,-1,-3})));  //2 comparisons
+        blocks.add(new Tuple2<>(2, new IntArrayList(new int[]{2,-1})));     //1 comparison
+        return jsc.parallelizePairs(blocks, 2);
+    }
+
+    private static float arcs(long blockComparisons) {
+        return 1.0f/(float)(Math.log1p(blockComparisons)/Math.log(2));
+    }
+
+    /**
+     * Test of getTopKValueSims method, of class CNPARCS.
+     */
+    @Test
+    public void testGetTopKValueSims() {
+        System.out.println("getTopKValueSims");
+        CNPARCS instance = new CNPARCS();
+        Map<Integer, Int2FloatLinkedOpenHashMap> result = instance.getTopKValueSims(getDummyBlocksFromEI(), 2).collectAsMap();
+
+        System.out.println("Result: "+result);
+        assertEquals(5, result.size());
+
+        //entity 1: -1 (blocks 0,1), -3 (block 1), -2 (block 0)
+        assertArrayEquals(new int[]{-1,-3}, result.get(1).keySet().toIntArray());
+        assertEquals(arcs(4)+arcs(2), result.get(1).get(-1), 1e-6);
+        assertEquals(arcs(2), result.get(1).get(-3), 1e-6);
+
+        //entity -1: 2 (blocks 0,2), 1 (blocks 0,1)
+        assertArrayEquals(new int[]{2,1}, result.get(-1).keySet().toIntArray());
+        assertEquals(arcs(4)+arcs(1), result.get(-1).get(2), 1e-6);
+        assertEquals(arcs(4)+arcs(2), result.get(-1).get(1), 1e-6);
+
+        //entity 2: -1 (blocks 0,2), -2 (block 0)
+        assertArrayEquals(new int[]{-1,-2}, result.get(2).keySet().toIntArray());
+
+        //entity -2: 1 and 2 (block 0), with the same score (ties are broken by the smaller id)
+        assertArrayEquals(new int[]{1,2}, result.get(-2).keySet().toIntArray());
+        assertEquals(arcs(4), result.get(-2).get(1), 1e-6);
+        assertEquals(arcs(4), result.get(-2).get(2), 1e-6);
+
+        //entity -3: 1 (block 1)
+        assertArrayEquals(new int[]{1}, result.get(-3).keySet().toIntArray());
+    }
+
+    /**
+     * Test of getPersistedTopKValueSims method, of class CNPARCS.
+     */
+    @Test
+    public void testGetPersistedTopKValueSims() {
+        System.out.println("getPersistedTopKValueSims");
+        CNPARCS instance = new CNPARCS();
+        JavaPairRDD<Integer, IntArrayList> blocksFromEI = getDummyBlocksFromEI();
+        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> result = instance.getPersistedTopKValueSims(blocksFromEI, 2, StorageLevel.MEMORY_AND_DISK_SER());
+        assertEquals(StorageLevel.MEMORY_AND_DISK_SER(), result.getStorageLevel());
+        boolean materialized = false;
+        for (RDDInfo rdd : jsc.sc().getRDDStorageInfo()) {
+            materialized |= rdd.id() == result.id() && rdd.numCachedPartitions() == result.getNumPartitions();
+        }
+        assertTrue(materialized);
+        assertEquals(instance.getTopKValueSims(blocksFromEI, 2).collectAsMap(), result.collectAsMap());
+        result.unpersist();
+    }
+
+    private static Map<Integer, IntArrayList> getDummyInNeighbors() {
+        Map<Integer, IntArrayList> inNeighbors = new HashMap<>();
+        inNeighbors.put(1, new IntArrayList(new int[]{3}));
+        inNeighbors.put(2, new IntArrayList(new int[]{3,4}));
+        inNeighbors.put(-1, new IntArrayList(new int[]{-4}));
+        inNeighbors.put(-2, new IntArrayList(new int[]{-4,-5}));
+        inNeighbors.put(-3, new IntArrayList(new int[]{-5}));
+        return inNeighbors;
+    }
+
+    private static Map<Integer, List<Integer>> sortCandidates(Map<Integer, IntArrayList> candidates) {
+        Map<Integer, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<Integer, IntArrayList> entity : candidates.entrySet()) {
+            List<Integer> sorted = new ArrayList<>(entity.getValue());
+            sorted.sort(null);
+            result.put(entity.getKey(), sorted);
+        }
+        return result;
+    }
+
+    private static void assertSameScores(Map<Integer, Int2FloatLinkedOpenHashMap> expResult, Map<Integer, Int2FloatLinkedOpenHashMap> result) {
+        assertEquals(expResult.keySet(), result.keySet());
+        for (int entity : expResult.keySet()) {
+            assertEquals(expResult.get(entity).keySet(), result.get(entity).keySet());
+            for (int candidate : expResult.get(entity).keySet()) {
+                assertEquals(expResult.get(entity).get(candidate), result.get(entity).get(candidate), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Test of the join-based getTopKNeighborSims methods, of class CNPARCS, against the ones with broadcast in-neighbors.
+     */
+    @Test
+    public void testGetTopKNeighborSimsWithInNeighborsRDD() {
+        System.out.println("getTopKNeighborSimsWithInNeighborsRDD");
+        CNPARCS instance = new CNPARCS();
+        final int K = 10; //keep all the candidates, so that the results do not depend on the summation order of the neighbor sims
+        JavaPairRDD<Integer, Int2FloatLinkedOpenHashMap> valueSims = instance.getTopKValueSims(getDummyBlocksFromEI(), K);
+        assertTrue(valueSims.partitioner().get() instanceof EntityIdPartitioner);
+
+        Broadcast<InNeighborIndex> inNeighbors_BV = jsc.broadcast(InNeighborIndex.fromMap(getDummyInNeighbors()));
+        List<Tuple2<Integer, IntArrayList>> inNeighborsList = new ArrayList<>();
+        for (Map.Entry<Integer, IntArrayList> entity : getDummyInNeighbors().entrySet()) {
+            inNeighborsList.add(new Tuple2<>(entity.getKey(), entity.getValue()));
+        }
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = jsc.parallelizePairs(inNeighborsList, 3).partitionBy(valueSims.partitioner().get());
+
+        Map<Integer, Int2FloatLinkedOpenHashMap> expResult = instance.getTopKNeighborSimsSUMWithScores(valueSims, inNeighbors_BV, K).collectAsMap();
+        Map<Integer, Int2FloatLinkedOpenHashMap> result = instance.getTopKNeighborSimsSUMWithScores(valueSims, inNeighbors, K).collectAsMap();
+        assertEquals(new HashSet<>(Arrays.asList(3, 4, -4, -5)), expResult.keySet());
+        assertSameScores(expResult, result);
+
+        assertSameScores(instance.getTopKNeighborSimsMAXWithScores(valueSims, inNeighbors_BV, K).collectAsMap(), 
+                instance.getTopKNeighborSimsMAXWithScores(valueSims, inNeighbors, K).collectAsMap());
+        assertEquals(sortCandidates(instance.getTopKNeighborSimsSUM(valueSims, inNeighbors_BV, K).collectAsMap()), 
+                sortCandidates(instance.getTopKNeighborSimsSUM(valueSims, inNeighbors, K).collectAsMap()));
+        assertEquals(sortCandidates(instance.getTopKNeighborSimsMAX(valueSims, inNeighbors_BV, K).collectAsMap()), 
+                sortCandidates(instance.getTopKNeighborSimsMAX(valueSims, inNeighbors, K).collectAsMap()));
+    }
+
+    /**
+     * Test of unpersistInNeighbors method, of class CNPARCS.
+     */
+    @Test
+    public void testUnpersistInNeighbors() {
+        System.out.println("unpersistInNeighbors");
+        List<Tuple2<Integer, IntArrayList>> inNeighbors1 = new ArrayList<>(), inNeighbors2 = new ArrayList<>();
+        for (Map.Entry<Integer, IntArrayList> entity : getDummyInNeighbors().entrySet()) {
+            (entity.getKey() >= 0 ? inNeighbors1 : inNeighbors2).add(new Tuple2<>(entity.getKey(), entity.getValue()));
+        }
+        Partitioner partitioner = new HashPartitioner(3);
+        JavaPairRDD<Integer, IntArrayList> persisted1 = jsc.parallelizePairs(inNeighbors1).partitionBy(partitioner).persist(StorageLevel.MEMORY_AND_DISK_SER());
+        JavaPairRDD<Integer, IntArrayList> persisted2 = jsc.parallelizePairs(inNeighbors2).partitionBy(partitioner).persist(StorageLevel.MEMORY_AND_DISK_SER());
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = persisted1.union(persisted2); //as returned by getInNeighbors
+        assertEquals(getDummyInNeighbors().size(), inNeighbors.count());
+        
+        CNPARCS.unpersistInNeighbors(inNeighbors);
+        assertEquals(StorageLevel.NONE(), persisted1.getStorageLevel());
+        assertEquals(StorageLevel.NONE(), persisted2.getStorageLevel());
+    }
+
+}
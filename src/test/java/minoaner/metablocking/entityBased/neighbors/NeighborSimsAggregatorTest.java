@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.entityBased.neighbors;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import minoaner.utils.ComparableIntFloatPair;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class NeighborSimsAggregatorTest {
+
+    public NeighborSimsAggregatorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    //each record: the in-neighbors of an entity, the in-neighbors of its candidate, and their value similarity
+    private static final List<int[][]> RECORDS = Arrays.asList(
+            new int[][]{{1, 2}, {-1}, {0}},
+            new int[][]{{1}, {-1, -2}, {1}},
+            new int[][]{{2}, {-1}, {2}});
+    private static final float[] VALUE_SIMS = {0.5f, 0.25f, 2f};
+
+    private static NeighborSimsAggregator<int[][]> aggregator(NeighborSimsCombiner combiner, int capacity) {
+        return new NeighborSimsAggregator<>(RECORDS.iterator(), (x, aggregator) ->
+                aggregator.addAll(x[0], 0, x[0].length, x[1], 0, x[1].length, VALUE_SIMS[x[2][0]]), combiner, capacity);
+    }
+
+    /**
+     * Aggregates the emitted partial similarities per (entity, candidate), like the combiners of CNPARCS.
+     */
+    private static Map<Long, Float> combine(NeighborSimsAggregator<int[][]> aggregator, NeighborSimsCombiner combiner) {
+        Map<Long, Float> result = new HashMap<>();
+        while (aggregator.hasNext()) {
+            Tuple2<Integer, ComparableIntFloatPair> partial = aggregator.next();
+            long pair = NeighborSimsAggregator.pack(partial._1(), partial._2().getEntityId());
+            float sim = partial._2().getValue();
+            result.merge(pair, sim, combiner::combine);
+        }
+        return result;
+    }
+
+    /**
+     * Test of hasNext and next methods, of class NeighborSimsAggregator, with summed partial similarities.
+     */
+    @Test
+    public void testSum() {
+        System.out.println("sum");
+        Map<Long, Float> expResult = new HashMap<>();
+        expResult.put(NeighborSimsAggregator.pack(1, -1), 0.75f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 1), 0.75f);
+        expResult.put(NeighborSimsAggregator.pack(2, -1), 2.5f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 2), 2.5f);
+        expResult.put(NeighborSimsAggregator.pack(1, -2), 0.25f);
+        expResult.put(NeighborSimsAggregator.pack(-2, 1), 0.25f);
+
+        NeighborSimsAggregator<int[][]> instance = aggregator(NeighborSimsCombiner.SUM, 1 << 10);
+        int numEmitted = 0;
+        Map<Long, Float> result = new HashMap<>();
+        while (instance.hasNext()) {
+            Tuple2<Integer, ComparableIntFloatPair> partial = instance.next();
+            result.put(NeighborSimsAggregator.pack(partial._1(), partial._2().getEntityId()), partial._2().getValue());
+            numEmitted++;
+        }
+        assertEquals(expResult, result);
+        assertEquals(expResult.size(), numEmitted); //each pair is emitted once, if the buffer is never flushed before the end
+
+        assertEquals(expResult, combine(aggregator(NeighborSimsCombiner.SUM, 1), NeighborSimsCombiner.SUM)); //flushed after each record
+    }
+
+    /**
+     * Test of hasNext and next methods, of class NeighborSimsAggregator, with the maximum partial similarities.
+     */
+    @Test
+    public void testMax() {
+        System.out.println("max");
+        Map<Long, Float> expResult = new HashMap<>();
+        expResult.put(NeighborSimsAggregator.pack(1, -1), 0.5f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 1), 0.5f);
+        expResult.put(NeighborSimsAggregator.pack(2, -1), 2f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 2), 2f);
+        expResult.put(NeighborSimsAggregator.pack(1, -2), 0.25f);
+        expResult.put(NeighborSimsAggregator.pack(-2, 1), 0.25f);
+
+        assertEquals(expResult, combine(aggregator(NeighborSimsCombiner.MAX, 1 << 10), NeighborSimsCombiner.MAX));
+        assertEquals(expResult, combine(aggregator(NeighborSimsCombiner.MAX, 1), NeighborSimsCombiner.MAX));
+        assertFalse(new NeighborSimsAggregator<int[][]>(RECORDS.subList(0, 0).iterator(), (x, aggregator) -> {}, NeighborSimsCombiner.MAX, 1).hasNext()); //empty partition
+    }
+
+    /**
+     * Test of hasNext and next methods, of class NeighborSimsAggregator, with weighted partial similarities.
+     */
+    @Test
+    public void testWeightedSum() {
+        System.out.println("weightedSum");
+        Map<Long, Float> expResult = new HashMap<>();
+        expResult.put(NeighborSimsAggregator.pack(1, -1), 0.375f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 1), 0.375f);
+        expResult.put(NeighborSimsAggregator.pack(2, -1), 2.25f);
+        expResult.put(NeighborSimsAggregator.pack(-1, 2), 2.25f);
+        expResult.put(NeighborSimsAggregator.pack(1, -2), 0.125f);
+        expResult.put(NeighborSimsAggregator.pack(-2, 1), 0.125f);
+
+        assertEquals(expResult, combine(aggregator(NeighborSimsCombiner.WEIGHTED_SUM, 1 << 10), NeighborSimsCombiner.WEIGHTED_SUM));
+        assertEquals(expResult, combine(aggregator(NeighborSimsCombiner.WEIGHTED_SUM, 1), NeighborSimsCombiner.WEIGHTED_SUM));
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.util.LongAccumulator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class BinaryBlockCollectionTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public BinaryBlockCollectionTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of encode and decode methods, of class BinaryBlockCollection.
+     */
+    @Test
+    public void testEncodeDecode() {
+        System.out.println("encodeDecode");
+        IntArrayList block = new IntArrayList(new int[]{300, 5, -1, Integer.MAX_VALUE, -200000, 0, Integer.MIN_VALUE, 5});
+        byte[] bytes = BinaryBlockCollection.encode(block);
+        assertEquals(new IntArrayList(new int[]{0, 5, 5, 300, Integer.MAX_VALUE, -1, -200000, Integer.MIN_VALUE}), BinaryBlockCollection.decode(bytes, bytes.length));
+
+        byte[] empty = BinaryBlockCollection.encode(new IntArrayList());
+        assertEquals(2, empty.length);
+        assertEquals(new IntArrayList(), BinaryBlockCollection.decode(empty, empty.length));
+    }
+
+    /**
+     * Test of convert and read methods, of class BinaryBlockCollection.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testConvertAndRead() throws IOException {
+        System.out.println("convertAndRead");
+        File dir = Files.createTempDirectory("binaryBlocks").toFile();
+        String textPath = new File(dir, "text").getAbsolutePath();
+        String binaryPath = new File(dir, "binary").getAbsolutePath();
+
+        List<String> dummyBlocks = new ArrayList<>();
+        dummyBlocks.add("0\t1#2#3#4#5#;-1#-2#-3#-4#-5#");
+        dummyBlocks.add("1\t3#4#5#;-1#-5#");
+        dummyBlocks.add("2\t5#;-5#");
+        dummyBlocks.add("3\t5#;");
+        jsc.parallelize(dummyBlocks, 2).saveAsTextFile(textPath);
+
+        BinaryBlockCollection.convert(jsc, textPath, binaryPath);
+        assertFalse(BinaryBlockCollection.isBinary(textPath));
+        assertTrue(BinaryBlockCollection.isBinary(binaryPath));
+
+        List<Tuple2<Integer,IntArrayList>> expResult = new ArrayList<>();
+        expResult.add(new Tuple2<>(0, new IntArrayList(new int[]{1,2,3,4,5,-1,-2,-3,-4,-5})));
+        expResult.add(new Tuple2<>(1, new IntArrayList(new int[]{3,4,5,-1,-5})));
+        expResult.add(new Tuple2<>(2, new IntArrayList(new int[]{5,-5})));
+        expResult.add(new Tuple2<>(3, new IntArrayList(new int[]{5})));
+        JavaPairRDD<Integer, IntArrayList> binaryBlocks = BinaryBlockCollection.read(jsc, binaryPath);
+        assertEquals(new HashSet<>(expResult), new HashSet<>(binaryBlocks.collect()));
+
+        //block filtering gives the same entity index from both formats
+        LongAccumulator BLOCK_ASSIGNMENTS_TEXT = jsc.sc().longAccumulator();
+        LongAccumulator BLOCK_ASSIGNMENTS_BINARY = jsc.sc().longAccumulator();
+        JavaRDD<String> textBlocks = jsc.textFile(textPath);
+        List<Tuple2<Integer, IntArrayList>> fromText = new BlockFilteringAdvanced().run(textBlocks, BLOCK_ASSIGNMENTS_TEXT).collect();
+        List<Tuple2<Integer, IntArrayList>> fromBinary = new BlockFilteringAdvanced().run(binaryBlocks, BLOCK_ASSIGNMENTS_BINARY).collect();
+        assertEquals(new HashSet<>(fromText), new HashSet<>(fromBinary));
+        assertEquals(BLOCK_ASSIGNMENTS_TEXT.value(), BLOCK_ASSIGNMENTS_BINARY.value());
+    }
+
+}
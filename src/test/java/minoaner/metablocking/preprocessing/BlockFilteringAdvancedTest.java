@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import minoaner.utils.EntityIdPartitioner;
 import minoaner.utils.Utils;
 import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.spark.api.java.JavaPairRDD;
@@ -79,6 +81,42 @@ public class BlockFilteringAdvancedTest {
     public void tearDown() {
     }
 
+    /**
+     * Sorts the blockIds of each entity in an entity index, since the kept blocks of each entity are in no particular order.
+     */
+    private static List<Tuple2<Integer, IntArrayList>> sortBlocks(List<Tuple2<Integer, IntArrayList>> entityIndex) {
+        List<Tuple2<Integer, IntArrayList>> result = new ArrayList<>();
+        for (Tuple2<Integer, IntArrayList> entity : entityIndex) {
+            int[] blocks = entity._2().toIntArray();
+            Arrays.sort(blocks);
+            result.add(new Tuple2<>(entity._1(), new IntArrayList(blocks)));
+        }
+        return result;
+    }
+    
+    /**
+     * Test of selectSmallest method, of class BlockFilteringAdvanced.
+     */
+    @Test
+    public void testSelectSmallest() {
+        System.out.println("selectSmallest");
+        Random random = new Random(17);
+        for (int run = 0; run < 100; ++run) {
+            int size = 1 + random.nextInt(200);
+            long[] values = new long[size + 5]; //the last elements are not valid
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = BlockFilteringAdvanced.packBlockUtility(random.nextInt(10), random.nextInt(1000));
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int k = random.nextInt(size + 1);
+            BlockFilteringAdvanced.selectSmallest(values, size, k);
+            long[] selected = Arrays.copyOf(values, k);
+            Arrays.sort(selected);
+            assertArrayEquals(Arrays.copyOf(sorted, k), selected);
+        }
+    }
+    
     /**
      * Test of run method, of class BlockFilteringAdvanced.
      */
@@ -111,16 +149,82 @@ public class BlockFilteringAdvancedTest {
         
         JavaPairRDD<Integer,IntArrayList> expResultRDD = jsc.parallelizePairs(expResult);
         
-        List<Tuple2<Integer, IntArrayList>> resultList = result.collect();
-        List<Tuple2<Integer, IntArrayList>> expResultList = expResultRDD.collect();
+        List<Tuple2<Integer, IntArrayList>> resultList = sortBlocks(result.collect());
+        List<Tuple2<Integer, IntArrayList>> expResultList = sortBlocks(expResultRDD.collect());
         
         System.out.println("Result: "+Arrays.toString(resultList.toArray()));
         System.out.println("Expect: "+Arrays.toString(expResultList.toArray()));
         
         assertEquals(new HashSet<>(resultList), new HashSet<>(expResultList));
         assertEquals((long)BLOCK_ASSIGNMENTS.value(), 15);
+        assertTrue(result.rdd().partitioner().get() instanceof EntityIdPartitioner); //the entity index is partitioned by entity id
     }
 
+    private JavaPairRDD<Integer, IntArrayList> getDummyParsedBlocks() {
+        List<String> dummyBlocks = new ArrayList<>();
+        dummyBlocks.add("0\t1#2#3#4#5#;-1#-2#-3#-4#-5#");
+        dummyBlocks.add("1\t3#4#5#;-1#-5#");
+        dummyBlocks.add("2\t5#;-5#");
+        dummyBlocks.add("3\t5#;");
+        return new BlockFilteringAdvanced().parseBlockCollection(jsc.parallelize(dummyBlocks));
+    }
+    
+    private long countComparisons(JavaPairRDD<Integer, IntArrayList> entityIndex) {
+        LongAccumulator NUM_COMPARISONS = jsc.sc().longAccumulator();
+        new BlocksFromEntityIndex().run(entityIndex, jsc.sc().longAccumulator(), NUM_COMPARISONS).count();
+        return NUM_COMPARISONS.value();
+    }
+    
+    /**
+     * Test of run method with a given ratio, of class BlockFilteringAdvanced.
+     */
+    @Test
+    public void testRunWithRatio() {
+        System.out.println("runWithRatio");
+        LongAccumulator BLOCK_ASSIGNMENTS = jsc.sc().longAccumulator();
+        JavaPairRDD<Integer, IntArrayList> result = new BlockFilteringAdvanced().run(getDummyParsedBlocks(), BLOCK_ASSIGNMENTS, 1.0);
+        assertEquals(32, countComparisons(result)); //no block filtering: 25+6+1 comparisons
+        assertEquals(17, (long) BLOCK_ASSIGNMENTS.value()); //block 3 has no D2 entities
+        
+        BLOCK_ASSIGNMENTS = jsc.sc().longAccumulator();
+        result = new BlockFilteringAdvanced().run(getDummyParsedBlocks(), BLOCK_ASSIGNMENTS, 0.5);
+        assertEquals(13, countComparisons(result)); //entities with 2 blocks keep 1, entities with 3 blocks keep 2
+        assertEquals(12, (long) BLOCK_ASSIGNMENTS.value());
+        
+        try {
+            new BlockFilteringAdvanced().run(getDummyParsedBlocks(), BLOCK_ASSIGNMENTS, 0);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+    
+    /**
+     * Test of runAdaptive method, of class BlockFilteringAdvanced.
+     */
+    @Test
+    public void testRunAdaptive() {
+        System.out.println("runAdaptive");
+        long[] comparisons = new long[BlockFilteringAdvanced.ADAPTIVE_GRID_SIZE];
+        for (int j = 0; j < comparisons.length; ++j) {
+            comparisons[j] = countComparisons(new BlockFilteringAdvanced().run(getDummyParsedBlocks(), jsc.sc().longAccumulator(), BlockFilteringAdvanced.gridRatio(j)));
+        }
+        
+        for (long target : new long[]{0, 13, 22, 23, 31, 32}) {
+            int expectedIndex = 0; //the largest ratio that meets the target, or the smallest one
+            for (int j = 0; j < comparisons.length; ++j) {
+                if (comparisons[j] <= target) {
+                    expectedIndex = j;
+                }
+            }
+            BlockFilteringAdvanced instance = new BlockFilteringAdvanced();
+            JavaPairRDD<Integer, IntArrayList> result = instance.runAdaptive(getDummyParsedBlocks(), jsc.sc().longAccumulator(), target);
+            assertEquals(BlockFilteringAdvanced.gridRatio(expectedIndex), instance.getLastRatio(), 0);
+            assertEquals(comparisons[expectedIndex], countComparisons(result));
+        }
+        assertEquals(0.8, BlockFilteringAdvanced.gridRatio(15), 1e-9);
+        assertEquals(23, comparisons[15]);
+    }
+    
     /**
      * Test of parseBlockCollection method, of class BlockFilteringAdvanced.
      */
@@ -150,6 +254,31 @@ public class BlockFilteringAdvancedTest {
         assertEquals(resultList, expResultList);
     }
     
+    /**
+     * Test of parseBlock method, of class BlockFilteringAdvanced.
+     */
+    @Test
+    public void testParseBlock() {
+        System.out.println("parseBlock");
+        assertEquals(new Tuple2<>(0, new IntArrayList(new int[]{1,2,-1,-2})), BlockFilteringAdvanced.parseBlock("0\t1#2#;-1#-2#"));
+        assertEquals(new Tuple2<>(7, new IntArrayList(new int[]{Integer.MAX_VALUE,Integer.MIN_VALUE})), BlockFilteringAdvanced.parseBlock("7\t2147483647;-2147483648"));
+        assertEquals(new Tuple2<>(3, new IntArrayList()), BlockFilteringAdvanced.parseBlock("3\t;"));
+        assertEquals(new Tuple2<>(3, new IntArrayList(new int[]{5})), BlockFilteringAdvanced.parseBlock("3\t5#;\t"));
+        assertNull(BlockFilteringAdvanced.parseBlock("3"));
+        assertNull(BlockFilteringAdvanced.parseBlock("3\t"));
+        assertNull(BlockFilteringAdvanced.parseBlock("3\t5#;\t-5#"));
+        try {
+            BlockFilteringAdvanced.parseBlock("3\t5#x;-5#");
+            fail("expected a NumberFormatException");
+        } catch (NumberFormatException ex) {
+        }
+        try {
+            BlockFilteringAdvanced.parseBlock("3\t2147483648;-5#");
+            fail("expected a NumberFormatException");
+        } catch (NumberFormatException ex) {
+        }
+    }
+    
     /**
      * Test of getEntityBlocksAdvanced method, of class BlockFilteringAdvanced.
      * @throws java.lang.IllegalAccessException
@@ -172,7 +301,8 @@ public class BlockFilteringAdvancedTest {
         Method method = BlockFilteringAdvanced.class.getDeclaredMethod("getEntityBlocksAdvanced", JavaPairRDD.class);
         method.setAccessible(true);
         
-        JavaPairRDD<Integer, Tuple2<Integer, Integer>> result = (JavaPairRDD<Integer, Tuple2<Integer, Integer>>) method.invoke(instance, parsedBlocks);        
+        JavaPairRDD<Integer, Long> packedResult = (JavaPairRDD<Integer, Long>) method.invoke(instance, parsedBlocks);        
+        JavaPairRDD<Integer, Tuple2<Integer, Integer>> result = packedResult.mapValues(x -> new Tuple2<>(BlockFilteringAdvanced.unpackBlockId(x), BlockFilteringAdvanced.unpackInverseUtility(x)));
         
         List<Tuple2<Integer,Tuple2<Integer,Integer>>> expResult = new ArrayList<>();
         expResult.add(new Tuple2<>(1, new Tuple2<>(0,5)));
@@ -223,7 +353,7 @@ public class BlockFilteringAdvancedTest {
         JavaPairRDD<Integer, IntArrayList> parsedBlocks = instance.parseBlockCollection(blockingInput);
         Method method1 = BlockFilteringAdvanced.class.getDeclaredMethod("getEntityBlocksAdvanced", JavaPairRDD.class);
         method1.setAccessible(true);        
-        JavaPairRDD<Integer, Tuple2<Integer, Integer>> entityBlocks = (JavaPairRDD<Integer, Tuple2<Integer, Integer>>) method1.invoke(instance, parsedBlocks);
+        JavaPairRDD<Integer, Long> entityBlocks = (JavaPairRDD<Integer, Long>) method1.invoke(instance, parsedBlocks);
         
         Method method2 = BlockFilteringAdvanced.class.getDeclaredMethod("getEntityIndex", JavaPairRDD.class, LongAccumulator.class);
         method2.setAccessible(true);        
@@ -246,8 +376,8 @@ public class BlockFilteringAdvancedTest {
                
         JavaPairRDD<Integer,IntArrayList> expResultRDD = jsc.parallelizePairs(expResult);
         
-        List<Tuple2<Integer, IntArrayList>> resultList = result.collect();
-        List<Tuple2<Integer, IntArrayList>> expResultList = expResultRDD.collect();
+        List<Tuple2<Integer, IntArrayList>> resultList = sortBlocks(result.collect());
+        List<Tuple2<Integer, IntArrayList>> expResultList = sortBlocks(expResultRDD.collect());
         
         System.out.println("Result: "+Arrays.toString(resultList.toArray()));
         System.out.println("Expect: "+Arrays.toString(expResultList.toArray()));
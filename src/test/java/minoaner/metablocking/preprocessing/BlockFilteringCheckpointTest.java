@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.util.LongAccumulator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class BlockFilteringCheckpointTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public BlockFilteringCheckpointTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static <K> HashSet<Tuple2<K,IntArrayList>> sorted(List<Tuple2<K,IntArrayList>> lists) {
+        HashSet<Tuple2<K,IntArrayList>> result = new HashSet<>();
+        for (Tuple2<K,IntArrayList> list : lists) {
+            int[] elements = list._2().toIntArray();
+            Arrays.sort(elements);
+            result.add(new Tuple2<>(list._1(), new IntArrayList(elements)));
+        }
+        return result;
+    }
+
+    /**
+     * Test of save, exists and load methods, of class BlockFilteringCheckpoint.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        System.out.println("saveAndLoad");
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        String inputPath = new File(dir, "blocks").getAbsolutePath();
+        String cacheDir = new File(dir, "cache").getAbsolutePath();
+
+        List<String> dummyBlocks = new ArrayList<>();
+        dummyBlocks.add("0\t1#2#3#4#5#;-1#-2#-3#-4#-5#");
+        dummyBlocks.add("1\t3#4#5#;-1#-5#");
+        dummyBlocks.add("2\t5#;-5#");
+        dummyBlocks.add("3\t5#;");
+        jsc.parallelize(dummyBlocks, 2).saveAsTextFile(inputPath);
+
+        BlockFilteringCheckpoint checkpoint = new BlockFilteringCheckpoint(cacheDir, inputPath, BlockFilteringAdvanced.FILTERING_RATIO);
+        assertFalse(checkpoint.exists());
+
+        LongAccumulator BLOCK_ASSIGNMENTS = jsc.sc().longAccumulator();
+        LongAccumulator CLEAN_BLOCKS = jsc.sc().longAccumulator();
+        LongAccumulator NUM_COMPARISONS = jsc.sc().longAccumulator();
+        JavaPairRDD<Integer, IntArrayList> entityIndex = new BlockFilteringAdvanced().run(jsc.textFile(inputPath), BLOCK_ASSIGNMENTS).cache();
+        JavaPairRDD<Integer, IntArrayList> blocksFromEI = new BlocksFromEntityIndex().run(entityIndex, CLEAN_BLOCKS, NUM_COMPARISONS).cache();
+        List<Tuple2<Integer, IntArrayList>> blocks = blocksFromEI.collect();
+        checkpoint.save(entityIndex, blocksFromEI, BLOCK_ASSIGNMENTS.value(), CLEAN_BLOCKS.value(), NUM_COMPARISONS.value(), entityIndex.count());
+
+        //a later run on the same input
+        BlockFilteringCheckpoint reloaded = new BlockFilteringCheckpoint(cacheDir, inputPath, BlockFilteringAdvanced.FILTERING_RATIO);
+        assertEquals(checkpoint.getPath(), reloaded.getPath());
+        assertTrue(reloaded.exists());
+        assertEquals(15, reloaded.getBlockAssignments());
+        assertEquals((long) CLEAN_BLOCKS.value(), reloaded.getCleanBlocks());
+        assertEquals((long) NUM_COMPARISONS.value(), reloaded.getNumComparisons());
+        assertEquals(10, reloaded.getNumEntities());
+        assertEquals(sorted(entityIndex.collect()), sorted(reloaded.loadEntityIndex(jsc).collect()));
+        assertEquals(sorted(blocks), sorted(reloaded.loadBlocksFromEI(jsc).collect()));
+
+        //a different filtering ratio or a modified input does not use this cache
+        assertFalse(new BlockFilteringCheckpoint(cacheDir, inputPath, 0.5).exists());
+        File part = new File(inputPath, "part-00000");
+        assertTrue(part.setLastModified(part.lastModified() + 60000));
+        assertFalse(new BlockFilteringCheckpoint(cacheDir, inputPath, BlockFilteringAdvanced.FILTERING_RATIO).exists());
+    }
+
+}
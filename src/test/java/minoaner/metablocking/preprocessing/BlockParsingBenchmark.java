@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.metablocking.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import scala.Tuple2;
+
+/**
+ * Compares the hand-written BlockFilteringAdvanced.parseBlock with the previous, split-based parser of the blocking collection.
+ * Run with a (multi-GB) blocking file as the first argument, or without arguments to parse a synthetic collection.
+ * @author vefthym
+ */
+public class BlockParsingBenchmark {
+
+    /**
+     * The parser that BlockFilteringAdvanced.parseBlockCollection used before parseBlock.
+     */
+    static Tuple2<Integer,IntArrayList> parseBlockLegacy(String line) {
+        String[] pair = line.split("\t");
+        if (pair.length != 2) {
+            return null;
+        }
+        int blockId = Integer.parseInt(pair[0]);
+        String[] entities = pair[1].replaceFirst(";", "").split("#");
+        if (entities == null || entities.length == 0) {
+            return null;
+        }
+        List<Integer> outputEntities = new ArrayList<>();
+        for (String entity : entities) {
+            if (entity.isEmpty()) continue;
+            Integer entityId = Integer.parseInt(entity);
+            outputEntities.add(entityId);
+        }
+        return new Tuple2<>(blockId, new IntArrayList(outputEntities.stream().mapToInt(i->i).toArray()));
+    }
+
+    private static List<String> syntheticBlocks(int numBlocks) {
+        Random random = new Random(17);
+        List<String> lines = new ArrayList<>(numBlocks);
+        StringBuilder sb = new StringBuilder();
+        for (int blockId = 0; blockId < numBlocks; ++blockId) {
+            sb.setLength(0);
+            sb.append(blockId).append('\t');
+            int size = 2 + random.nextInt(random.nextInt(10) == 0 ? 1000 : 20);
+            for (int i = 0; i < size/2; ++i) {
+                sb.append(random.nextInt(10000000)).append('#');
+            }
+            sb.append(';');
+            for (int i = size/2; i < size; ++i) {
+                sb.append(-random.nextInt(10000000)-1).append('#');
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * @return {elapsed nanoseconds, parsed blocks, parsed ids}
+     */
+    private static long[] parseFile(String path, Function<String,Tuple2<Integer,IntArrayList>> parser) throws IOException {
+        long start = System.nanoTime();
+        long blocks = 0, ids = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Tuple2<Integer,IntArrayList> block = parser.apply(line);
+                if (block != null) {
+                    blocks++;
+                    ids += block._2().size();
+                }
+            }
+        }
+        return new long[]{System.nanoTime()-start, blocks, ids};
+    }
+
+    private static long[] parseLines(List<String> lines, Function<String,Tuple2<Integer,IntArrayList>> parser) {
+        long start = System.nanoTime();
+        long blocks = 0, ids = 0;
+        for (String line : lines) {
+            Tuple2<Integer,IntArrayList> block = parser.apply(line);
+            if (block != null) {
+                blocks++;
+                ids += block._2().size();
+            }
+        }
+        return new long[]{System.nanoTime()-start, blocks, ids};
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int RUNS = 3;
+        List<String> lines = args.length == 0 ? syntheticBlocks(200000) : null;
+
+        //sanity check: both parsers should agree
+        List<String> sample = lines != null ? lines : new ArrayList<>();
+        if (lines == null) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null && sample.size() < 100000) {
+                    sample.add(line);
+                }
+            }
+        }
+        for (String line : sample) {
+            if (!String.valueOf(parseBlockLegacy(line)).equals(String.valueOf(BlockFilteringAdvanced.parseBlock(line)))) {
+                throw new IllegalStateException("The parsers disagree on line: "+line);
+            }
+        }
+
+        for (int run = 0; run < RUNS; ++run) { //the first run also warms up the JIT
+            long[] legacy = lines != null ? parseLines(lines, BlockParsingBenchmark::parseBlockLegacy) : parseFile(args[0], BlockParsingBenchmark::parseBlockLegacy);
+            long[] fast = lines != null ? parseLines(lines, BlockFilteringAdvanced::parseBlock) : parseFile(args[0], BlockFilteringAdvanced::parseBlock);
+            System.out.println("Run "+run+": "+legacy[1]+" blocks, "+legacy[2]+" ids");
+            System.out.println("\tlegacy parser: "+legacy[0]/1000000+" ms");
+            System.out.println("\tparseBlock:    "+fast[0]/1000000+" ms ("+String.format("%.2f", (double)legacy[0]/fast[0])+"x)");
+        }
+    }
+
+}
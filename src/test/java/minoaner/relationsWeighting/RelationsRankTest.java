@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.relationsWeighting;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import minoaner.utils.EncodedTriples;
+import minoaner.utils.EntityIdDictionary;
+import minoaner.utils.EntityIdPartitioner;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class RelationsRankTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public RelationsRankTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private JavaPairRDD<String, List<Tuple2<Integer, Integer>>> getRelationIndex() {
+        return jsc.parallelizePairs(Arrays.asList(
+                new Tuple2<>("r0", Arrays.asList(new Tuple2<>(0, 1), new Tuple2<>(0, 2), new Tuple2<>(1, 2))),
+                new Tuple2<>("r1", Arrays.asList(new Tuple2<>(0, 3), new Tuple2<>(0, 1))), //0->1 is already found through r0
+                new Tuple2<>("r2", Arrays.asList(new Tuple2<>(0, 4))), //the third distinct relation of 0 is not in its top-2
+                new Tuple2<>("unranked", Arrays.asList(new Tuple2<>(1, 5)))), 2);
+    }
+
+    /**
+     * Test of getRelationRanks method, of class RelationsRank.
+     */
+    @Test
+    public void testGetRelationRanks() {
+        System.out.println("getRelationRanks");
+        List<String> relationsRank = Arrays.asList("r0", "r1", "r2");
+        Object2IntOpenHashMap<String> result = RelationsRank.getRelationRanks(relationsRank);
+        for (String relation : Arrays.asList("r0", "r1", "r2", "unranked")) {
+            assertEquals(relationsRank.indexOf(relation), result.getInt(relation));
+        }
+    }
+
+    /**
+     * Test of getTopOutNeighborsPerEntity method, of class RelationsRank.
+     */
+    @Test
+    public void testGetTopOutNeighborsPerEntity() {
+        System.out.println("getTopOutNeighborsPerEntity");
+        List<String> relationsRank = Arrays.asList("r0", "r1", "r2");
+        RelationsRank instance = new RelationsRank();
+
+        Map<Integer, IntArrayList> result = instance.getTopOutNeighborsPerEntity(getRelationIndex(), relationsRank, 2, true).collectAsMap();
+        assertEquals(2, result.size());
+        IntArrayList neighbors0 = result.get(0);
+        assertEquals(3, neighbors0.size());
+        assertEquals(new IntArrayList(new int[]{1, 2}), new IntArrayList(new int[]{Math.min(neighbors0.getInt(0), neighbors0.getInt(1)), Math.max(neighbors0.getInt(0), neighbors0.getInt(1))}));
+        assertEquals(3, neighbors0.getInt(2));
+        assertEquals(new IntArrayList(new int[]{5, 2}), result.get(1)); //unranked relations (rank -1) come first, as with List.indexOf
+
+        result = instance.getTopOutNeighborsPerEntity(getRelationIndex(), relationsRank, 2, false).collectAsMap();
+        assertEquals(new IntArrayList(new int[]{-5, -2}), result.get(-1));
+    }
+
+    /**
+     * Test of add method, of class TopRelationNeighbors.
+     */
+    @Test
+    public void testTopRelationNeighbors() {
+        System.out.println("TopRelationNeighbors");
+        TopRelationNeighbors top = new TopRelationNeighbors(2);
+        top.add(1, 3).add(2, 5).add(1, 4); //1 keeps its better rank 3
+        assertEquals(new IntArrayList(new int[]{1, 2}), top.toIntArrayList());
+        top.add(3, 4); //rank 5 is evicted
+        assertEquals(new IntArrayList(new int[]{1, 3}), top.toIntArrayList());
+        top.add(3, 2).add(4, 6); //3 moves to rank 2, rank 4 is now empty, and 4 is evicted immediately
+        assertEquals(new IntArrayList(new int[]{3, 1}), top.toIntArrayList());
+        assertEquals(2, top.size());
+
+        TopRelationNeighbors other = new TopRelationNeighbors(2).add(5, 1).add(1, 7);
+        top.addAll(other);
+        assertEquals(new IntArrayList(new int[]{5, 3}), top.toIntArrayList());
+    }
+
+    private JavaRDD<String> getRawTriples() {
+        return jsc.parallelize(Arrays.asList(
+                "e0 r0 e1 .", "e0 r0 e2 .", "e1 r0 e2 .", "e3 r0 e4 .",
+                "e0 r1 e3 .", "e0 r1 e1 .", "e2 r1 e1 .",
+                "e0 r2 e4 .",
+                "e0 name \"a\" .", "e1 name \"b\" .", "e2 name \"c\" .", //a datatype property
+                "e1 mixed e5 .", "e2 mixed \"x\" .", "e3 mixed \"y\" .", //used more as a datatype property than as a relation
+                "invalid"), 3);
+    }
+
+    private static Map<Integer, List<Integer>> sortNeighbors(Map<Integer, IntArrayList> topOutNeighbors) {
+        Map<Integer, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<Integer, IntArrayList> entity : topOutNeighbors.entrySet()) {
+            List<Integer> neighbors = new ArrayList<>(entity.getValue());
+            neighbors.sort(null);
+            result.put(entity.getKey(), neighbors);
+        }
+        return result;
+    }
+
+    /**
+     * Test of packPair, unpackSubject and unpackObject methods, of class RelationsRank.
+     */
+    @Test
+    public void testPackPair() {
+        System.out.println("packPair");
+        int[][] pairs = {{0, 0}, {0, -1}, {7, 3}, {Integer.MAX_VALUE, -1}, {Integer.MAX_VALUE, Integer.MAX_VALUE}};
+        for (int[] pair : pairs) {
+            long packed = RelationsRank.packPair(pair[0], pair[1]);
+            assertEquals(pair[0], RelationsRank.unpackSubject(packed));
+            assertEquals(pair[1], RelationsRank.unpackObject(packed));
+        }
+    }
+
+    /**
+     * Test of the encoded relation index pipeline, of class RelationsRank, against the String-keyed one.
+     */
+    @Test
+    public void testEncodedRelationIndex() {
+        System.out.println("getEncodedRelationIndex");
+        RelationsRank instance = new RelationsRank();
+        Object2IntOpenHashMap<String> entityIds = new Object2IntOpenHashMap<>();
+        for (int i = 0; i < 6; ++i) {
+            entityIds.put("e"+i, i);
+        }
+        long numEntitiesSquared = 36;
+        Broadcast<Object2IntOpenHashMap<String>> entityIds_BV = jsc.broadcast(entityIds);
+
+        EntityIdDictionary dictionary = EntityIdDictionary.load(jsc.parallelize(Arrays.asList("e0\t0", "e1\t1", "e2\t2", "e3\t3", "e4\t4", "e5\t5")), true);
+        EncodedTriples encodedTriples = EncodedTriples.encode(getRawTriples(), " ", dictionary);
+        String[] predicates = encodedTriples.getPredicates();
+        List<String> predicateIds = Arrays.asList(predicates);
+        assertEquals(5, predicates.length);
+        assertEquals(0, predicateIds.indexOf("mixed")); //lexicographic order
+
+        JavaPairRDD<Integer, long[]> relationIndex = instance.getEncodedRelationIndex(instance.getEncodedTriples(encodedTriples));
+        List<Integer> relationsRank = instance.getEncodedRelationsRank(relationIndex, 0, numEntitiesSquared);
+        assertEquals(relationsRank, instance.getEncodedRelationsRank(relationIndex, 0, numEntitiesSquared, 10));
+        List<String> relationNames = new ArrayList<>();
+        for (int relationId : relationsRank) {
+            relationNames.add(predicates[relationId]);
+        }
+        JavaPairRDD<String, List<Tuple2<Integer, Integer>>> expectedRelationIndex = instance.getRelationIndex(getRawTriples(), " ", entityIds_BV);
+        List<String> expectedRelationsRank = instance.getRelationsRank(expectedRelationIndex, 0, numEntitiesSquared);
+        assertEquals(Arrays.asList("r0", "r1", "r2"), expectedRelationsRank);
+        assertEquals(expectedRelationsRank, relationNames);
+
+        int[] relationRanks = RelationsRank.getEncodedRelationRanks(relationsRank, predicates.length);
+        assertEquals(-1, relationRanks[predicateIds.indexOf("name")]);
+        assertEquals(1, relationRanks[predicateIds.indexOf("r1")]);
+
+        for (boolean positiveIds : new boolean[]{true, false}) {
+            Map<Integer, IntArrayList> result = instance.getTopOutNeighborsPerEntityFromEncodedIndex(relationIndex, jsc.broadcast(relationRanks), 2, positiveIds).collectAsMap();
+            Map<Integer, IntArrayList> expResult = instance.getTopOutNeighborsPerEntity(expectedRelationIndex, expectedRelationsRank, 2, positiveIds).collectAsMap();
+            assertEquals(sortNeighbors(expResult), sortNeighbors(result));
+            assertEquals(positiveIds ? Arrays.asList(1, 2, 3) : Arrays.asList(-3, -2, -1), sortNeighbors(result).get(0)); //e0->e4 (r2) is not in the top-2 relations of e0
+        }
+        encodedTriples.unpersist();
+        dictionary.unpersist();
+    }
+
+    /**
+     * Test of run method, of class RelationsRank.
+     */
+    @Test
+    public void testRun() {
+        System.out.println("run");
+        JavaRDD<String> entityIds = jsc.parallelize(Arrays.asList("e0\t0", "e1\t1", "e2\t2", "e3\t3", "e4\t4", "e5\t5"));
+        Map<Integer, IntArrayList> result = new RelationsRank().run(getRawTriples(), " ", entityIds, 0, 2, true, jsc);
+        Map<Integer, List<Integer>> expResult = new HashMap<>();
+        expResult.put(1, Arrays.asList(0, 2));
+        expResult.put(2, Arrays.asList(0, 1));
+        expResult.put(3, Arrays.asList(0));
+        expResult.put(4, Arrays.asList(3));
+        assertEquals(expResult, sortNeighbors(result));
+
+        EntityIdPartitioner partitioner = new EntityIdPartitioner(3);
+        JavaPairRDD<Integer, IntArrayList> inNeighbors = new RelationsRank().getInNeighbors(getRawTriples(), " ", entityIds, 0, 2, true, 0, partitioner, jsc);
+        assertEquals(partitioner, inNeighbors.partitioner().get());
+        assertEquals(expResult, sortNeighbors(inNeighbors.collectAsMap()));
+        inNeighbors.unpersist();
+
+        EntityIdDictionary joinedEntityIds = EntityIdDictionary.load(entityIds, true, 0); //resolve the triples through joins
+        EncodedTriples encodedTriples = EncodedTriples.encode(getRawTriples(), " ", joinedEntityIds); //tokenized once
+        assertEquals(expResult, sortNeighbors(new RelationsRank().run(encodedTriples, 0, 2, 0, jsc)));
+        encodedTriples.unpersist();
+        joinedEntityIds.unpersist();
+    }
+
+    /**
+     * Test of run method, of class RelationsRank, with a broadcast and with a joined dictionary of entity ids, 
+     * when some subjects are not entities of the collection.
+     */
+    @Test
+    public void testRunWithUnknownSubjects() {
+        System.out.println("runWithUnknownSubjects");
+        JavaRDD<String> entityIds = jsc.parallelize(Arrays.asList("e0\t0", "e1\t1", "e2\t2", "e3\t3", "e4\t4", "e5\t5"));
+        JavaRDD<String> rawTriples = getRawTriples().union(jsc.parallelize(Arrays.asList("x9 r0 e4 .", "x9 r1 e3 ."))); //x9 is not an entity
+        for (boolean positiveIds : new boolean[]{true, false}) {
+            EntityIdDictionary broadcastEntityIds = EntityIdDictionary.load(entityIds, positiveIds);
+            EntityIdDictionary joinedEntityIds = EntityIdDictionary.load(entityIds, positiveIds, 0);
+            assertTrue(broadcastEntityIds.isBroadcast());
+            assertFalse(joinedEntityIds.isBroadcast());
+            Map<Integer, List<Integer>> expResult = sortNeighbors(new RelationsRank().run(getRawTriples(), " ", entityIds, 0, 2, positiveIds, jsc)); //the triples of x9 are dropped
+            for (EntityIdDictionary dictionary : new EntityIdDictionary[]{broadcastEntityIds, joinedEntityIds}) {
+                EncodedTriples encodedTriples = EncodedTriples.encode(rawTriples, " ", dictionary);
+                assertEquals(expResult, sortNeighbors(new RelationsRank().run(encodedTriples, 0, 2, 0, jsc)));
+                encodedTriples.unpersist();
+            }
+            broadcastEntityIds.unpersist();
+            joinedEntityIds.unpersist();
+        }
+    }
+
+    /**
+     * Test of getRelationStatistics method, of class RelationsRank.
+     */
+    @Test
+    public void testGetRelationStatistics() {
+        System.out.println("getRelationStatistics");
+        RelationsRank instance = new RelationsRank();
+        long[] pairs = new long[20000];
+        for (int i = 0; i < pairs.length; ++i) {
+            pairs[i] = RelationsRank.packPair(i, i % 5000); //5000 distinct objects
+        }
+        JavaPairRDD<Integer, long[]> relationIndex = jsc.parallelizePairs(Arrays.asList(
+                new Tuple2<>(0, Arrays.copyOfRange(pairs, 0, 12000)), new Tuple2<>(0, Arrays.copyOfRange(pairs, 12000, 20000)),
+                new Tuple2<>(1, new long[]{RelationsRank.packPair(1, 2), RelationsRank.packPair(2, 2)})), 2);
+
+        Map<Integer, long[]> result = instance.getRelationStatistics(relationIndex, 0);
+        assertArrayEquals(new long[]{20000, 5000}, result.get(0));
+        assertArrayEquals(new long[]{2, 1}, result.get(1));
+
+        result = instance.getRelationStatistics(relationIndex, 14);
+        assertEquals(20000, result.get(0)[0]);
+        assertEquals(5000, result.get(0)[1], 5000 * 0.05);
+        assertArrayEquals(new long[]{2, 1}, result.get(1));
+        
+        assertEquals(Arrays.asList(0, 1), RelationsRank.rankRelations(result, 0, 1));
+        assertEquals(Arrays.asList(0), RelationsRank.rankRelations(result, 0.5f, 1)); //the normalized support of 1 is 0.0001
+    }
+
+}
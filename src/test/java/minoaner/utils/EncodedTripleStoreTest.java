@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class EncodedTripleStoreTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public EncodedTripleStoreTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of encode and decode methods, of class EncodedTripleStore.
+     */
+    @Test
+    public void testEncodeDecode() {
+        System.out.println("encodeDecode");
+        List<EncodedTriple> block = Arrays.asList(
+                new EncodedTriple(0, 2, 1, null),
+                new EncodedTriple(Integer.MAX_VALUE, 1, Integer.MAX_VALUE, null),
+                new EncodedTriple(3, 0, -1, "\"the matrix\"@en"),
+                new EncodedTriple(4, 0, -1, "\"caf\u00e9 \u4e2d\""),
+                new EncodedTriple(5, 0, -1, "\"the matrix\"@en"), //stored once in the heap
+                new EncodedTriple(6, 1, -1, ""));
+        byte[] bytes = EncodedTripleStore.encode(block);
+        byte[] padded = Arrays.copyOf(bytes, bytes.length + 10); //like the buffer of a BytesWritable
+        List<EncodedTriple> result = EncodedTripleStore.decode(padded, bytes.length);
+        assertEquals(block, result);
+        assertSame(result.get(2).getLiteral(), result.get(4).getLiteral());
+        assertEquals(Arrays.asList(), EncodedTripleStore.decode(EncodedTripleStore.encode(Arrays.asList()), 1));
+    }
+
+    /**
+     * Test of loadOrEncode, write and read methods, of class EncodedTripleStore.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testLoadOrEncode() throws IOException {
+        System.out.println("loadOrEncode");
+        File dir = Files.createTempDirectory("tripleStore").toFile();
+        String triplesPath = new File(dir, "triples").getAbsolutePath();
+        String entityIdsPath = new File(dir, "entityIds").getAbsolutePath();
+        String cacheDir = new File(dir, "cache").getAbsolutePath();
+        jsc.parallelize(Arrays.asList(
+                "<e0> <p> <e1> .", "<e1> <p> <e2> .",
+                "<e0> <name> \"The Matrix\"@en .", "<e1> <name> \"The Matrix\"@en .",
+                "<e2> <link> <http://other.org/x> ."), 2).saveAsTextFile(triplesPath);
+        jsc.parallelize(Arrays.asList("<e0>\t0", "<e1>\t1", "<e2>\t2")).saveAsTextFile(entityIdsPath);
+
+        EncodedTriples encoded = EncodedTripleStore.loadOrEncode(jsc, cacheDir, triplesPath, " ", entityIdsPath, false, 0, 2); //first run: encoded and stored
+        HashSet<EncodedTriple> expResult = new HashSet<>(encoded.getTriples().collect());
+        assertEquals(5, expResult.size());
+        String storePath = new File(cacheDir, EncodedTripleStore.fingerprint(triplesPath, " ", entityIdsPath, false)).getAbsolutePath();
+        assertTrue(EncodedTripleStore.exists(storePath));
+        encoded.unpersist();
+
+        EncodedTriples stored = EncodedTripleStore.loadOrEncode(jsc, cacheDir, triplesPath, " ", entityIdsPath, false, 0, 2); //next run: read from the store
+        assertEquals(expResult, new HashSet<>(stored.getTriples().collect()));
+        assertArrayEquals(encoded.getPredicates(), stored.getPredicates());
+        assertFalse(stored.isPositive());
+        assertEquals(3, stored.getNumEntities());
+
+        String copyPath = new File(dir, "copy").getAbsolutePath();
+        EncodedTripleStore.write(stored, copyPath, 1); //one triple per block
+        assertEquals(expResult, new HashSet<>(EncodedTripleStore.read(jsc, copyPath).getTriples().collect()));
+        assertFalse(EncodedTripleStore.exists(new File(dir, "missing").getAbsolutePath()));
+        assertFalse(storePath.equals(new File(cacheDir, EncodedTripleStore.fingerprint(triplesPath, " ", entityIdsPath, true)).getAbsolutePath())); //the collection is part of the fingerprint
+    }
+
+}
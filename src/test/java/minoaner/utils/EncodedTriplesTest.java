@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class EncodedTriplesTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public EncodedTriplesTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private JavaRDD<String> getRawTriples() {
+        return jsc.parallelize(Arrays.asList(
+                "<e0> <p> <e1> .", "<E1> <p> <e2> .",
+                "<e0> <name> \"The Matrix\"@en .", //a literal with a separator
+                "<e2> <link> <http://other.org/x> .", //an object that is not an entity
+                "<unknown> <p> <e0> .", //a subject that is not an entity
+                "invalid"), 2);
+    }
+
+    /**
+     * Test of encode method, of class EncodedTriples, with a broadcast and with a joined dictionary of entity ids.
+     */
+    @Test
+    public void testEncode() {
+        System.out.println("encode");
+        JavaRDD<String> entityIds = jsc.parallelize(Arrays.asList("<e0>\t0", "<e1>\t1", "<e2>\t2"));
+        Set<EncodedTriple> expResult = new HashSet<>();
+        for (boolean positiveIds : new boolean[]{true, false}) {
+            int offset = positiveIds ? 0 : 1; //the ids of the second collection start from 1
+            expResult.clear();
+            expResult.add(new EncodedTriple(0 + offset, 2, 1 + offset, null));
+            expResult.add(new EncodedTriple(1 + offset, 2, 2 + offset, null));
+            expResult.add(new EncodedTriple(0 + offset, 1, -1, "\"the matrix\"@en"));
+            expResult.add(new EncodedTriple(2 + offset, 0, -1, "<http://other.org/x>"));
+
+            for (long maxBroadcastSize : new long[]{EntityIdDictionary.DEFAULT_MAX_BROADCAST_SIZE, 0}) {
+                EntityIdDictionary dictionary = EntityIdDictionary.load(entityIds, positiveIds, maxBroadcastSize);
+                EncodedTriples instance = EncodedTriples.encode(getRawTriples(), " ", dictionary);
+                assertArrayEquals(new String[]{"<link>", "<name>", "<p>"}, instance.getPredicates()); //lexicographic order
+                assertEquals(positiveIds, instance.isPositive());
+                assertEquals(3, instance.getNumEntities());
+                assertEquals(expResult, new HashSet<>(instance.getTriples().collect()));
+                assertEquals(new HashSet<>(Arrays.asList(1)), instance.getPredicateIds(new HashSet<>(Arrays.asList("<name>", "<missing>"))));
+                instance.unpersist();
+                dictionary.unpersist();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class EntityIdDictionaryTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public EntityIdDictionaryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private JavaRDD<String> getEntityIdsText() {
+        return jsc.parallelize(Arrays.asList("<http://a.org/E0>\t0", "<http://a.org/e1>\t1", "<http://a.org/e2>\t2"), 2);
+    }
+
+    /**
+     * Test of load and broadcast methods, of class EntityIdDictionary, against Utils.readEntityIdsMapping.
+     */
+    @Test
+    public void testLoad() {
+        System.out.println("load");
+        for (boolean positiveIds : new boolean[]{true, false}) {
+            EntityIdDictionary instance = EntityIdDictionary.load(getEntityIdsText(), positiveIds);
+            Object2IntOpenHashMap<String> expResult = Utils.readEntityIdsMapping(getEntityIdsText(), positiveIds);
+            assertEquals(positiveIds, instance.isPositive());
+            assertEquals(3, instance.size());
+            assertTrue(instance.isBroadcast());
+            assertEquals(expResult, new HashMap<>(instance.getIds().collectAsMap()));
+            for (String url : expResult.keySet()) {
+                assertEquals(expResult.getInt(url), instance.broadcast().value().getInt(url));
+            }
+            assertSame(instance.broadcast(), instance.broadcast()); //collected only once
+            assertEquals(positiveIds ? 0 : 1, instance.getIds().lookup("<http://a.org/e0>").get(0).intValue()); //lowercased, negative ids start from 1
+            instance.unpersist();
+        }
+        assertFalse(EntityIdDictionary.load(getEntityIdsText(), true, 2).isBroadcast());
+    }
+
+    /**
+     * Test of resolve and resolveOrDefault methods, of class EntityIdDictionary.
+     */
+    @Test
+    public void testResolve() {
+        System.out.println("resolve");
+        EntityIdDictionary instance = EntityIdDictionary.load(getEntityIdsText(), true, 0);
+        assertFalse(instance.isBroadcast());
+        JavaPairRDD<String, String> byUrl = jsc.parallelizePairs(Arrays.asList(
+                new Tuple2<>("<http://a.org/e1>", "x"),
+                new Tuple2<>("<http://a.org/e2>", "y"),
+                new Tuple2<>("\"literal\"", "z")), 3);
+
+        Map<Integer, String> expResult = new HashMap<>();
+        expResult.put(1, "x");
+        expResult.put(2, "y");
+        assertEquals(expResult, instance.resolve(byUrl).collectAsMap());
+
+        expResult.put(-1, "z");
+        assertEquals(expResult, instance.resolveOrDefault(byUrl, -1).collectAsMap());
+        instance.unpersist();
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class FrontCodedDictionaryTest {
+
+    public FrontCodedDictionaryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of getInt and containsKey methods, of class FrontCodedDictionary, against an Object2IntOpenHashMap.
+     */
+    @Test
+    public void testGetInt() {
+        System.out.println("getInt");
+        Random random = new Random(17);
+        String[] prefixes = {"<http://dbpedia.org/resource/", "<http://dbpedia.org/resource/Category:", "<http://yago-knowledge.org/resource/", "\"literal", ""};
+        Object2IntOpenHashMap<String> expResult = new Object2IntOpenHashMap<>();
+        expResult.defaultReturnValue(-1);
+        for (int i = 0; i < 5000; ++i) {
+            String key = prefixes[random.nextInt(prefixes.length)] + Integer.toString(random.nextInt(100000), 36);
+            if (random.nextInt(10) == 0) {
+                key += "\u00e9\u4e2d"; //multi-byte UTF-8
+            }
+            expResult.put(key, expResult.containsKey(key) ? expResult.getInt(key) : -expResult.size());
+        }
+        expResult.put("<http://dbpedia.org/resource/a", 1); //a key that is a prefix of other keys
+        expResult.put("<http://dbpedia.org/resource/ab", 2);
+        expResult.put("", 3);
+
+        for (int bucketSize : new int[]{1, 3, FrontCodedDictionary.DEFAULT_BUCKET_SIZE, 10000}) {
+            FrontCodedDictionary instance = FrontCodedDictionary.fromMap(expResult, bucketSize);
+            assertEquals(expResult.size(), instance.size());
+            assertEquals(-1, instance.defaultReturnValue()); //kept from the map
+            for (String key : expResult.keySet()) {
+                assertEquals(key, expResult.getInt(key), instance.getInt(key));
+                assertTrue(instance.containsKey(key));
+                String missing = key + "x";
+                assertEquals(expResult.containsKey(missing), instance.containsKey(missing));
+                missing = key.isEmpty() ? "!" : key.substring(0, key.length() - 1);
+                assertEquals(expResult.getInt(missing), instance.getInt(missing));
+            }
+            assertFalse(instance.containsKey("~"));
+            assertFalse(instance.containsKey(null));
+            assertFalse(instance.containsKey(3));
+        }
+
+        FrontCodedDictionary empty = FrontCodedDictionary.fromMap(new Object2IntOpenHashMap<>());
+        assertEquals(0, empty.size());
+        assertEquals(0, empty.getInt("a"));
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class InNeighborIndexTest {
+
+    public InNeighborIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of fromMap method, of class InNeighborIndex.
+     */
+    @Test
+    public void testFromMap() {
+        System.out.println("fromMap");
+        Map<Integer, IntArrayList> inNeighbors = new HashMap<>();
+        inNeighbors.put(0, new IntArrayList(new int[]{3}));
+        inNeighbors.put(2, new IntArrayList(new int[]{3,4}));
+        inNeighbors.put(-1, new IntArrayList(new int[]{-4}));
+        inNeighbors.put(-3, new IntArrayList(new int[]{-4,-5,-6}));
+        InNeighborIndex instance = InNeighborIndex.fromMap(inNeighbors);
+
+        assertEquals(7, instance.numNeighbors());
+        for (int eId = -5; eId <= 5; ++eId) {
+            assertEquals(inNeighbors.get(eId), instance.get(eId));
+            assertEquals(inNeighbors.containsKey(eId) ? inNeighbors.get(eId).size() : 0, instance.size(eId));
+        }
+        assertEquals(0, instance.size(Integer.MIN_VALUE));
+        assertEquals(0, instance.size(Integer.MAX_VALUE));
+
+        int sum = 0;
+        for (int i = instance.start(-3); i < instance.end(-3); ++i) {
+            sum += instance.neighbors()[i];
+        }
+        assertEquals(-15, sum);
+
+        InNeighborIndex empty = InNeighborIndex.fromMap(new HashMap<>());
+        assertNull(empty.get(0));
+        assertNull(empty.get(-1));
+    }
+
+}
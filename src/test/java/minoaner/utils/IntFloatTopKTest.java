@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author vefthym
+ */
+public class IntFloatTopKTest {
+
+    public IntFloatTopKTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of select method, of class IntFloatTopK.
+     */
+    @Test
+    public void testSelect() {
+        System.out.println("select");
+        Int2FloatOpenHashMap candidates = new Int2FloatOpenHashMap();
+        candidates.put(1, 0.5f);
+        candidates.put(-2, 3f);
+        candidates.put(3, 1f);
+        candidates.put(-4, 2f);
+        candidates.put(5, 1f);
+
+        assertEquals(new IntArrayList(new int[]{-2,-4,3}), IntFloatTopK.select(candidates, 3).toIntArrayList()); //3 and 5 are tied: the smaller id wins
+
+        Int2FloatLinkedOpenHashMap result = IntFloatTopK.select(candidates, 10).toInt2FloatLinkedOpenHashMap();
+        assertArrayEquals(new int[]{-2,-4,3,5,1}, result.keySet().toIntArray());
+        assertEquals(candidates, result);
+
+        assertEquals(0, IntFloatTopK.select(candidates, 0).size());
+        assertEquals(0, IntFloatTopK.select(new Int2FloatOpenHashMap(), 3).size());
+    }
+
+    /**
+     * Compares the result of select with sorting the whole map, as in Utils.sortByValue.
+     */
+    @Test
+    public void testSelectRandom() {
+        System.out.println("selectRandom");
+        Random random = new Random(17);
+        int K = 15;
+        for (int run = 0; run < 20; ++run) {
+            Int2FloatOpenHashMap candidates = new Int2FloatOpenHashMap();
+            for (int i = 0; i < 1000; ++i) {
+                candidates.put(random.nextInt(100000) - 50000, random.nextFloat());
+            }
+            Map<Integer, Float> sorted = Utils.sortByValue(candidates, true);
+            IntFloatTopK topK = IntFloatTopK.select(candidates, K);
+            assertEquals(K, topK.size());
+            int rank = 0;
+            for (Map.Entry<Integer, Float> expected : sorted.entrySet()) {
+                if (rank == K) {
+                    break;
+                }
+                assertEquals(expected.getValue(), topK.getScore(rank), 0f);
+                assertEquals(candidates.get(topK.getId(rank)), topK.getScore(rank), 0f);
+                rank++;
+            }
+        }
+    }
+
+    /**
+     * Test of maxPerId method, of class IntFloatTopK: compares it with the maximum score per id, followed by select.
+     */
+    @Test
+    public void testMaxPerId() {
+        System.out.println("maxPerId");
+        Random random = new Random(17);
+        int K = 15;
+        for (int run = 0; run < 20; ++run) {
+            Int2FloatOpenHashMap maxScores = new Int2FloatOpenHashMap();
+            IntFloatTopK topK = IntFloatTopK.maxPerId(K);
+            IntFloatTopK otherTopK = IntFloatTopK.maxPerId(K); //to be merged with topK
+            for (int i = 0; i < 2000; ++i) {
+                int id = random.nextInt(200) - 100;
+                float score = random.nextFloat();
+                if (!maxScores.containsKey(id) || maxScores.get(id) < score) {
+                    maxScores.put(id, score);
+                }
+                (i % 2 == 0 ? topK : otherTopK).offer(id, score);
+            }
+            Int2FloatLinkedOpenHashMap expResult = IntFloatTopK.select(maxScores, K).toInt2FloatLinkedOpenHashMap();
+            Int2FloatLinkedOpenHashMap result = topK.addAll(otherTopK).toInt2FloatLinkedOpenHashMap();
+            assertArrayEquals(expResult.keySet().toIntArray(), result.keySet().toIntArray());
+            assertEquals(expResult, result);
+        }
+
+        IntFloatTopK topK = IntFloatTopK.maxPerId(2);
+        assertTrue(topK.offer(1, 1f));
+        assertTrue(topK.offer(1, 2f));
+        assertFalse(topK.offer(1, 0.5f));
+        assertTrue(topK.offer(3, 0.5f));
+        assertEquals(2, topK.size());
+        assertTrue(topK.offer(4, 3f)); //evicts 3
+        assertFalse(topK.offer(3, 0.75f));
+        assertEquals(new IntArrayList(new int[]{4,1}), topK.toIntArrayList());
+    }
+
+    /**
+     * Test of offer method, of class IntFloatTopK.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testOfferAfterRank() {
+        System.out.println("offerAfterRank");
+        IntFloatTopK topK = new IntFloatTopK(2);
+        assertTrue(topK.offer(1, 1f));
+        assertTrue(topK.offer(2, 2f));
+        assertFalse(topK.offer(3, 0.5f));
+        assertTrue(topK.offer(4, 3f));
+        assertEquals(4, topK.getId(0));
+        assertEquals(2, topK.getId(1));
+        topK.offer(5, 5f);
+    }
+
+}
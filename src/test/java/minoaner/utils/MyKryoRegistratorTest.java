@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2FloatLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import minoaner.relationsWeighting.RelationStatistics;
+import minoaner.relationsWeighting.RelationsRank;
+import minoaner.relationsWeighting.TopRelationNeighbors;
+import org.apache.parquet.it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.JavaSerializer;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.serializer.Serializer;
+import org.apache.spark.serializer.SerializerInstance;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+
+/**
+ *
+ * @author vefthym
+ */
+public class MyKryoRegistratorTest {
+
+    SerializerInstance kryo;
+
+    public MyKryoRegistratorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        kryo = new KryoSerializer(kryoConf()).newInstance();
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static SparkConf kryoConf() {
+        return new SparkConf()
+                .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+                .set("spark.kryo.registrator", MyKryoRegistrator.class.getName());
+    }
+
+    private <T> T roundTrip(T object) {
+        ClassTag<T> tag = ClassTag$.MODULE$.apply(Object.class);
+        return kryo.deserialize(kryo.serialize(object, tag), tag);
+    }
+
+    /**
+     * Test of the custom serializers registered by MyKryoRegistrator.
+     */
+    @Test
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        IntArrayList list = new IntArrayList(new int[]{3, -1, 0, Integer.MAX_VALUE, Integer.MIN_VALUE});
+        assertEquals(list, roundTrip(list));
+
+        Int2FloatOpenHashMap map = new Int2FloatOpenHashMap();
+        map.put(1, 0.5f);
+        map.put(-3, 2f);
+        assertEquals(map, roundTrip(map));
+
+        Int2FloatLinkedOpenHashMap linkedMap = new Int2FloatLinkedOpenHashMap();
+        linkedMap.put(7, 3f);
+        linkedMap.put(-2, 2f);
+        linkedMap.put(5, 1f);
+        Int2FloatLinkedOpenHashMap linkedMapResult = roundTrip(linkedMap);
+        assertArrayEquals(linkedMap.keySet().toIntArray(), linkedMapResult.keySet().toIntArray()); //insertion order is kept
+        assertEquals(linkedMap, linkedMapResult);
+
+        GrowableLongArray longs = new GrowableLongArray().add(3L << 32 | 7).add(0).add(Long.MAX_VALUE);
+        GrowableLongArray longsResult = roundTrip(longs);
+        assertEquals(3, longsResult.size());
+        assertArrayEquals(new long[]{3L << 32 | 7, 0, Long.MAX_VALUE}, Arrays.copyOf(longsResult.elements(), longsResult.size()));
+
+        TopRelationNeighbors top = new TopRelationNeighbors(2).add(-5, 1).add(-6, -1).add(-7, 1);
+        TopRelationNeighbors topResult = roundTrip(top);
+        assertEquals(2, topResult.getN());
+        assertEquals(top.getBestRanks(), topResult.getBestRanks());
+        assertEquals(-6, topResult.toIntArrayList().getInt(0));
+
+        long[] pairs = new long[1000];
+        for (int i = 0; i < pairs.length; ++i) {
+            pairs[i] = RelationsRank.packPair(i, i % 300);
+        }
+        for (int hllPrecision : new int[]{0, 12}) {
+            RelationStatistics stats = new RelationStatistics(hllPrecision).add(pairs);
+            RelationStatistics statsResult = roundTrip(stats);
+            assertEquals(1000, statsResult.getNumInstances());
+            assertEquals(stats.getNumDistinctObjects(), statsResult.getNumDistinctObjects());
+            assertEquals(stats.getNumDistinctObjects(), statsResult.merge(stats).getNumDistinctObjects());
+        }
+
+        ComparableIntFloatPair pair = roundTrip(new ComparableIntFloatPair(-4, 0.25f));
+        assertEquals(-4, pair.getEntityId());
+        assertEquals(0.25f, pair.getValue(), 0f);
+
+        PriorityQueue<ComparableIntFloatPair> pq = new PriorityQueue<>(new ComparableIntFloatPairDescendingComparator());
+        pq.add(new ComparableIntFloatPair(1, 1f));
+        pq.add(new ComparableIntFloatPair(2, 3f));
+        pq.add(new ComparableIntFloatPair(3, 2f));
+        PriorityQueue<ComparableIntFloatPair> pqResult = roundTrip(pq);
+        assertTrue(pqResult.comparator() instanceof ComparableIntFloatPairDescendingComparator);
+        assertEquals(2, pqResult.poll().getEntityId());
+        assertEquals(3, pqResult.poll().getEntityId());
+        assertEquals(1, pqResult.poll().getEntityId());
+
+        IntFloatTopK topK = IntFloatTopK.maxPerId(2);
+        topK.offer(-1, 1f);
+        topK.offer(2, 0.5f);
+        IntFloatTopK topKResult = roundTrip(topK);
+        assertTrue(topKResult.isMaxPerId());
+        assertFalse(topKResult.offer(2, 0.25f)); //the index of the ids is restored
+        assertTrue(topKResult.offer(2, 3f));
+        assertEquals(new IntArrayList(new int[]{2,-1}), topKResult.toIntArrayList());
+    }
+
+    private static long shuffleBytes(Serializer serializer, List<?> values, int[] keys) {
+        ClassTag<Object> tag = ClassTag$.MODULE$.apply(Object.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationStream stream = serializer.newInstance().serializeStream(bytes);
+        for (int i = 0; i < keys.length; ++i) {
+            stream.writeKey(keys[i], tag);
+            stream.writeValue(values.get(i), tag);
+        }
+        stream.close();
+        return bytes.size();
+    }
+
+    /**
+     * Compares the bytes written for a sample of CNPMapPhase.getMapOutputWJS records,
+     * i.e., (entityId, [numEntitiesFromTheSameCollection, candidateIds]), with Java and with Kryo serialization.
+     */
+    @Test
+    public void testShuffleBytes() {
+        System.out.println("shuffleBytes");
+        Random random = new Random(17);
+        int numRecords = 10000;
+        int[] keys = new int[numRecords];
+        List<IntArrayList> values = new ArrayList<>(numRecords);
+        for (int i = 0; i < numRecords; ++i) {
+            keys[i] = random.nextBoolean() ? random.nextInt(1000000) : -random.nextInt(1000000) - 1;
+            int size = 2 + random.nextInt(20);
+            IntArrayList candidates = new IntArrayList(size);
+            candidates.add(1 + random.nextInt(50));
+            for (int j = 1; j < size; ++j) {
+                candidates.add(keys[i] < 0 ? random.nextInt(1000000) : -random.nextInt(1000000) - 1);
+            }
+            values.add(candidates);
+        }
+
+        long javaBytes = shuffleBytes(new JavaSerializer(new SparkConf()), values, keys);
+        long kryoBytes = shuffleBytes(new KryoSerializer(kryoConf()), values, keys);
+        System.out.println("Java serialization: "+javaBytes+" bytes, Kryo serialization: "+kryoBytes+" bytes");
+        assertTrue(kryoBytes < javaBytes);
+    }
+
+    /**
+     * Compares the bytes written for the (entityId, block assignment) records of block filtering,
+     * i.e., (entityId, (blockId, inverseUtility)) before, and (entityId, inverseUtility and blockId packed in a long) now.
+     */
+    @Test
+    public void testBlockAssignmentShuffleBytes() {
+        System.out.println("blockAssignmentShuffleBytes");
+        Random random = new Random(17);
+        int numRecords = 10000;
+        int[] keys = new int[numRecords];
+        List<Tuple2<Integer,Integer>> tuples = new ArrayList<>(numRecords);
+        List<Long> packed = new ArrayList<>(numRecords);
+        for (int i = 0; i < numRecords; ++i) {
+            keys[i] = random.nextBoolean() ? random.nextInt(1000000) : -random.nextInt(1000000) - 1;
+            int blockId = random.nextInt(10000000);
+            int inverseUtility = 1 + random.nextInt(1000);
+            tuples.add(new Tuple2<>(blockId, inverseUtility));
+            packed.add(((long) inverseUtility << 32) | blockId);
+        }
+
+        long javaTupleBytes = shuffleBytes(new JavaSerializer(new SparkConf()), tuples, keys);
+        long kryoTupleBytes = shuffleBytes(new KryoSerializer(kryoConf()), tuples, keys);
+        long kryoPackedBytes = shuffleBytes(new KryoSerializer(kryoConf()), packed, keys);
+        System.out.println("Bytes per block assignment: "+(double)javaTupleBytes/numRecords+" (Java, tuples), "
+                +(double)kryoTupleBytes/numRecords+" (Kryo, tuples), "+(double)kryoPackedBytes/numRecords+" (Kryo, packed)");
+        assertTrue(kryoPackedBytes < kryoTupleBytes);
+        assertTrue(kryoPackedBytes <= 16 * numRecords); //class ids and varints for an int key and a long value
+    }
+
+    /**
+     * Compares the bytes of a broadcast in-neighbor index, as a Map of IntArrayLists and as an InNeighborIndex.
+     */
+    @Test
+    public void testInNeighborIndexBroadcastBytes() {
+        System.out.println("inNeighborIndexBroadcastBytes");
+        Random random = new Random(17);
+        Map<Integer, IntArrayList> inNeighbors = new HashMap<>();
+        for (int eId = -50000; eId < 50000; ++eId) {
+            int[] eInNeighbors = new int[1 + random.nextInt(5)];
+            for (int i = 0; i < eInNeighbors.length; ++i) {
+                eInNeighbors[i] = eId >= 0 ? random.nextInt(50000) : -random.nextInt(50000) - 1;
+            }
+            inNeighbors.put(eId, new IntArrayList(eInNeighbors));
+        }
+        InNeighborIndex index = InNeighborIndex.fromMap(inNeighbors);
+
+        ClassTag<Object> tag = ClassTag$.MODULE$.apply(Object.class);
+        long mapBytes = kryo.serialize(inNeighbors, tag).remaining();
+        long indexBytes = kryo.serialize(index, tag).remaining();
+        System.out.println("Broadcast bytes: "+mapBytes+" (Map), "+indexBytes+" (InNeighborIndex)");
+        assertTrue(indexBytes * 4 < mapBytes * 3); //the main saving is on the heap of the executors (no object per entity), not in bytes
+
+        InNeighborIndex indexResult = roundTrip(index);
+        for (int eId = -50000; eId < 50000; eId += 999) {
+            assertEquals(inNeighbors.get(eId), indexResult.get(eId));
+        }
+    }
+
+    /**
+     * Compares the bytes of a broadcast mapping of entity urls to entity ids, as an Object2IntOpenHashMap and as a FrontCodedDictionary.
+     */
+    @Test
+    public void testFrontCodedDictionaryBroadcastBytes() {
+        System.out.println("frontCodedDictionaryBroadcastBytes");
+        Object2IntOpenHashMap<String> entityIds = new Object2IntOpenHashMap<>();
+        for (int eId = 0; eId < 100000; ++eId) {
+            entityIds.put("<http://dbpedia.org/resource/entity_"+eId+">", eId);
+        }
+        FrontCodedDictionary dictionary = FrontCodedDictionary.fromMap(entityIds);
+
+        ClassTag<Object> tag = ClassTag$.MODULE$.apply(Object.class);
+        long mapBytes = kryo.serialize(entityIds, tag).remaining();
+        long dictionaryBytes = kryo.serialize(dictionary, tag).remaining();
+        System.out.println("Broadcast bytes: "+mapBytes+" (Object2IntOpenHashMap), "+dictionaryBytes+" (FrontCodedDictionary)");
+        assertTrue(dictionaryBytes * 3 < mapBytes);
+
+        dictionary.defaultReturnValue(-1);
+        FrontCodedDictionary dictionaryResult = roundTrip(dictionary);
+        assertEquals(-1, dictionaryResult.defaultReturnValue());
+        assertEquals(entityIds.size(), dictionaryResult.size());
+        for (int eId = 0; eId < 100000; eId += 999) {
+            assertEquals(eId, dictionaryResult.getInt("<http://dbpedia.org/resource/entity_"+eId+">"));
+        }
+        assertEquals(-1, dictionaryResult.getInt("<http://dbpedia.org/resource/entity_>"));
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Compares Utils.encodeURIinUTF8 (with its fast path and cache) with the previous implementation, which encoded every DBpedia URI.
+ * Run with an .nt file (e.g., a DBpedia dump) as the first argument, to encode the subjects and objects of its first 5M triples,
+ * or without arguments to encode synthetic DBpedia-style URIs, where a few popular objects appear in most triples.
+ * @author vefthym
+ */
+public class URIEncodingBenchmark {
+
+    /**
+     * The implementation of Utils.encodeURIinUTF8 before its fast path and cache.
+     */
+    static String encodeURIinUTF8Legacy(String uri) {
+        if (uri.startsWith("<http://dbpedia.org/resource/")) {
+            int splitPoint = uri.lastIndexOf("/")+1;
+            String infix = uri.substring(splitPoint, uri.length()-1);
+            if (infix.contains("%")) {
+                return uri;
+            }
+            return Utils.encodeLocalName(uri, splitPoint);
+        }
+        return uri;
+    }
+
+    private static List<String> syntheticURIs(int numURIs) {
+        Random random = new Random(17);
+        String[] names = {"barack_obama", "new_york_city", "the_matrix_(film)", "caf\\u00e9_society", "at&t", "o'neill", "1984_(novel)", "united_states", "s\\u00e3o_paulo"};
+        List<String> uris = new ArrayList<>(numURIs);
+        for (int i = 0; i < numURIs; ++i) {
+            String name = names[random.nextInt(names.length)];
+            if (random.nextInt(4) == 0) {
+                uris.add("<http://dbpedia.org/resource/"+name+"_"+random.nextInt(1000000)+">"); //a rare subject
+            } else if (random.nextInt(10) == 0) {
+                uris.add("<http://xmlns.com/foaf/0.1/"+name+">"); //not a DBpedia resource
+            } else {
+                uris.add("<http://dbpedia.org/resource/"+name+">"); //a popular object
+            }
+        }
+        return uris;
+    }
+
+    private static List<String> readURIs(String path, int maxTriples) throws IOException {
+        List<String> uris = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int triples = 0;
+            while ((line = reader.readLine()) != null && triples++ < maxTriples) {
+                String[] spo = Utils.tokenizeTriple(line, " ");
+                if (spo != null) {
+                    uris.add(spo[0]);
+                    uris.add(spo[2]);
+                }
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * @return {elapsed nanoseconds, a checksum of the encodings}
+     */
+    private static long[] encode(List<String> uris, Function<String,String> encoder) {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (String uri : uris) {
+            checksum += encoder.apply(uri).length();
+        }
+        return new long[]{System.nanoTime()-start, checksum};
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int RUNS = 5;
+        List<String> uris = args.length == 0 ? syntheticURIs(2000000) : readURIs(args[0], 5000000);
+
+        //sanity check: both implementations should agree
+        for (String uri : uris) {
+            if (!encodeURIinUTF8Legacy(uri).equals(Utils.encodeURIinUTF8(uri))) {
+                throw new IllegalStateException("The encodings disagree on: "+uri);
+            }
+        }
+
+        for (int run = 0; run < RUNS; ++run) { //the first run also warms up the JIT
+            long[] legacy = encode(uris, URIEncodingBenchmark::encodeURIinUTF8Legacy);
+            long[] fast = encode(uris, Utils::encodeURIinUTF8);
+            System.out.println("Run "+run+": "+uris.size()+" uris");
+            System.out.println("\tlegacy encoding: "+legacy[0]/1000000+" ms");
+            System.out.println("\tencodeURIinUTF8: "+fast[0]/1000000+" ms ("+String.format("%.2f", (double)legacy[0]/fast[0])+"x)");
+        }
+    }
+
+}
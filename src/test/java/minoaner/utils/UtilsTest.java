@@ -97,6 +97,47 @@ public class UtilsTest {
         expResult = "<http://non-dbpedia.com>";
         result = Utils.encodeURIinUTF8(uri);
         assertEquals(expResult, result);
+        
+        uri = "<http://dbpedia.org/resource/barack_obama>"; //nothing to encode
+        assertSame(uri, Utils.encodeURIinUTF8(uri));
+        uri = "<http://dbpedia.org/resource/hello%28film%29>"; //already encoded
+        assertSame(uri, Utils.encodeURIinUTF8(uri));
+        
+        uri = "<http://dbpedia.org/resource/caf\\u00e9 society>"; //a java escape and a space
+        expResult = "<http://dbpedia.org/resource/caf%C3%A9+society>";
+        assertEquals(expResult, Utils.encodeURIinUTF8(uri));
+        assertEquals(expResult, Utils.encodeURIinUTF8(new String(uri))); //from the cache
+        assertEquals(expResult, Utils.encodeLocalName(uri, uri.lastIndexOf('/')+1));
+        
+        uri = "<http://dbpedia.org/resource/at&t>";
+        assertEquals("<http://dbpedia.org/resource/at%26t>", Utils.encodeURIinUTF8(uri));
+    }
+    
+    /**
+     * Test of tokenizeTriple method, of class Utils.
+     */
+    @org.junit.Test
+    public void testTokenizeTriple() {
+        System.out.println("tokenizeTriple");
+        assertArrayEquals(new String[]{"<http://a.org/e1>", "<http://a.org/p>", "<http://a.org/e2>"}, Utils.tokenizeTriple("<http://a.org/E1> <http://a.org/p> <http://a.org/e2> .", " "));
+        assertArrayEquals(new String[]{"<e1>", "rdfs:label", "\"the matrix\"@en"}, Utils.tokenizeTriple("<e1> rdfs:label \"The Matrix\"@en .", " ")); //the object is the rest of the line
+        assertArrayEquals(new String[]{"e1", "label", "a b"}, Utils.tokenizeTriple("e1\tlabel\ta b", "\t"));
+        assertNull(Utils.tokenizeTriple("e1 p .", " "));
+        assertNull(Utils.tokenizeTriple("e1  e2", " ")); //empty predicate
+        assertNull(Utils.tokenizeTriple(" p e2", " ")); //empty subject
+        assertNull(Utils.tokenizeTriple("invalid", " "));
+    }
+    
+    /**
+     * Test of normalizeLabel method, of class Utils.
+     */
+    @org.junit.Test
+    public void testNormalizeLabel() {
+        System.out.println("normalizeLabel");
+        String label = "\"the matrix (1999)\"@en .";
+        assertEquals(label.replaceAll("[^a-z0-9 ]", "").trim(), Utils.normalizeLabel(label));
+        assertEquals("the matrix 1999en", Utils.normalizeLabel(label));
+        assertEquals("", Utils.normalizeLabel("\"\""));
     }
     
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 vefthym.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package minoaner.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import scala.Tuple2;
+
+/**
+ *
+ * @author vefthym
+ */
+public class WorkflowMetricsTest {
+
+    SparkSession spark;
+    JavaSparkContext jsc;
+    public WorkflowMetricsTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty("hadoop.home.dir", "C:\\Users\\VASILIS\\Documents\\hadoop_home"); //only for local mode
+
+        spark = SparkSession.builder()
+            .appName("test")
+            .config("spark.sql.warehouse.dir", "/file:/tmp")
+            .config("spark.executor.instances", 1)
+            .config("spark.executor.cores", 1)
+            .config("spark.executor.memory", "1G")
+            .config("spark.driver.maxResultSize", "1g")
+            .config("spark.master", "local")
+            .getOrCreate();
+
+        jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of startStage and endStage methods, of class WorkflowMetrics.
+     */
+    @Test
+    public void testStages() throws Exception {
+        System.out.println("stages");
+        WorkflowMetrics instance = WorkflowMetrics.register(jsc);
+
+        instance.startStage("a");
+        long numKeys = jsc.parallelize(Arrays.asList(1, 2, 3, 1, 2, 1), 2)
+                .mapToPair(x -> new Tuple2<>(x, 1))
+                .reduceByKey((x, y) -> x + y)
+                .count();
+        assertEquals(3, numKeys);
+        instance.startStage("b");
+        jsc.parallelize(Arrays.asList(1, 2, 3), 3).count();
+        instance.endStage();
+        jsc.parallelize(Arrays.asList(1, 2, 3), 3).count(); //not measured
+
+        jsc.sc().listenerBus().waitUntilEmpty(10000); //the listener receives the events asynchronously
+        jsc.sc().listenerBus().removeListener(instance);
+
+        Map<String, WorkflowMetrics.StageMetrics> stages = instance.getStages();
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(stages.keySet().toArray()));
+
+        WorkflowMetrics.StageMetrics a = stages.get("a");
+        assertEquals(2, a.getNumStages()); //the map side and the reduce side of the shuffle
+        assertEquals(4, a.getNumTasks());
+        assertTrue(a.getShuffleWriteBytes() > 0);
+        assertTrue(a.getShuffleReadBytes() > 0);
+        assertEquals(3 + 2, a.getRecordsOut()); //the partial sums of {1,2,3} and {1,2,1}, combined on the map side
+
+        WorkflowMetrics.StageMetrics b = stages.get("b");
+        assertEquals(1, b.getNumStages());
+        assertEquals(3, b.getNumTasks());
+        assertEquals(0, b.getShuffleWriteBytes());
+
+        String json = instance.toJson();
+        assertTrue(json.contains("{\"name\":\"a\","));
+        assertTrue(json.contains("{\"name\":\"b\","));
+        assertTrue(json.startsWith("{\"appName\":\"test\""));
+    }
+
+}